@@ -0,0 +1,62 @@
+package org.example;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-key limiting with either one hot key or many keys hit uniformly at random.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class KeyedRateLimiterBenchmark {
+
+    @Param({"IPBased", "Compact"})
+    public String limiter;
+
+    @Param({"1", "100000"})
+    public int keys;
+
+    @Param({"ALLOW_HEAVY", "DENY_HEAVY"})
+    public RateLimiterBenchmark.Workload workload;
+
+    private String[] ips;
+    private IPBasedRateLimiter ipBasedRateLimiter;
+    private CompactKeyedRateLimiter compactKeyedRateLimiter;
+
+    @Setup
+    public void setUp() {
+        ips = new String[keys];
+        for (int i = 0; i < keys; i++) {
+            ips[i] = "10." + ((i >> 16) & 0xFF) + "." + ((i >> 8) & 0xFF) + "." + (i & 0xFF);
+        }
+        // Per-key rates are capped so that the compact table can count them
+        int permitsPerSecond = (int) Math.min(workload.permitsPerSecond, CompactKeyedRateLimiter.MAX_PERMITS_PER_WINDOW);
+        ipBasedRateLimiter = new IPBasedRateLimiter(permitsPerSecond);
+        compactKeyedRateLimiter = new CompactKeyedRateLimiter(permitsPerSecond, keys);
+    }
+
+    @Benchmark
+    public boolean acquire() {
+        String ip = ips[keys == 1 ? 0 : ThreadLocalRandom.current().nextInt(keys)];
+        if (limiter.equals("IPBased")) {
+            return ipBasedRateLimiter.acquire(ip);
+        }
+        return compactKeyedRateLimiter.acquire(ip);
+    }
+}
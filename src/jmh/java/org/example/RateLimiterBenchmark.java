@@ -0,0 +1,89 @@
+package org.example;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single limiter shared by all benchmark threads. Thread counts are set by
+ * {@link RateLimiterBenchmarkRunner}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class RateLimiterBenchmark {
+
+    @Param({
+            "TokenBucket",
+            "AtomicTokenBucket",
+            "LeakyBucket",
+            "FixedWindow",
+            "SlidingWindowLog",
+            "SlidingWindowCounter",
+            "SlidingWindowCounterSubWindow"
+    })
+    public String limiter;
+
+    @Param({"ALLOW_HEAVY", "DENY_HEAVY"})
+    public Workload workload;
+
+    private RateLimiter rateLimiter;
+
+    @Setup
+    public void setUp() {
+        rateLimiter = create(limiter, workload.permitsPerSecond);
+    }
+
+    @Benchmark
+    public boolean acquire() {
+        return rateLimiter.acquire();
+    }
+
+    static RateLimiter create(String limiter, int permitsPerSecond) {
+        switch (limiter) {
+            case "TokenBucket":
+                return new TokenBucketRateLimiter(permitsPerSecond, permitsPerSecond);
+            case "AtomicTokenBucket":
+                return new AtomicTokenBucketRateLimiter(
+                        Math.min(permitsPerSecond, AtomicTokenBucketRateLimiter.MAX_CAPACITY), permitsPerSecond);
+            case "LeakyBucket":
+                return new LeakyBucketRateLimiter(permitsPerSecond, permitsPerSecond);
+            case "FixedWindow":
+                return new FixedWindowRateLimiter(permitsPerSecond);
+            case "SlidingWindowLog":
+                return new SlidingWindowLogRateLimiter(permitsPerSecond);
+            case "SlidingWindowCounter":
+                return new SlidingWindowCounterRateLimiter(permitsPerSecond, 1);
+            case "SlidingWindowCounterSubWindow":
+                return new SlidingWindowCounterSubWindowRateLimiter(permitsPerSecond, 1, 1);
+            default:
+                throw new IllegalArgumentException("Unknown limiter: " + limiter);
+        }
+    }
+
+    public enum Workload {
+        // High enough that nearly every call is admitted, the window log then holds one entry per call
+        ALLOW_HEAVY(50_000_000),
+        // Exhausted after the first call of every second
+        DENY_HEAVY(1);
+
+        final int permitsPerSecond;
+
+        Workload(int permitsPerSecond) {
+            this.permitsPerSecond = permitsPerSecond;
+        }
+    }
+}
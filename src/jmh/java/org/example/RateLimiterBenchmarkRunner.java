@@ -0,0 +1,37 @@
+package org.example;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+
+/**
+ * Runs the benchmarks once per thread count with the GC profiler, which reports the allocation
+ * rate next to throughput and latency percentiles.
+ * <p>
+ * Arguments: benchmark include regex, comma separated thread counts, report directory.
+ */
+public class RateLimiterBenchmarkRunner {
+    public static void main(String[] args) throws RunnerException {
+        String include = args.length > 0 ? args[0] : ".*Benchmark.*";
+        String threadCounts = args.length > 1 ? args[1] : "1,4,16,64";
+        File reportDirectory = new File(args.length > 2 ? args[2] : "build/reports/jmh");
+        reportDirectory.mkdirs();
+
+        for (String threadCount : threadCounts.split(",")) {
+            int threads = Integer.parseInt(threadCount.trim());
+            Options options = new OptionsBuilder()
+                    .include(include)
+                    .threads(threads)
+                    .addProfiler(GCProfiler.class)
+                    .resultFormat(ResultFormatType.JSON)
+                    .result(new File(reportDirectory, "results-" + threads + "-threads.json").getPath())
+                    .build();
+            new Runner(options).run();
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package org.example;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Base class for the rate limiters. Implementations only decide whether a permit can be taken
+ * at a given instant; waiting happens here, outside of any lock the implementation holds, so a
+ * caller blocked in {@link #tryAcquire(int, long, TimeUnit)} never blocks other callers.
+ * <p>
+ * Blocked callers line up on a fair lock, and only the one at the head sleeps, for exactly as
+ * long as the implementation says its permits take to free up. The others stay parked until it
+ * is their turn, so any number of waiters costs one wakeup each instead of a stampede at every
+ * refill, and since the lock parks rather than holding a monitor, virtual threads waiting here
+ * never pin their carrier. Asynchronous acquisitions wait in an {@link AsyncWaiters} queue
+ * instead of a thread.
+ * <p>
+ * When a single permit is denied, the time the implementation says it frees up is published in
+ * a volatile field, and every request before then is denied from that one read, without taking
+ * the implementation's lock or writing anything. Under a flood of requests that are denied anyway
+ * this is what keeps denials cheap. Implementations must call {@link #clearDenial()} whenever
+ * permits can free up earlier than they said, which is on a refund or a rate change.
+ * <p>
+ * Keyed limiters create one instance per key, so the state that only waiting callers need, the
+ * gate and the asynchronous waiters, is created the first time a caller has to wait.
+ */
+abstract class AbstractRateLimiter implements RateLimiter {
+    private static final AtomicReferenceFieldUpdater<AbstractRateLimiter, AsyncWaiters> ASYNC_WAITERS =
+            AtomicReferenceFieldUpdater.newUpdater(AbstractRateLimiter.class, AsyncWaiters.class, "asyncWaiters");
+    private static final AtomicReferenceFieldUpdater<AbstractRateLimiter, ReentrantLock> GATE =
+            AtomicReferenceFieldUpdater.newUpdater(AbstractRateLimiter.class, ReentrantLock.class, "gate");
+    private static final AtomicIntegerFieldUpdater<AbstractRateLimiter> DENIAL_CLEARS =
+            AtomicIntegerFieldUpdater.newUpdater(AbstractRateLimiter.class, "denialClears");
+
+    protected final NanoClock clock;
+    private volatile AsyncWaiters asyncWaiters;
+    // Fair lock queueing the blocked callers of tryAcquire, only its holder sleeps until permits free up
+    private volatile ReentrantLock gate;
+    private volatile RateLimiterMetrics metrics;
+    private final boolean cachesDenials;
+    // No permit can be taken before this time of the clock, set by the last denial of one permit
+    private volatile long deniedUntil;
+    // Bumped by clearDenial, so that a denial decided before it is not published after it
+    private volatile int denialClears;
+
+    protected AbstractRateLimiter(NanoClock clock) {
+        this(clock, true);
+    }
+
+    /**
+     * Creates a limiter that does not cache denials if {@code cachesDenials} is false, for
+     * implementations whose permits can free up without them knowing.
+     */
+    AbstractRateLimiter(NanoClock clock, boolean cachesDenials) {
+        this.clock = clock;
+        this.cachesDenials = cachesDenials;
+        this.deniedUntil = clock.nanoTime();
+    }
+
+    @Override
+    public boolean acquire(int permits) {
+        checkPermits(permits);
+        return tryAcquireAndRecord(permits, clock.nanoTime()) == 0;
+    }
+
+    /**
+     * Decides like {@link #acquire(int)} at {@code now}, through the denial cache and counted in
+     * the metrics, but returns the wait of a denial like {@link #acquireOrGetWait(int, long)}.
+     */
+    long tryAcquireAndRecord(int permits, long now) {
+        RateLimiterMetrics metrics = this.metrics;
+        if (metrics == null) {
+            return tryAcquireOrGetWait(permits, now);
+        }
+        long waitInNanos = tryAcquireOrGetWait(permits, now);
+        metrics.recordAcquire(waitInNanos == 0, clock.nanoTime() - now);
+        return waitInNanos;
+    }
+
+    @Override
+    public boolean tryAcquire(int permits, long timeout, TimeUnit unit) {
+        checkPermits(permits);
+        long timeoutInNanos = unit.toNanos(timeout);
+        long start = clock.nanoTime();
+        RateLimiterMetrics metrics = this.metrics;
+        if (metrics == null) {
+            return waitAndAcquire(permits, timeoutInNanos, start);
+        }
+        boolean acquired = waitAndAcquire(permits, timeoutInNanos, start);
+        metrics.recordWait(acquired, clock.nanoTime() - start);
+        return acquired;
+    }
+
+    private boolean waitAndAcquire(int permits, long timeoutInNanos, long start) {
+        // Only barge in when no one is waiting, otherwise queue behind the waiters
+        ReentrantLock gate = this.gate;
+        if (gate == null || !gate.isLocked()) {
+            long waitInNanos = tryAcquireOrGetWait(permits, start);
+            if (waitInNanos == 0) {
+                return true;
+            }
+            if (waitInNanos > timeoutInNanos) {
+                return false; // The permits free up after the deadline
+            }
+        }
+        long deadline = start + timeoutInNanos;
+        gate = gate();
+        try {
+            if (!gate.tryLock(deadline - clock.nanoTime(), TimeUnit.NANOSECONDS)) {
+                return false;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        try {
+            while (true) {
+                long now = clock.nanoTime();
+                long waitInNanos = tryAcquireOrGetWait(permits, now);
+                if (waitInNanos == 0) {
+                    return true;
+                }
+                if (waitInNanos > deadline - now) {
+                    return false; // The permits free up after the deadline
+                }
+                clock.sleep(waitInNanos);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            gate.unlock();
+        }
+    }
+
+    @Override
+    public CompletableFuture<Boolean> acquireAsync(int permits) {
+        checkPermits(permits);
+        return asyncWaiters().acquire(permits, Long.MAX_VALUE);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> acquireAsync(int permits, long timeout, TimeUnit unit) {
+        checkPermits(permits);
+        return asyncWaiters().acquire(permits, Math.max(0, unit.toNanos(timeout)));
+    }
+
+    private ReentrantLock gate() {
+        ReentrantLock gate = this.gate;
+        if (gate == null) {
+            gate = new ReentrantLock(true);
+            if (!GATE.compareAndSet(this, null, gate)) {
+                gate = this.gate;
+            }
+        }
+        return gate;
+    }
+
+    private AsyncWaiters asyncWaiters() {
+        AsyncWaiters asyncWaiters = this.asyncWaiters;
+        if (asyncWaiters == null) {
+            asyncWaiters = new AsyncWaiters(this, HashedWheelTimer.SHARED, ForkJoinPool.commonPool());
+            if (!ASYNC_WAITERS.compareAndSet(this, null, asyncWaiters)) {
+                asyncWaiters = this.asyncWaiters;
+            }
+        }
+        return asyncWaiters;
+    }
+
+    @Override
+    public void setMetrics(RateLimiterMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Calls {@link #acquireOrGetWait(int, long)} unless a recent denial says that no permit is
+     * available at {@code now}, in which case the time left until then is returned. That is a
+     * lower bound of the wait for more than one permit.
+     */
+    long tryAcquireOrGetWait(int permits, long now) {
+        long deniedUntil = this.deniedUntil;
+        if (deniedUntil - now > 0) {
+            return deniedUntil - now;
+        }
+        if (permits != 1 || !cachesDenials) {
+            return acquireOrGetWait(permits, now);
+        }
+        int clears = denialClears;
+        long waitInNanos = acquireOrGetWait(permits, now);
+        if (waitInNanos != 0 && waitInNanos != Long.MAX_VALUE) {
+            this.deniedUntil = now + waitInNanos;
+            if (denialClears != clears) {
+                this.deniedUntil = now;
+            }
+        }
+        return waitInNanos;
+    }
+
+    /**
+     * Forgets the last denial, so that the next request asks the implementation again. Must be
+     * called after anything that may free up permits earlier than the implementation last said.
+     */
+    protected final void clearDenial() {
+        DENIAL_CLEARS.incrementAndGet(this);
+        long now = clock.nanoTime();
+        if (deniedUntil - now > 0) {
+            deniedUntil = now;
+        }
+    }
+
+    void recordWait(boolean acquired, long waitInNanos) {
+        RateLimiterMetrics metrics = this.metrics;
+        if (metrics != null) {
+            metrics.recordWait(acquired, waitInNanos);
+        }
+    }
+
+    /**
+     * Locks the given lock, counting it as contention if it has to wait. Implementations lock
+     * with this in {@link #acquireOrGetWait(int, long)}.
+     */
+    protected final void lock(ReentrantLock lock) {
+        if (!lock.tryLock()) {
+            RateLimiterMetrics metrics = this.metrics;
+            if (metrics != null) {
+                metrics.recordLockContention();
+            }
+            lock.lock();
+        }
+    }
+
+    /**
+     * Takes the given number of permits if they are all available at {@code now}.
+     *
+     * @param permits the number of permits to take, always positive
+     * @param now the current time of {@link #clock}
+     * @return 0 if the permits were taken, otherwise the (positive) number of nanoseconds after
+     * {@code now} at which they may become available, or {@link Long#MAX_VALUE} if they never will
+     */
+    protected abstract long acquireOrGetWait(int permits, long now);
+
+    /**
+     * Returns the most permits a single acquisition can ever get at the current rate, so that
+     * larger ones are denied without waiting, or {@link Long#MAX_VALUE} if there is no such bound.
+     */
+    protected long maxPermits() {
+        return Long.MAX_VALUE;
+    }
+
+    static void checkPermits(int permits) {
+        if (permits <= 0) {
+            throw new IllegalArgumentException("permits must be positive: " + permits);
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package org.example;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Wraps a rate limiter and keeps adjusting its rate to what the system behind it can take,
+ * judged by the latency and errors callers report with {@link #onSuccess(long, TimeUnit)} and
+ * {@link #onError()}. The rate stays between {@code minRate} and {@code maxRate}.
+ * <p>
+ * Feedback is summed in {@link LongAdder}s; once per {@code updateInterval} the first caller to
+ * notice computes a new rate and sets it on the wrapped limiter, whose {@code setRate} never
+ * blocks. Two algorithms are available, in the style of Netflix's concurrency-limits:
+ * <ul>
+ * <li>{@link Algorithm#AIMD} adds 1% of {@code maxRate} after a good interval and cuts the rate by
+ * 10% after an interval with errors or with an average latency of more than twice the long term
+ * average.</li>
+ * <li>{@link Algorithm#GRADIENT} scales the rate by the ratio of the long term average latency to
+ * the latency of the last interval, between 0.5 and 1, plus a small headroom of the square root of
+ * the rate to probe for more, smoothed over intervals. It backs off as soon as latency starts to
+ * rise, before errors appear.</li>
+ * </ul>
+ * The rate only grows while the limit is actually being used, at least half of it in the last
+ * interval, so a quiet period does not leave a limit far above what was last proven safe. Permits
+ * given back with {@link #refund(int, long)} and the token of their acquisition do not count as
+ * used if they were acquired in the current interval; a plain {@link #refund(int)} does not say
+ * when they were, so they still count.
+ */
+public class AdaptiveRateLimiter implements RateLimiter {
+
+    public enum Algorithm {
+        AIMD,
+        GRADIENT
+    }
+
+    /**
+     * Token returned by the {@code WithToken} methods when the permits were not acquired.
+     */
+    public static final long NOT_ACQUIRED = -1;
+
+    private static final long DEFAULT_UPDATE_INTERVAL_IN_MILLIS = 100;
+    private static final double AIMD_BACKOFF = 0.9;
+    private static final double AIMD_INCREASE = 0.01;
+    private static final double AIMD_LATENCY_TOLERANCE = 2.0;
+    private static final double GRADIENT_SMOOTHING = 0.2;
+    private static final double MIN_GRADIENT = 0.5;
+    // Weight of the last interval in the long term average latency
+    private static final double LONG_TERM_WEIGHT = 0.05;
+
+    private final RateLimiter rateLimiter;
+    private final Algorithm algorithm;
+    private final double minRate;
+    private final double maxRate;
+    private final NanoClock clock;
+    private final long updateIntervalInNanos;
+
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder samples = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder latencySum = new LongAdder();
+
+    private final ReentrantLock updateLock = new ReentrantLock();
+    private volatile long interval;
+    private volatile long nextUpdate;
+    private volatile double rate;
+    // Guarded by updateLock
+    private double longTermLatency;
+
+    public AdaptiveRateLimiter(RateLimiter rateLimiter, double minRate, double maxRate) {
+        this(rateLimiter, minRate, maxRate, Algorithm.GRADIENT, DEFAULT_UPDATE_INTERVAL_IN_MILLIS,
+                TimeUnit.MILLISECONDS, NanoClock.SYSTEM);
+    }
+
+    public AdaptiveRateLimiter(RateLimiter rateLimiter, double minRate, double maxRate, Algorithm algorithm,
+                               long updateInterval, TimeUnit unit, NanoClock clock) {
+        if (minRate <= 0 || maxRate < minRate) {
+            throw new IllegalArgumentException("minRate must be positive and no larger than maxRate");
+        }
+        this.rateLimiter = rateLimiter;
+        this.algorithm = algorithm;
+        this.minRate = minRate;
+        this.maxRate = maxRate;
+        this.clock = clock;
+        this.updateIntervalInNanos = unit.toNanos(updateInterval);
+        this.rate = Math.max(minRate, Math.min(maxRate, rateLimiter.getRate()));
+        this.nextUpdate = clock.nanoTime() + updateIntervalInNanos;
+        rateLimiter.setRate(rate);
+    }
+
+    /**
+     * Reports a call that was let through and completed normally after the given time.
+     */
+    public void onSuccess(long latency, TimeUnit unit) {
+        samples.increment();
+        latencySum.add(unit.toNanos(latency));
+        updateIfDue();
+    }
+
+    /**
+     * Reports a call that was let through and failed, timed out or was rejected downstream.
+     */
+    public void onError() {
+        errors.increment();
+        updateIfDue();
+    }
+
+    @Override
+    public boolean acquire(int permits) {
+        return acquireWithToken(permits) != NOT_ACQUIRED;
+    }
+
+    @Override
+    public boolean tryAcquire(int permits, long timeout, TimeUnit unit) {
+        return tryAcquireWithToken(permits, timeout, unit) != NOT_ACQUIRED;
+    }
+
+    @Override
+    public CompletableFuture<Boolean> acquireAsync(int permits) {
+        return rateLimiter.acquireAsync(permits).thenApply(acquired -> admitted(acquired, permits) != NOT_ACQUIRED);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> acquireAsync(int permits, long timeout, TimeUnit unit) {
+        return acquireAsyncWithToken(permits, timeout, unit).thenApply(token -> token != NOT_ACQUIRED);
+    }
+
+    /**
+     * Like {@link #acquire(int)}, but returns a token to give the permits back with
+     * {@link #refund(int, long)}, or {@link #NOT_ACQUIRED}.
+     */
+    public long acquireWithToken(int permits) {
+        return admitted(rateLimiter.acquire(permits), permits);
+    }
+
+    /**
+     * Like {@link #tryAcquire(int, long, TimeUnit)}, but returns a token to give the permits back
+     * with {@link #refund(int, long)}, or {@link #NOT_ACQUIRED}.
+     */
+    public long tryAcquireWithToken(int permits, long timeout, TimeUnit unit) {
+        return admitted(rateLimiter.tryAcquire(permits, timeout, unit), permits);
+    }
+
+    /**
+     * Like {@link #acquireAsync(int, long, TimeUnit)}, but completes with a token to give the
+     * permits back with {@link #refund(int, long)}, or with {@link #NOT_ACQUIRED}.
+     */
+    public CompletableFuture<Long> acquireAsyncWithToken(int permits, long timeout, TimeUnit unit) {
+        return rateLimiter.acquireAsync(permits, timeout, unit).thenApply(acquired -> admitted(acquired, permits));
+    }
+
+    @Override
+    public void refund(int permits) {
+        rateLimiter.refund(permits);
+    }
+
+    /**
+     * Gives back permits acquired with the given token. They are also taken off what the current
+     * interval used if they were acquired in it.
+     */
+    public void refund(int permits, long token) {
+        if (token < 0) {
+            throw new IllegalArgumentException("Not the token of an acquisition: " + token);
+        }
+        if (token == interval) {
+            admitted.add(-permits);
+        }
+        rateLimiter.refund(permits);
+    }
+
+    @Override
+    public void setMetrics(RateLimiterMetrics metrics) {
+        rateLimiter.setMetrics(metrics);
+    }
+
+    /**
+     * Sets the current rate, which is then adjusted from there. Clamped to the configured bounds.
+     */
+    @Override
+    public void setRate(double permitsPerSecond) {
+        this.rate = Math.max(minRate, Math.min(maxRate, permitsPerSecond));
+        rateLimiter.setRate(rate);
+    }
+
+    @Override
+    public double getRate() {
+        return rate;
+    }
+
+    /**
+     * Counts acquired permits as used in the current interval.
+     *
+     * @return the interval, which is the token of the acquisition, or {@link #NOT_ACQUIRED}
+     */
+    private long admitted(boolean acquired, int permits) {
+        if (!acquired) {
+            return NOT_ACQUIRED;
+        }
+        admitted.add(permits);
+        return interval;
+    }
+
+    private void updateIfDue() {
+        long now = clock.nanoTime();
+        if (now - nextUpdate < 0 || !updateLock.tryLock()) {
+            return;
+        }
+        try {
+            if (now - nextUpdate < 0) {
+                return; // Another caller just updated
+            }
+            long elapsed = now - nextUpdate + updateIntervalInNanos;
+            nextUpdate = now + updateIntervalInNanos;
+            interval++;
+            long samples = this.samples.sumThenReset();
+            long errors = this.errors.sumThenReset();
+            long latencySum = this.latencySum.sumThenReset();
+            double admitted = this.admitted.sumThenReset();
+            if (samples == 0 && errors == 0) {
+                return;
+            }
+            double latency = samples == 0 ? 0 : (double) latencySum / samples;
+            if (longTermLatency == 0) {
+                longTermLatency = latency;
+            }
+            double current = rate;
+            boolean limited = admitted >= current * elapsed / TimeUnit.SECONDS.toNanos(1) / 2;
+            double updated = algorithm == Algorithm.AIMD
+                    ? aimd(current, latency, errors, limited)
+                    : gradient(current, latency, errors, limited);
+            if (latency > 0) {
+                longTermLatency += (latency - longTermLatency) * LONG_TERM_WEIGHT;
+            }
+            updated = Math.max(minRate, Math.min(maxRate, updated));
+            if (updated != current) {
+                rate = updated;
+                rateLimiter.setRate(updated);
+            }
+        } finally {
+            updateLock.unlock();
+        }
+    }
+
+    private double aimd(double current, double latency, long errors, boolean limited) {
+        if (errors > 0 || latency > longTermLatency * AIMD_LATENCY_TOLERANCE) {
+            return current * AIMD_BACKOFF;
+        }
+        return limited ? current + maxRate * AIMD_INCREASE : current;
+    }
+
+    private double gradient(double current, double latency, long errors, boolean limited) {
+        double gradient = errors > 0 || latency == 0
+                ? MIN_GRADIENT
+                : Math.max(MIN_GRADIENT, Math.min(1, longTermLatency / latency));
+        double target = current * gradient + (gradient == 1 && limited ? Math.sqrt(current) : 0);
+        return current + (target - current) * GRADIENT_SMOOTHING;
+    }
+}
@@ -0,0 +1,246 @@
+package org.example;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Per-key fixed window rate limiter in which every key shares the same windows, aligned to
+ * multiples of one second of the clock. The state of a key is a single int: the permits it used,
+ * tagged with the window they were used in. The current window is derived from the clock, so when
+ * it ends the counts of all keys become stale at once, without a single write per key, and a
+ * count is only taken into account if its tag is the current window's. {@link #reset()} starts a
+ * new window right away in the same way.
+ * <p>
+ * Keys are stored like in {@link CompactKeyedRateLimiter}, in a segmented open addressed table,
+ * which makes 20 bytes per slot, and a seed per table. A slot with a stale count is reused for new
+ * keys; if all slots a key may probe hold counts of the current window, the key takes over the
+ * lowest count, so that keys crowding a probe window never get more than its slots allow.
+ * <p>
+ * Tags are {@value #TAG_BITS} bits, so a tag comes back every {@value #TAG_CYCLE} windows. To keep
+ * an old count from ever passing for a current one, a segment zeroes its stale counts when it has
+ * not been swept for {@value #SWEEP_INTERVAL} windows, which costs one pass over the segment every
+ * half cycle at most.
+ */
+public class AlignedWindowKeyedRateLimiter {
+    private static final int TAG_BITS = 12;
+    private static final int COUNT_BITS = Integer.SIZE - TAG_BITS;
+    private static final int COUNT_MASK = (1 << COUNT_BITS) - 1;
+    // Tag 0 is left out so that an occupied slot is never 0
+    private static final int TAG_CYCLE = (1 << TAG_BITS) - 1;
+    private static final int SWEEP_INTERVAL = TAG_CYCLE / 2;
+
+    public static final long MAX_PERMITS_PER_WINDOW = COUNT_MASK;
+
+    private final NanoClock clock;
+    private final Segment[] segments;
+    private final int segmentShift;
+    private final long seed = KeyHashing.newSeed();
+    private final long windowSizeInNanos;
+    private final AtomicLong epochOffset = new AtomicLong();
+    private volatile long maxPermits;
+    private volatile double permitsPerSecond;
+
+    public AlignedWindowKeyedRateLimiter(long permitsPerSecond, int expectedKeys) {
+        this(permitsPerSecond, expectedKeys, Runtime.getRuntime().availableProcessors() * 4, NanoClock.SYSTEM);
+    }
+
+    public AlignedWindowKeyedRateLimiter(long permitsPerSecond, int expectedKeys, int concurrencyLevel,
+                                         NanoClock clock) {
+        checkRate(permitsPerSecond);
+        int segmentCount = CompactKeyedRateLimiter.segmentCount(concurrencyLevel);
+        int slotsPerSegment = CompactKeyedRateLimiter.slotsPerSegment(expectedKeys, segmentCount);
+        this.clock = clock;
+        this.windowSizeInNanos = TimeUnit.SECONDS.toNanos(1);
+        this.segments = new Segment[segmentCount];
+        long epoch = epoch();
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment(slotsPerSegment, epoch);
+        }
+        this.segmentShift = Long.SIZE - Integer.numberOfTrailingZeros(segmentCount);
+        this.permitsPerSecond = permitsPerSecond;
+        this.maxPermits = permitsPerSecond;
+    }
+
+    /**
+     * Acquires a permit for an IPv4 (4 bytes) or IPv6 (16 bytes) address in network byte order.
+     */
+    public boolean acquire(byte[] address) {
+        return acquire(KeyHashing.addressHi(address), KeyHashing.addressLo(address), 1);
+    }
+
+    /**
+     * Acquires a permit for an IPv4 address packed into an int, most significant byte first.
+     */
+    public boolean acquireIPv4(int address) {
+        return acquire(0, KeyHashing.ipv4Lo(address), 1);
+    }
+
+    /**
+     * Acquires a permit for an arbitrary key such as an API token.
+     */
+    public boolean acquire(CharSequence key) {
+        return acquire(key, 1);
+    }
+
+    /**
+     * Acquires the given number of permits for an arbitrary key, all or none.
+     */
+    public boolean acquire(CharSequence key, int permits) {
+        return acquire(KeyHashing.hashHi(key), KeyHashing.hashLo(key), permits);
+    }
+
+    /**
+     * Acquires the given number of permits for a 128-bit key, all or none.
+     */
+    public boolean acquire(long keyHi, long keyLo, int permits) {
+        AbstractRateLimiter.checkPermits(permits);
+        long spread = KeyHashing.spread(keyHi, keyLo, seed);
+        Segment segment = segments[segmentShift == Long.SIZE ? 0 : (int) (spread >>> segmentShift)];
+        long epoch = epoch();
+        segment.lock.lock();
+        try {
+            return segment.acquire(keyHi, keyLo, (int) spread, permits, epoch);
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    /**
+     * Starts a new window for every key right away, as if the current one had ended.
+     */
+    public void reset() {
+        epochOffset.incrementAndGet();
+    }
+
+    public void setRate(double permitsPerSecond) {
+        checkRate(permitsPerSecond);
+        this.permitsPerSecond = permitsPerSecond;
+        this.maxPermits = (long) permitsPerSecond;
+    }
+
+    public double getRate() {
+        return permitsPerSecond;
+    }
+
+    /**
+     * Returns the number of occupied slots, including keys whose count is stale.
+     */
+    public long size() {
+        long size = 0;
+        for (Segment segment : segments) {
+            size += segment.size;
+        }
+        return size;
+    }
+
+    private long epoch() {
+        return Math.floorDiv(clock.nanoTime(), windowSizeInNanos) + epochOffset.get();
+    }
+
+    private static int tag(long epoch) {
+        return Math.floorMod(epoch, TAG_CYCLE) + 1;
+    }
+
+    private static void checkRate(double permitsPerSecond) {
+        if (permitsPerSecond < 0 || permitsPerSecond > MAX_PERMITS_PER_WINDOW) {
+            throw new IllegalArgumentException("permitsPerSecond must be between 0 and " + MAX_PERMITS_PER_WINDOW);
+        }
+    }
+
+    private final class Segment {
+        final ReentrantLock lock = new ReentrantLock();
+        final long[] keys;
+        final int[] states;
+        final int mask;
+        volatile int size;
+        // Epoch of the last acquisition and of the last sweep, guarded by lock
+        long lastEpoch;
+        long sweptEpoch;
+
+        Segment(int slots, long epoch) {
+            this.keys = new long[slots * 2];
+            this.states = new int[slots];
+            this.mask = slots - 1;
+            this.lastEpoch = epoch;
+            this.sweptEpoch = epoch;
+        }
+
+        boolean acquire(long keyHi, long keyLo, int hash, int permits, long epoch) {
+            if (epoch < lastEpoch) {
+                epoch = lastEpoch; // A clock read from before a concurrent rollover counts in the new window
+            }
+            sweepIfNeeded(epoch);
+            lastEpoch = epoch;
+            int tag = tag(epoch);
+            int slot = find(keyHi, keyLo, hash, tag);
+            int state = states[slot];
+            int count = state >>> COUNT_BITS == tag ? state & COUNT_MASK : 0;
+            if (count + permits > maxPermits) {
+                return false;
+            }
+            states[slot] = tag << COUNT_BITS | (count + permits);
+            return true;
+        }
+
+        /**
+         * Zeroes the stale counts once in a while, before their tag can come back: a count is at
+         * most {@code 2 * SWEEP_INTERVAL - 1} windows old when the next sweep zeroes it, which is
+         * less than a tag cycle.
+         */
+        private void sweepIfNeeded(long epoch) {
+            boolean idle = epoch - lastEpoch >= SWEEP_INTERVAL;
+            if (!idle && epoch - sweptEpoch < SWEEP_INTERVAL) {
+                return;
+            }
+            // After an idle gap every count is stale, including those with the current tag
+            int tag = idle ? 0 : tag(epoch);
+            for (int slot = 0; slot < states.length; slot++) {
+                int state = states[slot];
+                if (state != 0 && state >>> COUNT_BITS != tag) {
+                    states[slot] = state & ~COUNT_MASK;
+                }
+            }
+            sweptEpoch = epoch;
+        }
+
+        private int find(long keyHi, long keyLo, int hash, int tag) {
+            int reusable = -1;
+            int leastUsed = -1;
+            for (int probe = 0; probe < CompactKeyedRateLimiter.MAX_PROBES; probe++) {
+                int slot = (hash + probe) & mask;
+                int state = states[slot];
+                if (state == 0) {
+                    if (reusable < 0) {
+                        size++;
+                        reusable = slot;
+                    }
+                    return claim(reusable, keyHi, keyLo, tag);
+                }
+                if (keys[slot * 2] == keyHi && keys[slot * 2 + 1] == keyLo) {
+                    return slot;
+                }
+                if (reusable < 0 && (state >>> COUNT_BITS != tag || (state & COUNT_MASK) == 0)) {
+                    reusable = slot;
+                }
+                if (leastUsed < 0 || (state & COUNT_MASK) < (states[leastUsed] & COUNT_MASK)) {
+                    leastUsed = slot;
+                }
+            }
+            if (reusable >= 0) {
+                return claim(reusable, keyHi, keyLo, tag);
+            }
+            // Every slot is in use this window: take one over, keeping its count
+            keys[leastUsed * 2] = keyHi;
+            keys[leastUsed * 2 + 1] = keyLo;
+            return leastUsed;
+        }
+
+        private int claim(int slot, long keyHi, long keyLo, int tag) {
+            keys[slot * 2] = keyHi;
+            keys[slot * 2 + 1] = keyLo;
+            states[slot] = tag << COUNT_BITS; // Occupied, nothing used yet
+            return slot;
+        }
+    }
+}
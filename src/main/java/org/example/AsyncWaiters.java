@@ -0,0 +1,168 @@
+package org.example;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * FIFO queue of asynchronous acquisitions for one limiter. Only the head of the queue is ever
+ * scheduled on the {@link HashedWheelTimer}, at the instant the limiter says its permits free up;
+ * when it gets them the next waiter is tried right away. A pending waiter therefore costs one
+ * queue entry (plus one timer entry if it has a timeout, cancelled once it is settled) rather
+ * than a parked thread.
+ * <p>
+ * The timer only hands work over to the executor, where the limiter is called and the futures
+ * are completed, so that neither a slow limiter nor the callbacks of a future hold up the timer.
+ * Times are read from the limiter's clock: a timer that fires early, by that clock, just
+ * schedules the remaining time again.
+ */
+final class AsyncWaiters {
+    private static final CompletableFuture<Boolean> ACQUIRED = CompletableFuture.completedFuture(true);
+    private static final CompletableFuture<Boolean> DENIED = CompletableFuture.completedFuture(false);
+
+    private final AbstractRateLimiter rateLimiter;
+    private final HashedWheelTimer timer;
+    private final Executor executor;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ArrayDeque<Waiter> waiters = new ArrayDeque<>();
+    private boolean drainScheduled;
+
+    AsyncWaiters(AbstractRateLimiter rateLimiter, HashedWheelTimer timer, Executor executor) {
+        this.rateLimiter = rateLimiter;
+        this.timer = timer;
+        this.executor = executor;
+    }
+
+    CompletableFuture<Boolean> acquire(int permits, long timeoutInNanos) {
+        if (permits > rateLimiter.maxPermits()) {
+            rateLimiter.recordWait(false, 0);
+            return DENIED.copy();
+        }
+        long now = rateLimiter.clock.nanoTime();
+        lock.lock();
+        try {
+            if (waiters.isEmpty()) {
+                long waitInNanos = rateLimiter.tryAcquireOrGetWait(permits, now);
+                if (waitInNanos == 0) {
+                    rateLimiter.recordWait(true, 0);
+                    return ACQUIRED.copy();
+                }
+                if (waitInNanos == Long.MAX_VALUE || waitInNanos > timeoutInNanos) {
+                    rateLimiter.recordWait(false, 0);
+                    return DENIED.copy();
+                }
+                scheduleDrain(waitInNanos);
+            }
+            // Queue behind earlier waiters even if permits are available, so they are served in order
+            Waiter waiter = new Waiter(permits, now,
+                    timeoutInNanos == Long.MAX_VALUE ? Long.MAX_VALUE : now + timeoutInNanos);
+            waiters.add(waiter);
+            if (timeoutInNanos != Long.MAX_VALUE) {
+                scheduleExpiry(waiter, timeoutInNanos);
+            }
+            return waiter.future;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void drain() {
+        List<Waiter> acquired = new ArrayList<>();
+        List<Waiter> denied = new ArrayList<>();
+        long now = rateLimiter.clock.nanoTime();
+        lock.lock();
+        try {
+            drainScheduled = false;
+            while (!waiters.isEmpty()) {
+                Waiter head = waiters.peek();
+                if (head.settled || head.future.isDone()) {
+                    settle(head); // Timed out, or cancelled by the caller
+                    waiters.poll();
+                    continue;
+                }
+                long waitInNanos = rateLimiter.tryAcquireOrGetWait(head.permits, now);
+                if (waitInNanos == 0) {
+                    settle(head);
+                    acquired.add(waiters.poll());
+                } else if (waitInNanos == Long.MAX_VALUE
+                        || head.deadline != Long.MAX_VALUE && waitInNanos > head.deadline - now) {
+                    settle(head);
+                    denied.add(waiters.poll());
+                } else {
+                    scheduleDrain(waitInNanos);
+                    break;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (Waiter waiter : acquired) {
+            rateLimiter.recordWait(true, now - waiter.enqueuedAt);
+            waiter.future.complete(true);
+        }
+        for (Waiter waiter : denied) {
+            rateLimiter.recordWait(false, now - waiter.enqueuedAt);
+            waiter.future.complete(false);
+        }
+    }
+
+    private void expire(Waiter waiter) {
+        long now = rateLimiter.clock.nanoTime();
+        lock.lock();
+        try {
+            if (waiter.settled) {
+                return;
+            }
+            if (waiter.deadline - now > 0) {
+                scheduleExpiry(waiter, waiter.deadline - now);
+                return;
+            }
+            waiter.settled = true;
+        } finally {
+            lock.unlock();
+        }
+        rateLimiter.recordWait(false, now - waiter.enqueuedAt);
+        waiter.future.complete(false);
+        // The expired waiter may have been holding up the ones behind it
+        drain();
+    }
+
+    private void settle(Waiter waiter) {
+        waiter.settled = true;
+        if (waiter.expiry != null) {
+            waiter.expiry.cancel();
+        }
+    }
+
+    private void scheduleDrain(long delayInNanos) {
+        if (!drainScheduled) {
+            drainScheduled = true;
+            timer.schedule(() -> executor.execute(this::drain), delayInNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private void scheduleExpiry(Waiter waiter, long delayInNanos) {
+        waiter.expiry = timer.schedule(() -> executor.execute(() -> expire(waiter)), delayInNanos,
+                TimeUnit.NANOSECONDS);
+    }
+
+    private static final class Waiter {
+        final int permits;
+        final long enqueuedAt;
+        final long deadline;
+        final CompletableFuture<Boolean> future = new CompletableFuture<>();
+        // Guarded by lock, settled once the waiter has been granted its permits or timed out
+        boolean settled;
+        HashedWheelTimer.Timeout expiry;
+
+        Waiter(int permits, long enqueuedAt, long deadline) {
+            this.permits = permits;
+            this.enqueuedAt = enqueuedAt;
+            this.deadline = deadline;
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package org.example;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free token bucket. The whole bucket lives in a single {@code long}: the upper
+ * {@value #TOKEN_BITS} bits hold the whole-token count and the lower {@value #TIMESTAMP_BITS}
+ * bits hold the last refill time in ticks of 1024ns since construction, so {@link #acquire()}
+ * is one CAS loop and never parks.
+ * <p>
+ * Fractional tokens are not stored; the refill timestamp only advances by the time that was
+ * turned into whole tokens, rounded up to the next tick, so the bucket can never over-admit.
+ */
+public class AtomicTokenBucketRateLimiter extends AbstractRateLimiter {
+    private static final int TIMESTAMP_BITS = 44;
+    private static final int TOKEN_BITS = Long.SIZE - TIMESTAMP_BITS;
+    private static final long TIMESTAMP_MASK = (1L << TIMESTAMP_BITS) - 1;
+    private static final int TICK_SHIFT = 10; // 1 tick = 1024 nanoseconds
+
+    public static final long MAX_CAPACITY = (1L << TOKEN_BITS) - 1;
+
+    private final AtomicLong state;
+    private final long capacity;
+    private final long origin;
+    private volatile long refillIntervalInNanos;
+    private volatile double permitsPerSecond;
+
+    public AtomicTokenBucketRateLimiter(long capacity, double permitsPerSecond) {
+        this(capacity, permitsPerSecond, NanoClock.SYSTEM);
+    }
+
+    public AtomicTokenBucketRateLimiter(long capacity, double permitsPerSecond, NanoClock clock) {
+        super(clock);
+        if (capacity < 0 || capacity > MAX_CAPACITY) {
+            throw new IllegalArgumentException("capacity must be between 0 and " + MAX_CAPACITY);
+        }
+        this.capacity = capacity;
+        this.permitsPerSecond = permitsPerSecond;
+        this.refillIntervalInNanos = (long) (1_000_000_000 / permitsPerSecond);
+        this.origin = clock.nanoTime();
+        this.state = new AtomicLong(pack(capacity, 0));
+    }
+
+    @Override
+    protected long acquireOrGetWait(int permits, long now) {
+        if (permits > capacity) {
+            return Long.MAX_VALUE;
+        }
+        long nowTicks = ticks(now);
+        while (true) {
+            long current = state.get();
+            long refilled = refill(current, nowTicks);
+            long tokens = tokensOf(refilled);
+            if (tokens < permits) {
+                return nanosUntilNextToken(refilled, nowTicks) + (permits - tokens - 1) * refillIntervalInNanos;
+            }
+            if (state.compareAndSet(current, pack(tokens - permits, timestampOf(refilled)))) {
+                return 0;
+            }
+        }
+    }
+
+    @Override
+    public void refund(int permits) {
+        checkPermits(permits);
+        while (true) {
+            long current = state.get();
+            long tokens = Math.min(capacity, tokensOf(current) + permits);
+            if (state.compareAndSet(current, pack(tokens, timestampOf(current)))) {
+                break;
+            }
+        }
+        clearDenial();
+    }
+
+    @Override
+    public void setRate(double permitsPerSecond) {
+        this.permitsPerSecond = permitsPerSecond;
+        this.refillIntervalInNanos = (long) (1_000_000_000 / permitsPerSecond);
+        clearDenial();
+    }
+
+    @Override
+    protected long maxPermits() {
+        return capacity;
+    }
+
+    @Override
+    public double getRate() {
+        return permitsPerSecond;
+    }
+
+    private long refill(long current, long nowTicks) {
+        long tokens = tokensOf(current);
+        long lastRefillTicks = timestampOf(current);
+        long elapsedTicks = elapsedTicks(lastRefillTicks, nowTicks);
+        if (elapsedTicks == 0) {
+            return current;
+        }
+        long interval = refillIntervalInNanos;
+        long newTokens = (elapsedTicks << TICK_SHIFT) / interval;
+        if (newTokens == 0) {
+            return current;
+        }
+        if (tokens + newTokens >= capacity) {
+            return pack(capacity, nowTicks);
+        }
+        long consumedTicks = ((newTokens * interval) + (1L << TICK_SHIFT) - 1) >>> TICK_SHIFT;
+        return pack(tokens + newTokens, lastRefillTicks + consumedTicks);
+    }
+
+    private long nanosUntilNextToken(long current, long nowTicks) {
+        long elapsedInNanos = elapsedTicks(timestampOf(current), nowTicks) << TICK_SHIFT;
+        long interval = refillIntervalInNanos;
+        return Math.max(1L << TICK_SHIFT, interval - (elapsedInNanos % interval));
+    }
+
+    private long elapsedTicks(long fromTicks, long toTicks) {
+        long elapsed = (toTicks - fromTicks) & TIMESTAMP_MASK;
+        // Either a caller that read the clock before another thread refilled, which sees a
+        // "negative" elapsed time, or a bucket idle for over half the range of the timestamps
+        // (about 104 days). A fresh clock read is never before the refill, so it tells them apart.
+        if (elapsed > (TIMESTAMP_MASK >>> 1)
+                && ((ticks(clock.nanoTime()) - fromTicks) & TIMESTAMP_MASK) <= (TIMESTAMP_MASK >>> 1)) {
+            return 0;
+        }
+        return elapsed;
+    }
+
+    private long ticks(long nanoTime) {
+        return ((nanoTime - origin) >>> TICK_SHIFT) & TIMESTAMP_MASK;
+    }
+
+    private static long pack(long tokens, long timestampTicks) {
+        return (tokens << TIMESTAMP_BITS) | (timestampTicks & TIMESTAMP_MASK);
+    }
+
+    private static long tokensOf(long state) {
+        return state >>> TIMESTAMP_BITS;
+    }
+
+    private static long timestampOf(long state) {
+        return state & TIMESTAMP_MASK;
+    }
+}
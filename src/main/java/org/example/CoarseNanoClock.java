@@ -0,0 +1,48 @@
+package org.example;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Clock that is read from a volatile field, which a background thread refreshes from
+ * {@link System#nanoTime()} at a fixed resolution. Reading it is as cheap as reading a field, at
+ * the cost of lagging behind the precise clock by up to the resolution, which is harmless for
+ * windows measured in seconds.
+ * <p>
+ * The ticker thread is a daemon; {@link #close()} stops it.
+ */
+public class CoarseNanoClock implements NanoClock, AutoCloseable {
+    private final long resolutionInNanos;
+    private final Thread ticker;
+    private volatile long now;
+    private volatile boolean closed;
+
+    public CoarseNanoClock(long resolution, TimeUnit unit) {
+        if (resolution <= 0) {
+            throw new IllegalArgumentException("resolution must be positive");
+        }
+        this.resolutionInNanos = unit.toNanos(resolution);
+        this.now = System.nanoTime();
+        this.ticker = new Thread(this::tick, "coarse-nano-clock");
+        this.ticker.setDaemon(true);
+        this.ticker.start();
+    }
+
+    @Override
+    public long nanoTime() {
+        return now;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(ticker);
+    }
+
+    private void tick() {
+        while (!closed) {
+            LockSupport.parkNanos(this, resolutionInNanos);
+            now = System.nanoTime();
+        }
+    }
+}
@@ -0,0 +1,577 @@
+package org.example;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Per-key fixed window rate limiter for very large key spaces. Instead of one limiter object per
+ * key, every key takes one slot in a flat, open addressed table of primitive arrays: two longs for
+ * the 128-bit key and one long packing the window start (milliseconds since creation) and the
+ * number of permits used in that window. That is 32 to 64 bytes per expected key once the table
+ * is rounded up to a power of two, and {@code acquire} does not allocate.
+ * <p>
+ * The table is split into segments, each with its own lock and probe sequences that stay inside
+ * the segment. A slot whose window has ended is in the same state as a slot that was never used,
+ * so it is reused for new keys without losing any limit. If all slots a key may probe hold live
+ * windows, the key takes over the least used of them along with its count, like in the
+ * Space-Saving algorithm: the key may then be limited early, but keys crowding a probe window
+ * never get more than its slots allow. Size the table for the number of keys active per window.
+ * Slots are picked with a random seed per table, so clients cannot choose keys that all land in
+ * one probe window.
+ * <p>
+ * Created with a {@code burst}, the limiter paces every key with GCRA, like
+ * {@link GcraRateLimiter}, instead of fixed windows: the state of a key is then its theoretical
+ * arrival time in nanoseconds since creation, and its slot can be reused as soon as that time has
+ * passed. Bursts at window boundaries are gone, at the same 8 bytes of state per key.
+ * <p>
+ * The {@code acquireAll} methods decide a whole batch of keys while taking each segment lock at
+ * most once.
+ * <p>
+ * {@link #checkpoint(Path)} writes the table to a file as it is laid out in memory, and
+ * {@link #restore(Path)} maps it back in after a restart: loading is a bulk copy of the arrays, so
+ * millions of keys resume in milliseconds and clients keep what is left of their windows. Window
+ * starts are relative to when the limiter was created, so the file also records the wall clock
+ * time of the checkpoint, and the windows are moved by the wall clock time that passed until the
+ * restore. Theoretical arrival times are moved the same way.
+ */
+public class CompactKeyedRateLimiter {
+    static final int MAX_PROBES = 32;
+    private static final float LOAD_FACTOR = 0.75f;
+
+    private static final long OCCUPIED = 1L << 63;
+    private static final int COUNT_BITS = 24;
+    private static final long COUNT_MASK = (1L << COUNT_BITS) - 1;
+    private static final long WINDOW_START_MASK = (1L << (63 - COUNT_BITS)) - 1;
+    private static final long TAT_MASK = ~OCCUPIED;
+
+    private static final int CHECKPOINT_MAGIC = 0x524C_434B; // "RLCK"
+    private static final int CHECKPOINT_VERSION = 3;
+    private static final int CHECKPOINT_HEADER_SIZE = 64;
+    // Version 2 had no seed, its tables were laid out with a seed of 0
+    private static final int CHECKPOINT_V2_HEADER_SIZE = 56;
+    // Version 1 had no burst and was always in fixed window mode
+    private static final int CHECKPOINT_V1_HEADER_SIZE = 48;
+
+    public static final long MAX_PERMITS_PER_WINDOW = COUNT_MASK;
+    // Keys take two slots of a Java array
+    private static final int MAX_SLOTS_PER_SEGMENT = 1 << 29;
+
+    private final NanoClock clock;
+    private final Segment[] segments;
+    private final int segmentShift;
+    private final long seed;
+    private final long origin;
+    private final long windowSizeInMillis;
+    // 0 in fixed window mode
+    private final long burst;
+    private volatile long maxPermits;
+    private volatile long emissionIntervalInNanos;
+    private volatile double permitsPerSecond;
+
+    public CompactKeyedRateLimiter(long permitsPerSecond, int expectedKeys) {
+        this(permitsPerSecond, expectedKeys, Runtime.getRuntime().availableProcessors() * 4);
+    }
+
+    public CompactKeyedRateLimiter(long permitsPerSecond, int expectedKeys, int concurrencyLevel) {
+        this(permitsPerSecond, expectedKeys, concurrencyLevel, NanoClock.SYSTEM);
+    }
+
+    public CompactKeyedRateLimiter(long permitsPerSecond, int expectedKeys, int concurrencyLevel, NanoClock clock) {
+        this(permitsPerSecond, 0, clock, segmentCount(concurrencyLevel),
+                slotsPerSegment(expectedKeys, segmentCount(concurrencyLevel)), KeyHashing.newSeed());
+    }
+
+    /**
+     * Creates a limiter that paces every key with GCRA, allowing bursts of up to {@code burst}
+     * permits, instead of counting permits in fixed windows.
+     */
+    public CompactKeyedRateLimiter(double permitsPerSecond, long burst, int expectedKeys, int concurrencyLevel,
+                                   NanoClock clock) {
+        this(permitsPerSecond, checkBurst(burst), clock, segmentCount(concurrencyLevel),
+                slotsPerSegment(expectedKeys, segmentCount(concurrencyLevel)), KeyHashing.newSeed());
+    }
+
+    private CompactKeyedRateLimiter(double permitsPerSecond, long burst, NanoClock clock, int segmentCount,
+                                    int slotsPerSegment, long seed) {
+        checkRate(permitsPerSecond, burst);
+        this.segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment(slotsPerSegment);
+        }
+        this.segmentShift = Long.SIZE - Integer.numberOfTrailingZeros(segmentCount);
+        this.seed = seed;
+        this.burst = burst;
+        this.permitsPerSecond = permitsPerSecond;
+        this.maxPermits = (long) permitsPerSecond;
+        this.emissionIntervalInNanos = burst == 0 ? 0
+                : GcraRateLimiter.checkBurstTolerance(burst, GcraRateLimiter.emissionIntervalInNanos(permitsPerSecond));
+        this.windowSizeInMillis = TimeUnit.SECONDS.toMillis(1);
+        this.clock = clock;
+        this.origin = clock.nanoTime();
+    }
+
+    /**
+     * Acquires a permit for an IPv4 (4 bytes) or IPv6 (16 bytes) address in network byte order.
+     */
+    public boolean acquire(byte[] address) {
+        return acquire(KeyHashing.addressHi(address), KeyHashing.addressLo(address));
+    }
+
+    /**
+     * Acquires a permit for an IPv4 address packed into an int, most significant byte first.
+     */
+    public boolean acquireIPv4(int address) {
+        return acquire(0, KeyHashing.ipv4Lo(address));
+    }
+
+    /**
+     * Acquires a permit for an arbitrary key such as an API token.
+     */
+    public boolean acquire(CharSequence key) {
+        return acquire(KeyHashing.hashHi(key), KeyHashing.hashLo(key));
+    }
+
+    /**
+     * Acquires the given number of permits for an arbitrary key, all or none.
+     */
+    public boolean acquire(CharSequence key, int permits) {
+        return acquire(KeyHashing.hashHi(key), KeyHashing.hashLo(key), permits);
+    }
+
+    /**
+     * Acquires a permit for a 128-bit key.
+     */
+    public boolean acquire(long keyHi, long keyLo) {
+        return acquire(keyHi, keyLo, 1);
+    }
+
+    /**
+     * Acquires the given number of permits for a 128-bit key, all or none.
+     */
+    public boolean acquire(long keyHi, long keyLo, int permits) {
+        AbstractRateLimiter.checkPermits(permits);
+        long spread = KeyHashing.spread(keyHi, keyLo, seed);
+        Segment segment = segments[segmentIndex(spread)];
+        long now = now();
+        segment.lock.lock();
+        try {
+            return segment.acquire(keyHi, keyLo, (int) spread, permits, now);
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    /**
+     * Acquires one permit for each key, in order, as if {@link #acquire(CharSequence)} was called
+     * for every key.
+     *
+     * @return the indexes of the keys whose permit was acquired
+     */
+    public BitSet acquireAll(CharSequence[] keys) {
+        long[] keysHi = new long[keys.length];
+        long[] keysLo = new long[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            keysHi[i] = KeyHashing.hashHi(keys[i]);
+            keysLo[i] = KeyHashing.hashLo(keys[i]);
+        }
+        return acquireAll(keysHi, keysLo, keys.length);
+    }
+
+    /**
+     * Acquires one permit for each IPv4 or IPv6 address, in order, as if {@link #acquire(byte[])}
+     * was called for every address.
+     *
+     * @return the indexes of the addresses whose permit was acquired
+     */
+    public BitSet acquireAll(byte[][] addresses) {
+        long[] keysHi = new long[addresses.length];
+        long[] keysLo = new long[addresses.length];
+        for (int i = 0; i < addresses.length; i++) {
+            keysHi[i] = KeyHashing.addressHi(addresses[i]);
+            keysLo[i] = KeyHashing.addressLo(addresses[i]);
+        }
+        return acquireAll(keysHi, keysLo, addresses.length);
+    }
+
+    /**
+     * Acquires one permit for each of the first {@code count} 128-bit keys.
+     *
+     * @return the indexes of the keys whose permit was acquired
+     */
+    public BitSet acquireAll(long[] keysHi, long[] keysLo, int count) {
+        // Stable counting sort of the keys by segment, so every segment is locked once and a key
+        // that appears several times is still decided in request order
+        int[] spreads = new int[count];
+        int[] segmentIndexes = new int[count];
+        int[] segmentStarts = new int[segments.length + 1];
+        for (int i = 0; i < count; i++) {
+            long spread = KeyHashing.spread(keysHi[i], keysLo[i], seed);
+            spreads[i] = (int) spread;
+            segmentIndexes[i] = segmentIndex(spread);
+            segmentStarts[segmentIndexes[i] + 1]++;
+        }
+        for (int i = 0; i < segments.length; i++) {
+            segmentStarts[i + 1] += segmentStarts[i];
+        }
+        int[] order = new int[count];
+        int[] next = segmentStarts.clone();
+        for (int i = 0; i < count; i++) {
+            order[next[segmentIndexes[i]]++] = i;
+        }
+
+        BitSet allowed = new BitSet(count);
+        long now = now();
+        for (int s = 0; s < segments.length; s++) {
+            if (segmentStarts[s] == segmentStarts[s + 1]) {
+                continue;
+            }
+            Segment segment = segments[s];
+            segment.lock.lock();
+            try {
+                for (int i = segmentStarts[s]; i < segmentStarts[s + 1]; i++) {
+                    int key = order[i];
+                    if (segment.acquire(keysHi[key], keysLo[key], spreads[key], 1, now)) {
+                        allowed.set(key);
+                    }
+                }
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+        return allowed;
+    }
+
+    public void setRate(double permitsPerSecond) {
+        checkRate(permitsPerSecond, burst);
+        if (burst != 0) {
+            this.emissionIntervalInNanos = GcraRateLimiter.checkBurstTolerance(burst,
+                    GcraRateLimiter.emissionIntervalInNanos(permitsPerSecond));
+        }
+        this.permitsPerSecond = permitsPerSecond;
+        this.maxPermits = (long) permitsPerSecond;
+    }
+
+    public double getRate() {
+        return permitsPerSecond;
+    }
+
+    /**
+     * Returns the number of occupied slots, including keys whose window has already ended or
+     * that are back at rest.
+     */
+    public long size() {
+        long size = 0;
+        for (Segment segment : segments) {
+            size += segment.size;
+        }
+        return size;
+    }
+
+    /**
+     * Writes the state of every key to the given file, replacing it atomically once it is
+     * complete. Each segment is copied under its lock, so every key is saved in a consistent
+     * state while requests for other segments go on.
+     */
+    public void checkpoint(Path file) throws IOException {
+        checkpoint(file, NanoClock.WALL);
+    }
+
+    void checkpoint(Path file, NanoClock wallClock) throws IOException {
+        int slotsPerSegment = segments[0].states.length;
+        long segmentBytes = slotsPerSegment * 3L * Long.BYTES;
+        long sizesBytes = (segments.length * Integer.BYTES + Long.BYTES - 1) / Long.BYTES * Long.BYTES;
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    CHECKPOINT_HEADER_SIZE + sizesBytes);
+            header.order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(CHECKPOINT_MAGIC)
+                    .putInt(CHECKPOINT_VERSION)
+                    .putInt(segments.length)
+                    .putInt(slotsPerSegment)
+                    .putLong(windowSizeInMillis)
+                    .putDouble(permitsPerSecond)
+                    .putLong(now())
+                    .putLong(TimeUnit.NANOSECONDS.toMillis(wallClock.nanoTime()))
+                    .putLong(burst)
+                    .putLong(seed);
+            long position = CHECKPOINT_HEADER_SIZE + sizesBytes;
+            for (Segment segment : segments) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, position, segmentBytes);
+                buffer.order(ByteOrder.LITTLE_ENDIAN);
+                segment.lock.lock();
+                try {
+                    header.putInt(segment.size);
+                    buffer.asLongBuffer().put(segment.keys).put(segment.states);
+                } finally {
+                    segment.lock.unlock();
+                }
+                buffer.force();
+                position += segmentBytes;
+            }
+            header.force();
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Creates a limiter from a file written by {@link #checkpoint(Path)}, with the same table size
+     * and rate, in which every key has what was left of its window minus the time that passed
+     * since the checkpoint.
+     */
+    public static CompactKeyedRateLimiter restore(Path file) throws IOException {
+        return restore(file, NanoClock.SYSTEM);
+    }
+
+    public static CompactKeyedRateLimiter restore(Path file, NanoClock clock) throws IOException {
+        return restore(file, clock, NanoClock.WALL);
+    }
+
+    static CompactKeyedRateLimiter restore(Path file, NanoClock clock, NanoClock wallClock) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    Math.min(channel.size(), CHECKPOINT_HEADER_SIZE));
+            header.order(ByteOrder.LITTLE_ENDIAN);
+            if (header.limit() < CHECKPOINT_V1_HEADER_SIZE || header.getInt() != CHECKPOINT_MAGIC) {
+                throw new IOException("Not a rate limiter checkpoint: " + file);
+            }
+            int version = header.getInt();
+            int headerSize = version == 1 ? CHECKPOINT_V1_HEADER_SIZE
+                    : version == 2 ? CHECKPOINT_V2_HEADER_SIZE : CHECKPOINT_HEADER_SIZE;
+            if (version < 1 || version > CHECKPOINT_VERSION || header.limit() < headerSize) {
+                throw new IOException("Unsupported rate limiter checkpoint version " + version + ": " + file);
+            }
+            int segmentCount = header.getInt();
+            int slotsPerSegment = header.getInt();
+            long windowSizeInMillis = header.getLong();
+            double permitsPerSecond = header.getDouble();
+            long checkpointTime = header.getLong();
+            long elapsedInMillis = Math.max(0,
+                    TimeUnit.NANOSECONDS.toMillis(wallClock.nanoTime()) - header.getLong());
+            long burst = version == 1 ? 0 : header.getLong();
+            long seed = version < 3 ? 0 : header.getLong();
+            // Everything the header says is checked before anything is allocated from it
+            if (segmentCount <= 0 || Integer.bitCount(segmentCount) != 1 || slotsPerSegment < MAX_PROBES
+                    || slotsPerSegment > MAX_SLOTS_PER_SEGMENT || Integer.bitCount(slotsPerSegment) != 1) {
+                throw new IOException("Corrupt rate limiter checkpoint: " + file);
+            }
+            long sizesBytes = (segmentCount * (long) Integer.BYTES + Long.BYTES - 1) / Long.BYTES * Long.BYTES;
+            long segmentBytes = slotsPerSegment * 3L * Long.BYTES;
+            if (channel.size() != headerSize + sizesBytes + segmentCount * segmentBytes) {
+                throw new IOException("Truncated rate limiter checkpoint: " + file);
+            }
+            if (windowSizeInMillis != TimeUnit.SECONDS.toMillis(1)) {
+                throw new IOException("Checkpoint has a different window size: " + windowSizeInMillis);
+            }
+            CompactKeyedRateLimiter rateLimiter;
+            try {
+                rateLimiter = new CompactKeyedRateLimiter(permitsPerSecond, burst == 0 ? 0 : checkBurst(burst),
+                        clock, segmentCount, slotsPerSegment, seed);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Corrupt rate limiter checkpoint: " + file, e);
+            }
+            long now = rateLimiter.now();
+            MappedByteBuffer sizes = channel.map(FileChannel.MapMode.READ_ONLY, headerSize, sizesBytes);
+            sizes.order(ByteOrder.LITTLE_ENDIAN);
+            long position = headerSize + sizesBytes;
+            for (Segment segment : rateLimiter.segments) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, segmentBytes);
+                buffer.order(ByteOrder.LITTLE_ENDIAN);
+                buffer.asLongBuffer().get(segment.keys).get(segment.states);
+                segment.size = sizes.getInt();
+                if (segment.size < 0 || segment.size > slotsPerSegment) {
+                    throw new IOException("Corrupt rate limiter checkpoint: " + file);
+                }
+                if (burst == 0) {
+                    rateLimiter.rebase(segment.states, checkpointTime, elapsedInMillis, now);
+                } else {
+                    rebaseTats(segment.states, checkpointTime, TimeUnit.MILLISECONDS.toNanos(elapsedInMillis), now);
+                }
+                position += segmentBytes;
+            }
+            return rateLimiter;
+        }
+    }
+
+    /**
+     * Moves the windows of restored states from the timeline of the checkpointed limiter to the
+     * timeline of this one.
+     */
+    private void rebase(long[] states, long checkpointInMillis, long elapsedInMillis, long nowInMillis) {
+        for (int slot = 0; slot < states.length; slot++) {
+            long state = states[slot];
+            if (state == 0) {
+                continue;
+            }
+            long windowStart = (state >>> COUNT_BITS) & WINDOW_START_MASK;
+            long age = (checkpointInMillis - windowStart) & WINDOW_START_MASK;
+            if (age > (WINDOW_START_MASK >>> 1)) {
+                age = 0; // Started by a clock read after the checkpoint time was taken
+            }
+            age = Math.min(windowSizeInMillis, age + elapsedInMillis);
+            // An expired slot stays occupied, it may be part of the probe sequence of other keys
+            states[slot] = pack((nowInMillis - age) & WINDOW_START_MASK,
+                    age == windowSizeInMillis ? 0 : state & COUNT_MASK);
+        }
+    }
+
+    /**
+     * Moves the theoretical arrival times of restored states to the timeline of this limiter. A
+     * key that would be back at rest by now keeps its slot, at rest.
+     */
+    private static void rebaseTats(long[] states, long checkpointInNanos, long elapsedInNanos, long nowInNanos) {
+        for (int slot = 0; slot < states.length; slot++) {
+            long state = states[slot];
+            if (state == 0) {
+                continue;
+            }
+            long ahead = Math.max(0, (state & TAT_MASK) - checkpointInNanos - elapsedInNanos);
+            states[slot] = OCCUPIED | (nowInNanos + ahead);
+        }
+    }
+
+    private static void checkRate(double permitsPerSecond, long burst) {
+        if (burst == 0 && !(permitsPerSecond >= 0 && permitsPerSecond <= MAX_PERMITS_PER_WINDOW)) {
+            throw new IllegalArgumentException("permitsPerSecond must be between 0 and " + MAX_PERMITS_PER_WINDOW);
+        }
+        if (burst != 0 && !(permitsPerSecond > 0)) {
+            throw new IllegalArgumentException("permitsPerSecond must be positive: " + permitsPerSecond);
+        }
+    }
+
+    private static long checkBurst(long burst) {
+        if (burst <= 0 || burst > MAX_PERMITS_PER_WINDOW) {
+            throw new IllegalArgumentException("burst must be between 1 and " + MAX_PERMITS_PER_WINDOW);
+        }
+        return burst;
+    }
+
+    static int segmentCount(int concurrencyLevel) {
+        return Integer.highestOneBit(Math.max(1, concurrencyLevel - 1) << 1);
+    }
+
+    static int slotsPerSegment(int expectedKeys, int segmentCount) {
+        return Integer.highestOneBit(Math.max(MAX_PROBES, (int) (expectedKeys / LOAD_FACTOR / segmentCount) - 1) << 1);
+    }
+
+    private int segmentIndex(long spread) {
+        return segmentShift == Long.SIZE ? 0 : (int) (spread >>> segmentShift);
+    }
+
+    /**
+     * Returns the current time in the unit of the states: milliseconds since creation in fixed
+     * window mode, nanoseconds since creation in GCRA mode.
+     */
+    private long now() {
+        long elapsed = clock.nanoTime() - origin;
+        return burst == 0 ? TimeUnit.NANOSECONDS.toMillis(elapsed) & WINDOW_START_MASK : elapsed & TAT_MASK;
+    }
+
+    private boolean isExpired(long state, long now) {
+        if (burst != 0) {
+            return (state & TAT_MASK) <= now; // Back at rest
+        }
+        long windowStart = (state >>> COUNT_BITS) & WINDOW_START_MASK;
+        long elapsed = (now - windowStart) & WINDOW_START_MASK;
+        // Past the midpoint the difference is negative: the window was started by a later clock read
+        return elapsed >= windowSizeInMillis && elapsed <= (WINDOW_START_MASK >>> 1);
+    }
+
+    private static long pack(long windowStartInMillis, long count) {
+        return OCCUPIED | (windowStartInMillis << COUNT_BITS) | count;
+    }
+
+    private final class Segment {
+        final ReentrantLock lock = new ReentrantLock();
+        final long[] keys;
+        final long[] states;
+        final int mask;
+        volatile int size;
+
+        Segment(int slots) {
+            this.keys = new long[slots * 2];
+            this.states = new long[slots];
+            this.mask = slots - 1;
+        }
+
+        boolean acquire(long keyHi, long keyLo, int hash, int permits, long now) {
+            int slot = find(keyHi, keyLo, hash, now);
+            long state = states[slot];
+            if (burst != 0) {
+                if (permits > burst) {
+                    return false;
+                }
+                long interval = emissionIntervalInNanos;
+                long tat = Math.max(state & TAT_MASK, now) + permits * interval;
+                if (tat - burst * interval > now) {
+                    return false;
+                }
+                states[slot] = OCCUPIED | tat;
+                return true;
+            }
+            long count = isExpired(state, now) ? 0 : state & COUNT_MASK;
+            if (count + permits > maxPermits) {
+                return false;
+            }
+            long windowStart = count == 0 ? now : (state >>> COUNT_BITS) & WINDOW_START_MASK;
+            states[slot] = pack(windowStart, count + permits);
+            return true;
+        }
+
+        private int find(long keyHi, long keyLo, int hash, long now) {
+            int reusable = -1;
+            int leastUsed = -1;
+            for (int probe = 0; probe < MAX_PROBES; probe++) {
+                int slot = (hash + probe) & mask;
+                long state = states[slot];
+                if (state == 0) {
+                    if (reusable < 0) {
+                        size++;
+                        reusable = slot;
+                    }
+                    return claim(reusable, keyHi, keyLo, now);
+                }
+                if (keys[slot * 2] == keyHi && keys[slot * 2 + 1] == keyLo) {
+                    return slot;
+                }
+                if (reusable < 0 && isExpired(state, now)) {
+                    reusable = slot;
+                }
+                if (leastUsed < 0 || used(state) < used(states[leastUsed])) {
+                    leastUsed = slot;
+                }
+            }
+            if (reusable >= 0) {
+                return claim(reusable, keyHi, keyLo, now);
+            }
+            // Every slot is live: take one over, keeping its count so that no limit is lifted
+            keys[leastUsed * 2] = keyHi;
+            keys[leastUsed * 2 + 1] = keyLo;
+            return leastUsed;
+        }
+
+        private long used(long state) {
+            return burst != 0 ? state & TAT_MASK : state & COUNT_MASK;
+        }
+
+        private int claim(int slot, long keyHi, long keyLo, long now) {
+            keys[slot * 2] = keyHi;
+            keys[slot * 2 + 1] = keyLo;
+            // Occupied with an already ended window or at rest, which is what a new key looks like
+            states[slot] = burst != 0
+                    ? OCCUPIED | now
+                    : pack((now - windowSizeInMillis) & WINDOW_START_MASK, 0);
+            return slot;
+        }
+    }
+}
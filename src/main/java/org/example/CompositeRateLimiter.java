@@ -0,0 +1,108 @@
+package org.example;
+
+import java.util.List;
+
+/**
+ * Rate limiter that only grants permits that every one of its limiters grants, such as a per-user
+ * limit together with a global cap. The limiters are asked one after the other and each takes the
+ * permits right away; as soon as one of them says no, the permits already taken are refunded, so
+ * a denied request never uses up any limit. Only one limiter lock is held at any time, so
+ * composites that share limiters in any order cannot deadlock.
+ * <p>
+ * Put the limiter that denies most often, usually the most specific one, first: requests it
+ * denies then never touch the shared, contended limiters further down the list. All limiters
+ * should use the same clock as the composite.
+ * <p>
+ * Limiters of this package say how long a denied request has to wait, so that blocking and
+ * asynchronous callers of the composite sleep just that long. They are asked the way
+ * {@code acquire} asks them, so their cached denials are used and their metrics count every
+ * decision. Other limiters, such as an {@link AdaptiveRateLimiter}, are asked through
+ * {@link RateLimiter#acquire(int)}; when one of them denies, the wait is estimated as the time
+ * its current rate takes to produce the permits.
+ */
+public class CompositeRateLimiter extends AbstractRateLimiter {
+    private final RateLimiter[] rateLimiters;
+
+    public CompositeRateLimiter(RateLimiter... rateLimiters) {
+        this(List.of(rateLimiters));
+    }
+
+    public CompositeRateLimiter(List<? extends RateLimiter> rateLimiters) {
+        this(rateLimiters, NanoClock.SYSTEM);
+    }
+
+    public CompositeRateLimiter(List<? extends RateLimiter> rateLimiters, NanoClock clock) {
+        // Its limiters can free up permits on their own, through refunds and rate changes
+        super(clock, false);
+        if (rateLimiters.isEmpty()) {
+            throw new IllegalArgumentException("rateLimiters must not be empty");
+        }
+        this.rateLimiters = rateLimiters.toArray(new RateLimiter[0]);
+    }
+
+    @Override
+    protected long acquireOrGetWait(int permits, long now) {
+        for (int i = 0; i < rateLimiters.length; i++) {
+            long waitInNanos = acquireOrGetWait(rateLimiters[i], permits, now);
+            if (waitInNanos != 0) {
+                for (int j = i - 1; j >= 0; j--) {
+                    rateLimiters[j].refund(permits);
+                }
+                return waitInNanos;
+            }
+        }
+        return 0;
+    }
+
+    private static long acquireOrGetWait(RateLimiter rateLimiter, int permits, long now) {
+        if (rateLimiter instanceof AbstractRateLimiter) {
+            return ((AbstractRateLimiter) rateLimiter).tryAcquireAndRecord(permits, now);
+        }
+        if (rateLimiter.acquire(permits)) {
+            return 0;
+        }
+        // Long.MAX_VALUE would mean never, but the limiter may still grant the permits later
+        double waitInNanos = Math.ceil(permits * 1_000_000_000.0 / rateLimiter.getRate());
+        return waitInNanos >= Long.MAX_VALUE ? Long.MAX_VALUE - 1 : Math.max(1, (long) waitInNanos);
+    }
+
+    @Override
+    public void refund(int permits) {
+        for (RateLimiter rateLimiter : rateLimiters) {
+            rateLimiter.refund(permits);
+        }
+    }
+
+    @Override
+    protected long maxPermits() {
+        long maxPermits = Long.MAX_VALUE;
+        for (RateLimiter rateLimiter : rateLimiters) {
+            if (rateLimiter instanceof AbstractRateLimiter) {
+                maxPermits = Math.min(maxPermits, ((AbstractRateLimiter) rateLimiter).maxPermits());
+            }
+        }
+        return maxPermits;
+    }
+
+    /**
+     * Sets the rate of every limiter of the composite.
+     */
+    @Override
+    public void setRate(double permitsPerSecond) {
+        for (RateLimiter rateLimiter : rateLimiters) {
+            rateLimiter.setRate(permitsPerSecond);
+        }
+    }
+
+    /**
+     * Returns the lowest rate of the limiters of the composite.
+     */
+    @Override
+    public double getRate() {
+        double rate = Double.MAX_VALUE;
+        for (RateLimiter rateLimiter : rateLimiters) {
+            rate = Math.min(rate, rateLimiter.getRate());
+        }
+        return rate;
+    }
+}
@@ -0,0 +1,222 @@
+package org.example;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Limits the number of calls in flight at the same time, rather than the number of calls per
+ * second. Each call takes a {@link Permit} and closes it when it is done:
+ * <pre>{@code
+ * try (Permit permit = limiter.tryAcquire()) {
+ *     if (permit == null) {
+ *         return reject();
+ *     }
+ *     return call();
+ * }
+ * }</pre>
+ * Taking and releasing a slot is a compare-and-set on a counter. Blocked callers of
+ * {@link #tryAcquire(long, TimeUnit)} line up on a fair lock like those of the rate limiters, and
+ * only the one at the head is woken when a slot frees up. A fair limiter never lets a new caller
+ * take a slot while others are waiting; an unfair one lets it barge in, which is cheaper under
+ * load.
+ * <p>
+ * The {@code tryAcquire} variants taking a {@link RateLimiter} guard a call by both limits at
+ * once: the slot is taken first, and given back if the rate limiter denies the permits.
+ */
+public class ConcurrencyLimiter {
+    static final int ACQUIRED = 0;
+    static final int DENIED = 1;
+    static final int RETIRED = 2;
+    // Value of inFlight once a keyed limiter has been dropped, no slot can be taken from it anymore
+    private static final int RETIRED_IN_FLIGHT = -1;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final boolean fair;
+    private final NanoClock clock;
+    // Fair lock queueing the blocked callers, only its holder parks until a slot frees up
+    private final ReentrantLock gate = new ReentrantLock(true);
+    private final Consumer<ConcurrencyLimiter> onIdle;
+    private volatile int maxConcurrency;
+    private volatile Thread waiter;
+
+    public ConcurrencyLimiter(int maxConcurrency) {
+        this(maxConcurrency, false);
+    }
+
+    public ConcurrencyLimiter(int maxConcurrency, boolean fair) {
+        this(maxConcurrency, fair, NanoClock.SYSTEM);
+    }
+
+    public ConcurrencyLimiter(int maxConcurrency, boolean fair, NanoClock clock) {
+        this(maxConcurrency, fair, clock, null);
+    }
+
+    /**
+     * Creates a limiter that is retired, and passed to {@code onIdle}, as soon as nothing is in
+     * flight or waiting anymore. Used by {@link KeyedConcurrencyLimiter}.
+     */
+    ConcurrencyLimiter(int maxConcurrency, boolean fair, NanoClock clock, Consumer<ConcurrencyLimiter> onIdle) {
+        checkMaxConcurrency(maxConcurrency);
+        this.maxConcurrency = maxConcurrency;
+        this.fair = fair;
+        this.clock = clock;
+        this.onIdle = onIdle;
+    }
+
+    /**
+     * Takes a slot if one is free, without waiting.
+     *
+     * @return the permit holding the slot, or null if all slots are taken
+     */
+    public Permit tryAcquire() {
+        return acquire(0) == ACQUIRED ? new Permit(this) : null;
+    }
+
+    /**
+     * Takes a slot, waiting for one to free up until the timeout expires.
+     *
+     * @return the permit holding the slot, or null if the timeout expired
+     */
+    public Permit tryAcquire(long timeout, TimeUnit unit) {
+        return acquire(unit.toNanos(timeout)) == ACQUIRED ? new Permit(this) : null;
+    }
+
+    /**
+     * Takes a slot and the given number of permits of the rate limiter, all or nothing, without
+     * waiting. The rate limiter's permits are not given back when the permit is closed.
+     *
+     * @return the permit holding the slot, or null if either limit was reached
+     */
+    public Permit tryAcquire(RateLimiter rateLimiter, int permits) {
+        Permit permit = tryAcquire();
+        if (permit != null && !rateLimiter.acquire(permits)) {
+            permit.close();
+            return null;
+        }
+        return permit;
+    }
+
+    /**
+     * Takes a slot and the given number of permits of the rate limiter, all or nothing, waiting
+     * until the timeout expires. The slot is held while waiting for the rate limiter.
+     *
+     * @return the permit holding the slot, or null if the timeout expired
+     */
+    public Permit tryAcquire(RateLimiter rateLimiter, int permits, long timeout, TimeUnit unit) {
+        long deadline = clock.nanoTime() + unit.toNanos(timeout);
+        Permit permit = tryAcquire(timeout, unit);
+        if (permit != null
+                && !rateLimiter.tryAcquire(permits, deadline - clock.nanoTime(), TimeUnit.NANOSECONDS)) {
+            permit.close();
+            return null;
+        }
+        return permit;
+    }
+
+    /**
+     * Returns the number of slots currently taken.
+     */
+    public int inFlight() {
+        return Math.max(0, inFlight.get());
+    }
+
+    /**
+     * Sets the number of slots. Lowering it does not affect calls already in flight; new calls
+     * are denied until enough of them have finished.
+     */
+    public void setMaxConcurrency(int maxConcurrency) {
+        checkMaxConcurrency(maxConcurrency);
+        this.maxConcurrency = maxConcurrency;
+        LockSupport.unpark(waiter);
+    }
+
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    /**
+     * Takes a slot, waiting at most {@code timeoutInNanos}.
+     *
+     * @return {@link #ACQUIRED}, {@link #DENIED}, or {@link #RETIRED} if this limiter was
+     * dropped by its {@link KeyedConcurrencyLimiter} and a new one must be looked up
+     */
+    int acquire(long timeoutInNanos) {
+        // Only barge in when no one is waiting, unless unfair
+        if (!fair || !gate.isLocked()) {
+            int result = tryIncrement();
+            if (result != DENIED || timeoutInNanos <= 0) {
+                return result;
+            }
+        }
+        long deadline = clock.nanoTime() + timeoutInNanos;
+        try {
+            if (!gate.tryLock(timeoutInNanos, TimeUnit.NANOSECONDS)) {
+                return DENIED;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return DENIED;
+        }
+        int result = DENIED;
+        try {
+            waiter = Thread.currentThread();
+            while (true) {
+                result = tryIncrement();
+                long remaining = deadline - clock.nanoTime();
+                if (result != DENIED || remaining <= 0) {
+                    return result;
+                }
+                clock.parkNanos(this, remaining);
+                if (Thread.currentThread().isInterrupted()) {
+                    return result;
+                }
+            }
+        } finally {
+            waiter = null;
+            gate.unlock();
+            if (result == DENIED) {
+                retireIfIdle(); // A release while this caller was queued did not retire the limiter
+            }
+        }
+    }
+
+    void release() {
+        inFlight.decrementAndGet();
+        Thread waiter = this.waiter;
+        if (waiter != null) {
+            LockSupport.unpark(waiter);
+        } else {
+            retireIfIdle();
+        }
+    }
+
+    private int tryIncrement() {
+        while (true) {
+            int current = inFlight.get();
+            if (current == RETIRED_IN_FLIGHT) {
+                return RETIRED;
+            }
+            if (current >= maxConcurrency) {
+                return DENIED;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return ACQUIRED;
+            }
+        }
+    }
+
+    private void retireIfIdle() {
+        if (onIdle != null && !gate.isLocked() && inFlight.compareAndSet(0, RETIRED_IN_FLIGHT)) {
+            onIdle.accept(this);
+        }
+    }
+
+    static void checkMaxConcurrency(int maxConcurrency) {
+        if (maxConcurrency <= 0) {
+            throw new IllegalArgumentException("maxConcurrency must be positive: " + maxConcurrency);
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package org.example;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fixed window rate limiter shared by every node that uses the same backend and key. Windows are
+ * aligned to the clock, which must be comparable across nodes (by default the wall clock), and
+ * every window has its own counter in the backend, taken from with increment-with-expiry. A
+ * lease lapses at the end of the window it was taken in.
+ */
+public class DistributedFixedWindowRateLimiter extends LeasedRateLimiter {
+    private final long windowSizeInNanos;
+    private volatile long maxPermits;
+    private volatile double permitsPerSecond;
+
+    public DistributedFixedWindowRateLimiter(RateLimitBackend backend, String key, long permitsPerSecond,
+                                             int leaseSize) {
+        this(backend, key, permitsPerSecond, leaseSize, NanoClock.WALL);
+    }
+
+    public DistributedFixedWindowRateLimiter(RateLimitBackend backend, String key, long permitsPerSecond,
+                                             int leaseSize, NanoClock clock) {
+        super(backend, key, leaseSize, clock);
+        this.permitsPerSecond = permitsPerSecond;
+        this.maxPermits = permitsPerSecond;
+        this.windowSizeInNanos = 1_000_000_000; // 1 second in nanoseconds
+    }
+
+    @Override
+    public void setRate(double permitsPerSecond) {
+        this.permitsPerSecond = permitsPerSecond;
+        this.maxPermits = (long) permitsPerSecond;
+        clearDenial();
+    }
+
+    @Override
+    public double getRate() {
+        return permitsPerSecond;
+    }
+
+    @Override
+    protected long maxPermits() {
+        return maxPermits;
+    }
+
+    @Override
+    protected long fetch(long wanted, long now) throws IOException {
+        long window = Math.floorDiv(now, windowSizeInNanos);
+        // Kept for two windows so that nodes whose clocks are slightly behind still find it
+        long ttlMillis = TimeUnit.NANOSECONDS.toMillis(2 * windowSizeInNanos);
+        long used = backend.incrementAndGet(key + ':' + window, wanted, ttlMillis) - wanted;
+        return Math.max(0, Math.min(wanted, maxPermits - used));
+    }
+
+    @Override
+    protected long leaseExpiry(long now) {
+        return (Math.floorDiv(now, windowSizeInNanos) + 1) * windowSizeInNanos;
+    }
+
+    @Override
+    protected long nanosUntilAvailable(long missing, long now) {
+        return leaseExpiry(now) - now;
+    }
+}
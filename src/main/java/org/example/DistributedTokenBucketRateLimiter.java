@@ -0,0 +1,116 @@
+package org.example;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket shared by every node that uses the same backend and key. The whole bucket is one
+ * backend value packing the token count and the last refill time in milliseconds of the clock,
+ * which must be comparable across nodes (by default the wall clock). Tokens are taken with a
+ * read followed by a compare-and-set, retried a few times when another node got there first.
+ * <p>
+ * Tokens leased by a node are out of the bucket, which keeps refilling meanwhile, so together the
+ * nodes may go over the capacity by up to one lease each. A lease lapses after the time the bucket
+ * takes to refill it, so that tokens are never hoarded for longer.
+ */
+public class DistributedTokenBucketRateLimiter extends LeasedRateLimiter {
+    private static final long OCCUPIED = 1L << 63;
+    private static final int TOKEN_BITS = 20;
+    private static final long TOKEN_MASK = (1L << TOKEN_BITS) - 1;
+    private static final long TIMESTAMP_MASK = (1L << (63 - TOKEN_BITS)) - 1;
+    private static final int MAX_CAS_ATTEMPTS = 8;
+
+    public static final long MAX_CAPACITY = TOKEN_MASK;
+
+    private final long capacity;
+    private volatile double permitsPerSecond;
+
+    public DistributedTokenBucketRateLimiter(RateLimitBackend backend, String key, long capacity,
+                                             double permitsPerSecond, int leaseSize) {
+        this(backend, key, capacity, permitsPerSecond, leaseSize, NanoClock.WALL);
+    }
+
+    public DistributedTokenBucketRateLimiter(RateLimitBackend backend, String key, long capacity,
+                                             double permitsPerSecond, int leaseSize, NanoClock clock) {
+        super(backend, key, leaseSize, clock);
+        if (capacity < 0 || capacity > MAX_CAPACITY) {
+            throw new IllegalArgumentException("capacity must be between 0 and " + MAX_CAPACITY);
+        }
+        checkRate(permitsPerSecond);
+        this.capacity = capacity;
+        this.permitsPerSecond = permitsPerSecond;
+    }
+
+    @Override
+    public void setRate(double permitsPerSecond) {
+        checkRate(permitsPerSecond);
+        this.permitsPerSecond = permitsPerSecond;
+        clearDenial();
+    }
+
+    @Override
+    public double getRate() {
+        return permitsPerSecond;
+    }
+
+    @Override
+    protected long maxPermits() {
+        return capacity;
+    }
+
+    @Override
+    protected long fetch(long wanted, long now) throws IOException {
+        long nowInMillis = TimeUnit.NANOSECONDS.toMillis(now) & TIMESTAMP_MASK;
+        double millisPerToken = 1000 / permitsPerSecond;
+        // Once a bucket is full it stays full, so it can expire and come back as a new full one
+        long ttlMillis = (long) Math.ceil(capacity * millisPerToken) + 1000;
+        for (int attempt = 0; attempt < MAX_CAS_ATTEMPTS; attempt++) {
+            long current = backend.get(key);
+            long tokens = capacity;
+            long lastRefillInMillis = nowInMillis;
+            if (current != 0) {
+                tokens = current & TOKEN_MASK;
+                lastRefillInMillis = (current >>> TOKEN_BITS) & TIMESTAMP_MASK;
+                // A node whose clock is behind the one that wrote the bucket just gets no new tokens
+                long newTokens = (long) (Math.max(0, nowInMillis - lastRefillInMillis) / millisPerToken);
+                if (tokens + newTokens >= capacity) {
+                    tokens = capacity;
+                    lastRefillInMillis = nowInMillis;
+                } else if (newTokens > 0) {
+                    // Only the time turned into whole tokens is used up
+                    tokens += newTokens;
+                    lastRefillInMillis = Math.min(nowInMillis,
+                            lastRefillInMillis + (long) Math.ceil(newTokens * millisPerToken));
+                }
+            }
+            long taken = Math.min(tokens, wanted);
+            if (taken == 0) {
+                return 0;
+            }
+            if (backend.compareAndSet(key, current, pack(lastRefillInMillis, tokens - taken), ttlMillis)) {
+                return taken;
+            }
+        }
+        return 0; // Heavily contended, come back after the wait like for an empty bucket
+    }
+
+    @Override
+    protected long leaseExpiry(long now) {
+        return now + nanosUntilAvailable(leaseSize, now);
+    }
+
+    @Override
+    protected long nanosUntilAvailable(long missing, long now) {
+        return (long) Math.ceil(missing * 1_000_000_000 / permitsPerSecond);
+    }
+
+    private static long pack(long lastRefillInMillis, long tokens) {
+        return OCCUPIED | (lastRefillInMillis << TOKEN_BITS) | tokens;
+    }
+
+    private static void checkRate(double permitsPerSecond) {
+        if (!(permitsPerSecond > 0)) {
+            throw new IllegalArgumentException("permitsPerSecond must be positive");
+        }
+    }
+}
@@ -1,92 +1,78 @@
 package org.example;
 
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
 
-public class FixedWindowRateLimiter implements RateLimiter {
+public class FixedWindowRateLimiter extends AbstractRateLimiter {
     private final ReentrantLock lock = new ReentrantLock();
 
     private long currentWindowStart;
     private final long windowSizeInNanos;
 
-    private long maxPermits;
+    private volatile long maxPermits;
     private long permitsUsed;
-    private double permitsPerSecond;
+    private volatile double permitsPerSecond;
 
     public FixedWindowRateLimiter(long permitsPerSecond) {
+        this(permitsPerSecond, NanoClock.SYSTEM);
+    }
+
+    public FixedWindowRateLimiter(long permitsPerSecond, NanoClock clock) {
+        super(clock);
         this.permitsPerSecond = permitsPerSecond;
         this.maxPermits = permitsPerSecond;
         this.windowSizeInNanos = 1_000_000_000; // 1 second in nanoseconds
-        this.currentWindowStart = System.nanoTime();
+        this.currentWindowStart = clock.nanoTime();
         this.permitsUsed = 0;
     }
 
     @Override
-    public boolean acquire() {
-        lock.lock();
+    protected long acquireOrGetWait(int permits, long now) {
+        lock(lock);
         try {
-            long now = System.nanoTime();
             if (now - currentWindowStart >= windowSizeInNanos) {
                 currentWindowStart = now;
                 permitsUsed = 0;
             }
-            if (permitsUsed < maxPermits) {
-                permitsUsed++;
-                return true;
+            long maxPermits = this.maxPermits;
+            if (permits > maxPermits) {
+                return Long.MAX_VALUE;
             }
-            return false;
+            if (permitsUsed + permits <= maxPermits) {
+                permitsUsed += permits;
+                return 0;
+            }
+            return Math.max(1, currentWindowStart + windowSizeInNanos - now);
         } finally {
             lock.unlock();
         }
     }
 
     @Override
-    public boolean tryAcquire(long timeout, TimeUnit unit) {
-        long timeoutInNanos = unit.toNanos(timeout);
-        long deadline = System.nanoTime() + timeoutInNanos;
-        lock.lock();
+    public void refund(int permits) {
+        checkPermits(permits);
+        lock(lock);
         try {
-            while (System.nanoTime() < deadline) {
-                long now = System.nanoTime();
-                if (now - currentWindowStart >= windowSizeInNanos) {
-                    currentWindowStart = now;
-                    permitsUsed = 0;
-                }
-                if (permitsUsed < maxPermits) {
-                    permitsUsed++;
-                    return true;
-                }
-                try {
-                    TimeUnit.NANOSECONDS.sleep(1_000); // Sleep briefly to avoid busy waiting
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                    return false;
-                }
-            }
-            return false;
+            permitsUsed = Math.max(0, permitsUsed - permits);
         } finally {
             lock.unlock();
         }
+        clearDenial();
     }
 
     @Override
     public void setRate(double permitsPerSecond) {
-        lock.lock();
-        try {
-            this.permitsPerSecond = permitsPerSecond;
-            this.maxPermits = (long) permitsPerSecond;
-        } finally {
-            lock.unlock();
-        }
+        this.permitsPerSecond = permitsPerSecond;
+        this.maxPermits = (long) permitsPerSecond;
+        clearDenial();
+    }
+
+    @Override
+    protected long maxPermits() {
+        return maxPermits;
     }
 
     @Override
     public double getRate() {
-        lock.lock();
-        try {
-            return permitsPerSecond;
-        } finally {
-            lock.unlock();
-        }
+        return permitsPerSecond;
     }
 }
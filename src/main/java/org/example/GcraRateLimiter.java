@@ -0,0 +1,118 @@
+package org.example;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rate limiter using the Generic Cell Rate Algorithm. Its whole state is one {@code long}, the
+ * theoretical arrival time (TAT): the instant at which the limiter would be back to rest if
+ * nothing else was admitted. Each permit pushes it one emission interval ({@code 1 / rate}) into
+ * the future, and a request is admitted if the pushed TAT is no more than the burst tolerance
+ * ({@code burst} emission intervals) ahead of now. It behaves like a token bucket of capacity
+ * {@code burst}, but with integer nanosecond arithmetic, so pacing is exact and never drifts, and
+ * a decision is one compare-and-set.
+ * <p>
+ * The same state shape is what {@link CompactKeyedRateLimiter} stores per key in its GCRA mode.
+ */
+public class GcraRateLimiter extends AbstractRateLimiter implements ReservableRateLimiter {
+    // Bound on burst times the emission interval, so that a TAT, at most twice this ahead of now,
+    // never overflows and still compares with now
+    static final long MAX_BURST_TOLERANCE_IN_NANOS = Long.MAX_VALUE / 4;
+
+    private final AtomicLong theoreticalArrivalTime;
+    private final long burst;
+    private volatile long emissionIntervalInNanos;
+    private volatile double permitsPerSecond;
+
+    public GcraRateLimiter(double permitsPerSecond, long burst) {
+        this(permitsPerSecond, burst, NanoClock.SYSTEM);
+    }
+
+    public GcraRateLimiter(double permitsPerSecond, long burst, NanoClock clock) {
+        super(clock);
+        if (burst <= 0) {
+            throw new IllegalArgumentException("burst must be positive: " + burst);
+        }
+        this.burst = burst;
+        this.emissionIntervalInNanos = checkBurstTolerance(burst, emissionIntervalInNanos(permitsPerSecond));
+        this.permitsPerSecond = permitsPerSecond;
+        this.theoreticalArrivalTime = new AtomicLong(clock.nanoTime());
+    }
+
+    @Override
+    protected long acquireOrGetWait(int permits, long now) {
+        if (permits > burst) {
+            return Long.MAX_VALUE;
+        }
+        long interval = emissionIntervalInNanos;
+        while (true) {
+            long tat = theoreticalArrivalTime.get();
+            long newTat = (tat - now > 0 ? tat : now) + permits * interval;
+            long allowAt = newTat - burst * interval;
+            if (allowAt - now > 0) {
+                return allowAt - now;
+            }
+            if (theoreticalArrivalTime.compareAndSet(tat, newTat)) {
+                return 0;
+            }
+        }
+    }
+
+    @Override
+    public Reservation reserve(int permits) {
+        checkPermits(permits);
+        long now = clock.nanoTime();
+        long interval = emissionIntervalInNanos;
+        if (permits > MAX_BURST_TOLERANCE_IN_NANOS / interval) {
+            throw new IllegalArgumentException("permits take too long to reserve at this rate: " + permits);
+        }
+        while (true) {
+            long tat = theoreticalArrivalTime.get();
+            long newTat = (tat - now > 0 ? tat : now) + permits * interval;
+            long readyAt = newTat - burst * interval;
+            if (theoreticalArrivalTime.compareAndSet(tat, newTat)) {
+                return new Reservation(this, clock, permits, readyAt - now > 0 ? readyAt : now);
+            }
+        }
+    }
+
+    @Override
+    public void refund(int permits) {
+        checkPermits(permits);
+        long interval = emissionIntervalInNanos;
+        // A TAT pushed into the past is the same as one at rest, no need to clamp it further
+        theoreticalArrivalTime.addAndGet(-Math.min(permits, burst) * interval);
+        clearDenial();
+    }
+
+    @Override
+    public void setRate(double permitsPerSecond) {
+        this.emissionIntervalInNanos = checkBurstTolerance(burst, emissionIntervalInNanos(permitsPerSecond));
+        this.permitsPerSecond = permitsPerSecond;
+        clearDenial();
+    }
+
+    @Override
+    protected long maxPermits() {
+        return burst;
+    }
+
+    @Override
+    public double getRate() {
+        return permitsPerSecond;
+    }
+
+    static long checkBurstTolerance(long burst, long emissionIntervalInNanos) {
+        if (emissionIntervalInNanos > MAX_BURST_TOLERANCE_IN_NANOS / burst) {
+            throw new IllegalArgumentException("burst of " + burst + " permits is too long at this rate");
+        }
+        return emissionIntervalInNanos;
+    }
+
+    static long emissionIntervalInNanos(double permitsPerSecond) {
+        if (!(permitsPerSecond > 0)) {
+            throw new IllegalArgumentException("permitsPerSecond must be positive: " + permitsPerSecond);
+        }
+        return Math.max(1, Math.round(TimeUnit.SECONDS.toNanos(1) / permitsPerSecond));
+    }
+}
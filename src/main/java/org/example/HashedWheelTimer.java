@@ -0,0 +1,205 @@
+package org.example;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Timer that keeps tasks in a ring of buckets, one bucket per tick, and runs them on a single
+ * daemon thread. Scheduling and cancelling are lock-free enqueues and cost the same for any number
+ * of pending tasks; the price is that tasks run up to one tick late. The thread only ticks while
+ * tasks are pending, and parks until the next one is scheduled otherwise.
+ * <p>
+ * Tasks run on the timer thread and must be short; anything that may block or run user code
+ * belongs on an executor.
+ */
+final class HashedWheelTimer {
+    static final HashedWheelTimer SHARED = new HashedWheelTimer(NanoClock.SYSTEM, 1, TimeUnit.MILLISECONDS, 512);
+
+    private final NanoClock clock;
+    private final long tickInNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+    private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+    private final long start;
+    private final Thread worker;
+    // Set while the worker is parked with nothing to do, so that schedule knows to wake it up
+    private volatile boolean idle;
+    // Only written by the worker
+    private long tick;
+    private volatile int size;
+
+    HashedWheelTimer(NanoClock clock, long tickDuration, TimeUnit unit, int ticksPerWheel) {
+        int buckets = Integer.highestOneBit(Math.max(1, ticksPerWheel - 1) << 1);
+        this.clock = clock;
+        this.tickInNanos = unit.toNanos(tickDuration);
+        this.wheel = new Bucket[buckets];
+        for (int i = 0; i < buckets; i++) {
+            wheel[i] = new Bucket();
+        }
+        this.mask = buckets - 1;
+        this.start = clock.nanoTime();
+        this.worker = new Thread(this::run, "rate-limiter-timer");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    /**
+     * Runs the task once the delay has passed on the timer's clock.
+     */
+    Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        long now = clock.nanoTime();
+        // Capped so that the time from start to the deadline does not overflow
+        long delayInNanos = Math.min(unit.toNanos(delay), Long.MAX_VALUE - (now - start));
+        Timeout timeout = new Timeout(this, task, now + delayInNanos);
+        pending.add(timeout);
+        if (idle) {
+            LockSupport.unpark(worker);
+        }
+        return timeout;
+    }
+
+    /**
+     * Returns the number of tasks in the wheel, not counting the ones scheduled or cancelled
+     * since the last tick.
+     */
+    int size() {
+        return size;
+    }
+
+    private void run() {
+        while (true) {
+            transferPending();
+            removeCancelled();
+            if (size == 0) {
+                idle = true;
+                if (pending.isEmpty()) {
+                    LockSupport.park(this);
+                }
+                idle = false;
+                // Nothing is due in the ticks that passed while parked, skip them
+                tick = Math.max(tick, (clock.nanoTime() - start) / tickInNanos);
+                continue;
+            }
+            long deadline = start + tick * tickInNanos;
+            long now = clock.nanoTime();
+            if (now - deadline < 0) {
+                LockSupport.parkNanos(this, deadline - now);
+                continue;
+            }
+            expire(wheel[(int) (tick & mask)]);
+            tick++;
+        }
+    }
+
+    private void transferPending() {
+        Timeout timeout;
+        while ((timeout = pending.poll()) != null) {
+            if (timeout.cancelled) {
+                continue;
+            }
+            // Rounded up, so that a task never runs before its deadline
+            long dueTick = Math.max(tick, -Math.floorDiv(start - timeout.deadline, tickInNanos));
+            timeout.remainingRounds = (dueTick - tick) / wheel.length;
+            wheel[(int) (dueTick & mask)].add(timeout);
+            size++;
+        }
+    }
+
+    private void removeCancelled() {
+        Timeout timeout;
+        while ((timeout = cancelled.poll()) != null) {
+            if (timeout.bucket != null) {
+                timeout.bucket.remove(timeout);
+                size--;
+            }
+        }
+    }
+
+    private void expire(Bucket bucket) {
+        Timeout timeout = bucket.head;
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            if (timeout.remainingRounds > 0) {
+                timeout.remainingRounds--;
+            } else {
+                bucket.remove(timeout);
+                size--;
+                if (!timeout.cancelled) {
+                    try {
+                        timeout.task.run();
+                    } catch (RuntimeException e) {
+                        // One failing task must not stop the timer for everyone else
+                        worker.getUncaughtExceptionHandler().uncaughtException(worker, e);
+                    }
+                }
+            }
+            timeout = next;
+        }
+    }
+
+    /**
+     * Scheduled task, which can be cancelled until it has run.
+     */
+    static final class Timeout {
+        private final HashedWheelTimer timer;
+        private final Runnable task;
+        private final long deadline;
+        private volatile boolean cancelled;
+        // Only accessed by the worker
+        private long remainingRounds;
+        private Bucket bucket;
+        private Timeout previous;
+        private Timeout next;
+
+        private Timeout(HashedWheelTimer timer, Runnable task, long deadline) {
+            this.timer = timer;
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Keeps the task from running, and frees its slot in the timer on the next tick.
+         */
+        void cancel() {
+            if (!cancelled) {
+                cancelled = true;
+                timer.cancelled.add(this);
+            }
+        }
+    }
+
+    private static final class Bucket {
+        Timeout head;
+        Timeout tail;
+
+        void add(Timeout timeout) {
+            timeout.bucket = this;
+            timeout.previous = tail;
+            if (tail == null) {
+                head = timeout;
+            } else {
+                tail.next = timeout;
+            }
+            tail = timeout;
+        }
+
+        void remove(Timeout timeout) {
+            if (timeout.previous == null) {
+                head = timeout.next;
+            } else {
+                timeout.previous.next = timeout.next;
+            }
+            if (timeout.next == null) {
+                tail = timeout.previous;
+            } else {
+                timeout.next.previous = timeout.previous;
+            }
+            timeout.bucket = null;
+            timeout.previous = null;
+            timeout.next = null;
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package org.example;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Per-key rate limiter for key spaces too large to track exactly, such as the source addresses of
+ * a DDoS. The rate of every key is estimated in fixed memory with a Count-Min Sketch, and only
+ * keys whose estimate goes over {@code promotionThreshold} get an exact
+ * {@link FixedWindowRateLimiter}; all other keys are allowed without any per-key state.
+ * <p>
+ * There is one sketch for the current window and one for the previous window, and a key's
+ * estimate is its count in the current window plus its count in the previous window weighted by
+ * how much of it still overlaps the last second, like {@link SlidingWindowCounterRateLimiter}.
+ * Every counter is tagged with the window it counts in, and reads as 0 in any other window, so
+ * the sketches are never cleared and a window rolls over without a pause, however large they are.
+ * The sketch only ever over-counts, by at most {@code epsilon} times the permits taken by all
+ * keys in a window with probability {@code 1 - delta}, so every key that really goes over the
+ * threshold is promoted. Memory is {@code 2 * ceil(ln(1 / delta))} rows of
+ * {@code e / epsilon} (rounded up to a power of two) longs, plus the promoted limiters, of which
+ * there are at most {@code maximumPromotedKeys}.
+ * <p>
+ * The exact limiter of a key starts empty when the key is promoted, so in the window it is
+ * promoted in a key can get up to {@code promotionThreshold} permits more than its limit.
+ */
+public class HeavyHitterRateLimiter {
+    private static final long DEFAULT_MAXIMUM_PROMOTED_KEYS = 100_000;
+    private static final long EXPIRE_AFTER_IDLE_IN_SECONDS = 60;
+    private static final int COUNT_BITS = 32;
+    private static final long COUNT_MASK = (1L << COUNT_BITS) - 1;
+
+    private final NanoClock clock;
+    private final AtomicLongArray[] sketches = new AtomicLongArray[2];
+    private final int depth;
+    private final int widthMask;
+    private final long origin;
+    private final long windowSizeInNanos;
+    private final long promotionThreshold;
+    private final RateLimiterRegistry<String> promoted;
+    private volatile long permitsPerSecond;
+
+    public HeavyHitterRateLimiter(long permitsPerSecond, long promotionThreshold, double epsilon, double delta) {
+        this(permitsPerSecond, promotionThreshold, epsilon, delta, DEFAULT_MAXIMUM_PROMOTED_KEYS, NanoClock.SYSTEM);
+    }
+
+    public HeavyHitterRateLimiter(long permitsPerSecond, long promotionThreshold, double epsilon, double delta,
+                                  long maximumPromotedKeys, NanoClock clock) {
+        if (promotionThreshold <= 0 || promotionThreshold > permitsPerSecond) {
+            throw new IllegalArgumentException("promotionThreshold must be between 1 and permitsPerSecond");
+        }
+        if (!(epsilon > 0 && epsilon < 1) || !(delta > 0 && delta < 1)) {
+            throw new IllegalArgumentException("epsilon and delta must be between 0 and 1");
+        }
+        int width = Integer.highestOneBit((int) Math.min(1 << 29, Math.ceil(Math.E / epsilon) - 1) << 1);
+        this.depth = (int) Math.ceil(Math.log(1 / delta));
+        if ((long) width * depth > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("epsilon and delta are too small for a sketch that fits in an array");
+        }
+        this.widthMask = width - 1;
+        this.sketches[0] = new AtomicLongArray(width * depth);
+        this.sketches[1] = new AtomicLongArray(width * depth);
+        this.permitsPerSecond = permitsPerSecond;
+        this.promotionThreshold = promotionThreshold;
+        this.windowSizeInNanos = TimeUnit.SECONDS.toNanos(1);
+        this.clock = clock;
+        this.origin = clock.nanoTime();
+        this.promoted = new RateLimiterRegistry<>(key -> new FixedWindowRateLimiter(this.permitsPerSecond, clock),
+                maximumPromotedKeys, EXPIRE_AFTER_IDLE_IN_SECONDS, TimeUnit.SECONDS, clock);
+    }
+
+    public boolean acquire(String key) {
+        return acquire(key, 1);
+    }
+
+    /**
+     * Acquires the given number of permits for the key, all or none.
+     */
+    public boolean acquire(String key, int permits) {
+        AbstractRateLimiter.checkPermits(permits);
+        RateLimiter rateLimiter = promoted.touchIfPresent(key);
+        if (rateLimiter != null) {
+            return rateLimiter.acquire(permits);
+        }
+        long now = clock.nanoTime();
+        long hi = KeyHashing.hashHi(key);
+        long lo = KeyHashing.hashLo(key);
+        long window = window(now);
+        long count = increment(sketches[(int) (window & 1)], window, hi, lo, permits);
+        long estimate = count + previousWindowShare(window, hi, lo, now);
+        if (estimate <= promotionThreshold) {
+            return true;
+        }
+        return promoted.get(key).acquire(permits);
+    }
+
+    /**
+     * Returns the estimated number of permits taken by the key over the last second, which is at
+     * least the real number. Promoted keys are no longer counted here.
+     */
+    public long estimate(String key) {
+        long now = clock.nanoTime();
+        long hi = KeyHashing.hashHi(key);
+        long lo = KeyHashing.hashLo(key);
+        long window = window(now);
+        return count(sketches[(int) (window & 1)], window, hi, lo) + previousWindowShare(window, hi, lo, now);
+    }
+
+    /**
+     * Returns the number of keys that currently have an exact limiter.
+     */
+    public long promotedKeys() {
+        return promoted.size();
+    }
+
+    /**
+     * Sets the limit of keys promoted from now on; keys that already have an exact limiter keep
+     * their limit until it is dropped for being idle.
+     */
+    public void setRate(double permitsPerSecond) {
+        this.permitsPerSecond = (long) permitsPerSecond;
+    }
+
+    public double getRate() {
+        return permitsPerSecond;
+    }
+
+    private long previousWindowShare(long window, long hi, long lo, long now) {
+        long elapsedInWindow = Math.max(0, now - origin - window * windowSizeInNanos);
+        double overlappingRatio = 1 - Math.min(1, (double) elapsedInWindow / windowSizeInNanos);
+        return (long) (count(sketches[(int) ((window + 1) & 1)], window - 1, hi, lo) * overlappingRatio);
+    }
+
+    /**
+     * Conservative update: only rows that are below the new minimum are raised, which keeps the
+     * over-counting of light keys much lower than adding to every row.
+     */
+    private long increment(AtomicLongArray sketch, long window, long hi, long lo, int permits) {
+        long tag = window & COUNT_MASK;
+        long target = Math.min(COUNT_MASK, count(sketch, window, hi, lo) + permits);
+        for (int row = 0; row < depth; row++) {
+            int index = index(row, hi, lo);
+            while (true) {
+                long current = sketch.get(index);
+                // A counter of a later window is left alone by a caller whose clock read is older
+                if (current >>> COUNT_BITS > tag || current >>> COUNT_BITS == tag && (current & COUNT_MASK) >= target
+                        || sketch.compareAndSet(index, current, tag << COUNT_BITS | target)) {
+                    break;
+                }
+            }
+        }
+        return target;
+    }
+
+    private long count(AtomicLongArray sketch, long window, long hi, long lo) {
+        long tag = window & COUNT_MASK;
+        long min = COUNT_MASK;
+        for (int row = 0; row < depth; row++) {
+            long counter = sketch.get(index(row, hi, lo));
+            min = Math.min(min, counter >>> COUNT_BITS == tag ? counter & COUNT_MASK : 0);
+        }
+        return min;
+    }
+
+    private int index(int row, long hi, long lo) {
+        // Double hashing, the two halves of the key hash are independent
+        return row * (widthMask + 1) + (int) ((hi + row * lo) & widthMask);
+    }
+
+    /**
+     * Returns the window {@code now} falls in. Its low 32 bits tag the counters, which last for
+     * over a century of one second windows.
+     */
+    private long window(long now) {
+        return Math.max(0, Math.floorDiv(now - origin, windowSizeInNanos));
+    }
+}
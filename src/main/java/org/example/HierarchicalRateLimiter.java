@@ -0,0 +1,104 @@
+package org.example;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Nested per-key limits, such as tenant, then API key, then endpoint, under a global cap. A
+ * request names one key per level and has to be granted by the limiter of every prefix of its
+ * path: for the path {@code (tenant, apiKey, endpoint)} that is the limiters of
+ * {@code tenant}, {@code tenant/apiKey} and {@code tenant/apiKey/endpoint}, and the global one.
+ * <p>
+ * Like {@link CompositeRateLimiter}, the limiters are asked one at a time and the permits are
+ * refunded to all of them if any one denies. The most specific limiter is asked first and the
+ * global one last, so denied clients rarely touch the shared limiters at all.
+ */
+public class HierarchicalRateLimiter {
+    // Ends the length put before every key of a path, so no two paths have the same registry key
+    private static final char LENGTH_END = ':';
+
+    private final RateLimiter globalRateLimiter;
+    private final List<RateLimiterRegistry<String>> levels;
+
+    public HierarchicalRateLimiter(RateLimiter globalRateLimiter,
+                                   List<Function<String, ? extends RateLimiter>> levelFactories,
+                                   long maximumSize, long expireAfterIdle, TimeUnit unit) {
+        this(globalRateLimiter, levelFactories, maximumSize, expireAfterIdle, unit, NanoClock.SYSTEM);
+    }
+
+    /**
+     * @param globalRateLimiter the limit of all requests together
+     * @param levelFactories for every level, outermost first, creates the limiter of a key at that
+     * level; the key passed in is the one the request named for the level
+     * @param maximumSize the maximum number of limiters kept per level
+     */
+    public HierarchicalRateLimiter(RateLimiter globalRateLimiter,
+                                   List<Function<String, ? extends RateLimiter>> levelFactories,
+                                   long maximumSize, long expireAfterIdle, TimeUnit unit, NanoClock clock) {
+        this.globalRateLimiter = globalRateLimiter;
+        List<RateLimiterRegistry<String>> levels = new ArrayList<>(levelFactories.size());
+        for (Function<String, ? extends RateLimiter> factory : levelFactories) {
+            // Registries are keyed by the whole path, but the factory only needs the last key
+            levels.add(new RateLimiterRegistry<>(path -> factory.apply(lastKey(path)),
+                    maximumSize, expireAfterIdle, unit, clock));
+        }
+        this.levels = List.copyOf(levels);
+    }
+
+    public boolean acquire(String... path) {
+        return acquire(1, path);
+    }
+
+    /**
+     * Acquires the given number of permits from the limiter of every level of the path and from
+     * the global limiter, all or none.
+     *
+     * @param path one key per level, outermost first
+     */
+    public boolean acquire(int permits, String... path) {
+        AbstractRateLimiter.checkPermits(permits);
+        if (path.length != levels.size()) {
+            throw new IllegalArgumentException("path must have one key per level: " + levels.size());
+        }
+        RateLimiter[] rateLimiters = new RateLimiter[levels.size()];
+        StringBuilder prefix = new StringBuilder();
+        for (int i = 0; i < levels.size(); i++) {
+            prefix.append(path[i].length()).append(LENGTH_END).append(path[i]);
+            rateLimiters[i] = levels.get(i).get(prefix.toString());
+        }
+        for (int i = levels.size() - 1; i >= 0; i--) {
+            if (!rateLimiters[i].acquire(permits)) {
+                refund(rateLimiters, i + 1, permits);
+                return false;
+            }
+        }
+        if (!globalRateLimiter.acquire(permits)) {
+            refund(rateLimiters, 0, permits);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the last key of a registry key made of length prefixed keys.
+     */
+    private static String lastKey(String path) {
+        int start = 0;
+        while (true) {
+            int lengthEnd = path.indexOf(LENGTH_END, start);
+            int end = lengthEnd + 1 + Integer.parseInt(path, start, lengthEnd, 10);
+            if (end == path.length()) {
+                return path.substring(lengthEnd + 1);
+            }
+            start = end;
+        }
+    }
+
+    private static void refund(RateLimiter[] rateLimiters, int from, int permits) {
+        for (int i = from; i < rateLimiters.length; i++) {
+            rateLimiters[i].refund(permits);
+        }
+    }
+}
@@ -1,39 +1,145 @@
 package org.example;
 
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 
 public class IPBasedRateLimiter {
-    private final Map<String, RateLimiter> ipRateLimiters = new ConcurrentHashMap<>();
+    private static final long DEFAULT_MAXIMUM_SIZE = 1_000_000;
+    private static final long DEFAULT_EXPIRE_AFTER_IDLE_IN_SECONDS = 60;
+    private static final long WINDOW_SIZE_IN_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final String BACKEND_KEY_PREFIX = "ip:";
+
+    private final RateLimiterRegistry<String> ipRateLimiters;
+    // Rates set through setRate, kept so that an evicted limiter comes back with the same rate
+    private final IdleExpiringMap<String, Double> ipRates;
+    private final NanoClock clock;
+    private final RateLimitBackend backend;
+    private final int leaseSize;
     private long permitsPerSecond;
+    private volatile RateLimiterMetrics metrics;
 
     public IPBasedRateLimiter(long permitsPerSecond) {
+        this(permitsPerSecond, DEFAULT_MAXIMUM_SIZE, DEFAULT_EXPIRE_AFTER_IDLE_IN_SECONDS, TimeUnit.SECONDS);
+    }
+
+    public IPBasedRateLimiter(long permitsPerSecond, long maximumSize, long expireAfterIdle, TimeUnit unit) {
+        this(permitsPerSecond, maximumSize, expireAfterIdle, unit, NanoClock.SYSTEM);
+    }
+
+    public IPBasedRateLimiter(long permitsPerSecond, long maximumSize, long expireAfterIdle, TimeUnit unit,
+                              NanoClock clock) {
+        this(permitsPerSecond, maximumSize, expireAfterIdle, unit, clock, null, 0);
+    }
+
+    /**
+     * Creates a limiter whose per-IP limits are shared with every other node using the same
+     * backend, see {@link DistributedFixedWindowRateLimiter}.
+     */
+    public IPBasedRateLimiter(long permitsPerSecond, RateLimitBackend backend, int leaseSize) {
+        this(permitsPerSecond, DEFAULT_MAXIMUM_SIZE, DEFAULT_EXPIRE_AFTER_IDLE_IN_SECONDS, TimeUnit.SECONDS,
+                NanoClock.WALL, backend, leaseSize);
+    }
+
+    /**
+     * Creates a limiter whose per-IP limits are shared through the given backend, or enforced by
+     * this node alone if it is null. With a backend the clock must be comparable across nodes.
+     */
+    public IPBasedRateLimiter(long permitsPerSecond, long maximumSize, long expireAfterIdle, TimeUnit unit,
+                              NanoClock clock, RateLimitBackend backend, int leaseSize) {
+        if (unit.toNanos(expireAfterIdle) < WINDOW_SIZE_IN_NANOS) {
+            throw new IllegalArgumentException("expireAfterIdle must be at least one window (1 second)");
+        }
         this.permitsPerSecond = permitsPerSecond;
+        this.clock = clock;
+        this.backend = backend;
+        this.leaseSize = leaseSize;
+        // Rates do not expire, only the least recently set or used go once there are too many
+        this.ipRates = new IdleExpiringMap<>(maximumSize, Long.MAX_VALUE, TimeUnit.NANOSECONDS, clock);
+        this.ipRateLimiters = new RateLimiterRegistry<>(this::createRateLimiter, maximumSize, expireAfterIdle, unit, clock);
+    }
+
+    private RateLimiter createRateLimiter(String ip) {
+        RateLimiter rateLimiter = backend == null
+                ? new FixedWindowRateLimiter(permitsPerSecond, clock)
+                : new DistributedFixedWindowRateLimiter(backend, BACKEND_KEY_PREFIX + ip, permitsPerSecond, leaseSize,
+                clock);
+        Double rate = ipRates.touchIfPresent(ip);
+        if (rate != null) {
+            rateLimiter.setRate(rate);
+        }
+        return rateLimiter;
     }
 
     private RateLimiter getRateLimiterForIP(String ip) {
-        return ipRateLimiters.computeIfAbsent(ip, k -> new FixedWindowRateLimiter(permitsPerSecond));
+        return ipRateLimiters.get(ip);
     }
 
     public boolean acquire(String ip) {
-        RateLimiter rateLimiter = getRateLimiterForIP(ip);
-        return rateLimiter.acquire();
+        return acquire(ip, 1);
+    }
+
+    public boolean acquire(String ip, int permits) {
+        RateLimiterMetrics metrics = this.metrics;
+        if (metrics == null) {
+            return getRateLimiterForIP(ip).acquire(permits);
+        }
+        long start = clock.nanoTime();
+        boolean acquired = getRateLimiterForIP(ip).acquire(permits);
+        metrics.recordAcquire(acquired, clock.nanoTime() - start);
+        if (!acquired) {
+            metrics.recordThrottled(ip);
+        }
+        return acquired;
     }
 
     public boolean tryAcquire(String ip, long timeout, TimeUnit unit) {
-        RateLimiter rateLimiter = getRateLimiterForIP(ip);
-        return rateLimiter.tryAcquire(timeout, unit);
+        return tryAcquire(ip, 1, timeout, unit);
+    }
+
+    public boolean tryAcquire(String ip, int permits, long timeout, TimeUnit unit) {
+        RateLimiterMetrics metrics = this.metrics;
+        if (metrics == null) {
+            return getRateLimiterForIP(ip).tryAcquire(permits, timeout, unit);
+        }
+        long start = clock.nanoTime();
+        boolean acquired = getRateLimiterForIP(ip).tryAcquire(permits, timeout, unit);
+        metrics.recordWait(acquired, clock.nanoTime() - start);
+        if (!acquired) {
+            metrics.recordThrottled(ip);
+        }
+        return acquired;
+    }
+
+    /**
+     * Starts recording decisions, wait times and the most throttled IPs into the given metrics,
+     * or stops recording if it is null.
+     */
+    public void setMetrics(RateLimiterMetrics metrics) {
+        this.metrics = metrics;
     }
 
+    /**
+     * Sets the rate of one IP. The rate outlives the IP's limiter, but at most {@code maximumSize}
+     * IPs keep a rate of their own: past that, the rates least recently set or used to create a
+     * limiter are forgotten, a few at a time.
+     */
     public void setRate(String ip, double permitsPerSecond) {
-        RateLimiter rateLimiter = getRateLimiterForIP(ip);
-        rateLimiter.setRate(permitsPerSecond);
+        if (permitsPerSecond == this.permitsPerSecond) {
+            ipRates.remove(ip);
+        } else {
+            ipRates.put(ip, permitsPerSecond);
+        }
+        // Through get rather than getIfPresent, so a limiter created concurrently from the old rate
+        // is either the one updated here or created after the put, from the new rate
+        ipRateLimiters.get(ip).setRate(permitsPerSecond);
     }
 
     public double getRate(String ip) {
-        RateLimiter rateLimiter = getRateLimiterForIP(ip);
-        return rateLimiter.getRate();
+        RateLimiter rateLimiter = ipRateLimiters.getIfPresent(ip);
+        if (rateLimiter != null) {
+            return rateLimiter.getRate();
+        }
+        Double rate = ipRates.getIfPresent(ip);
+        return rate != null ? rate : permitsPerSecond;
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,239 @@
+package org.example;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * Bounded map of values created on demand per key, behind {@link RateLimiterRegistry}, or put
+ * there by the caller. Values that have been idle for longer than {@code expireAfterIdle} are dropped, and once
+ * {@code maximumSize} is exceeded the least recently used of a small sample of entries is dropped.
+ * <p>
+ * Eviction is incremental: callers do a few steps of work at a time on a shared cursor, guarded by
+ * a lock that is only ever try-locked, so no caller waits for a full scan.
+ */
+final class IdleExpiringMap<K, V> {
+    private static final long RETIRED = Long.MIN_VALUE;
+    private static final long TOUCH_GRANULARITY_IN_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final int SWEEP_BATCH_SIZE = 16;
+    private static final int SWEEP_ONE_IN = 64;
+    private static final int EVICTION_SAMPLE_SIZE = 8;
+
+    private final ConcurrentHashMap<K, Entry<V>> values = new ConcurrentHashMap<>();
+    private final Function<? super K, ? extends V> factory;
+    private final NanoClock clock;
+    private final long maximumSize;
+    private final long expireAfterIdleInNanos;
+
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private Iterator<Map.Entry<K, Entry<V>>> evictionCursor;
+
+    /**
+     * Creates a map whose values are only ever added with {@link #put}.
+     */
+    IdleExpiringMap(long maximumSize, long expireAfterIdle, TimeUnit unit, NanoClock clock) {
+        this(key -> {
+            throw new UnsupportedOperationException("No factory, values are put");
+        }, maximumSize, expireAfterIdle, unit, clock);
+    }
+
+    IdleExpiringMap(Function<? super K, ? extends V> factory, long maximumSize, long expireAfterIdle,
+                    TimeUnit unit, NanoClock clock) {
+        if (maximumSize <= 0) {
+            throw new IllegalArgumentException("maximumSize must be positive");
+        }
+        this.factory = factory;
+        this.clock = clock;
+        this.maximumSize = maximumSize;
+        this.expireAfterIdleInNanos = unit.toNanos(expireAfterIdle);
+    }
+
+    /**
+     * Returns the value for the given key, creating it if needed.
+     */
+    V get(K key) {
+        long now = clock.nanoTime();
+        while (true) {
+            Entry<V> entry = values.get(key);
+            boolean created = false;
+            if (entry == null) {
+                Entry<V> newEntry = new Entry<>(factory.apply(key), now);
+                entry = values.putIfAbsent(key, newEntry);
+                if (entry == null) {
+                    entry = newEntry;
+                    created = true;
+                }
+            }
+            if (!entry.touch(now)) {
+                // Retired by a concurrent sweep, make sure it is gone and create a fresh one
+                values.remove(key, entry);
+                continue;
+            }
+            if (created) {
+                evictIfOversized(now);
+            } else if (ThreadLocalRandom.current().nextInt(SWEEP_ONE_IN) == 0) {
+                sweep(now);
+            }
+            return entry.value;
+        }
+    }
+
+    /**
+     * Returns the value for the given key without creating it, or null if there is none. Unlike
+     * {@link #getIfPresent} this counts as an access, so the value is kept as long as it is used.
+     */
+    V touchIfPresent(K key) {
+        long now = clock.nanoTime();
+        Entry<V> entry = values.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (!entry.touch(now)) {
+            values.remove(key, entry);
+            return null;
+        }
+        if (ThreadLocalRandom.current().nextInt(SWEEP_ONE_IN) == 0) {
+            sweep(now);
+        }
+        return entry.value;
+    }
+
+    /**
+     * Returns the value for the given key, or null if there is none.
+     */
+    V getIfPresent(K key) {
+        Entry<V> entry = values.get(key);
+        return entry == null || entry.isRetired() ? null : entry.value;
+    }
+
+    /**
+     * Sets the value for the given key, which counts as an access.
+     */
+    void put(K key, V value) {
+        long now = clock.nanoTime();
+        if (values.put(key, new Entry<>(value, now)) == null) {
+            evictIfOversized(now);
+        }
+    }
+
+    void remove(K key) {
+        values.remove(key);
+    }
+
+    long size() {
+        return values.mappingCount();
+    }
+
+    /**
+     * Removes every idle value. Unlike the incremental eviction this walks the whole map.
+     */
+    void cleanUp() {
+        long now = clock.nanoTime();
+        for (Map.Entry<K, Entry<V>> mapping : values.entrySet()) {
+            expireIfIdle(mapping.getKey(), mapping.getValue(), now);
+        }
+    }
+
+    private void sweep(long now) {
+        if (!evictionLock.tryLock()) {
+            return;
+        }
+        try {
+            for (int i = 0; i < SWEEP_BATCH_SIZE; i++) {
+                Map.Entry<K, Entry<V>> mapping = nextForEviction();
+                if (mapping == null) {
+                    return;
+                }
+                expireIfIdle(mapping.getKey(), mapping.getValue(), now);
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    private void evictIfOversized(long now) {
+        if (size() <= maximumSize || !evictionLock.tryLock()) {
+            return;
+        }
+        try {
+            // Evicting two entries per insert keeps the map from growing while the lock is contended
+            for (int evictions = 0; evictions < 2 && size() > maximumSize; evictions++) {
+                Map.Entry<K, Entry<V>> victim = null;
+                for (int i = 0; i < EVICTION_SAMPLE_SIZE; i++) {
+                    Map.Entry<K, Entry<V>> mapping = nextForEviction();
+                    if (mapping == null) {
+                        break;
+                    }
+                    if (expireIfIdle(mapping.getKey(), mapping.getValue(), now)) {
+                        victim = null;
+                        break;
+                    }
+                    if (victim == null
+                            || mapping.getValue().lastAccess.get() - victim.getValue().lastAccess.get() < 0) {
+                        victim = mapping;
+                    }
+                }
+                if (victim != null) {
+                    retire(victim.getKey(), victim.getValue(), victim.getValue().lastAccess.get());
+                }
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    private Map.Entry<K, Entry<V>> nextForEviction() {
+        if (evictionCursor == null || !evictionCursor.hasNext()) {
+            evictionCursor = values.entrySet().iterator();
+            if (!evictionCursor.hasNext()) {
+                return null;
+            }
+        }
+        return evictionCursor.next();
+    }
+
+    private boolean expireIfIdle(K key, Entry<V> entry, long now) {
+        long lastAccess = entry.lastAccess.get();
+        return lastAccess != RETIRED && now - lastAccess >= expireAfterIdleInNanos && retire(key, entry, lastAccess);
+    }
+
+    private boolean retire(K key, Entry<V> entry, long lastAccess) {
+        if (lastAccess == RETIRED || !entry.lastAccess.compareAndSet(lastAccess, RETIRED)) {
+            return false;
+        }
+        values.remove(key, entry);
+        return true;
+    }
+
+    private static final class Entry<V> {
+        final V value;
+        final AtomicLong lastAccess;
+
+        Entry(V value, long now) {
+            this.value = value;
+            this.lastAccess = new AtomicLong(now);
+        }
+
+        boolean isRetired() {
+            return lastAccess.get() == RETIRED;
+        }
+
+        boolean touch(long now) {
+            while (true) {
+                long last = lastAccess.get();
+                if (last == RETIRED) {
+                    return false;
+                }
+                // Skip the write for hot keys, the access time only needs to be roughly right
+                if (now - last < TOUCH_GRANULARITY_IN_NANOS || lastAccess.compareAndSet(last, now)) {
+                    return true;
+                }
+            }
+        }
+    }
+}
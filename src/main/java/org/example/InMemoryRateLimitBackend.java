@@ -0,0 +1,110 @@
+package org.example;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * {@link RateLimitBackend} kept in a {@link ConcurrentHashMap} of this process. Every operation
+ * is a single atomic {@code compute} on its key. Expired keys are dropped when they are next
+ * touched, and by an incremental sweep in which every write checks a few more keys from a shared
+ * cursor, so keys that are never touched again (like the counters of past windows) are dropped
+ * at O(1) per write without any caller paying for a full scan. The cursor is only try-locked.
+ */
+public class InMemoryRateLimitBackend implements RateLimitBackend {
+    private static final int SWEEP_BATCH_SIZE = 4;
+
+    private final ConcurrentHashMap<String, Value> values = new ConcurrentHashMap<>();
+    private final NanoClock clock;
+    private final ReentrantLock sweepLock = new ReentrantLock();
+    private Iterator<Map.Entry<String, Value>> sweepCursor;
+
+    public InMemoryRateLimitBackend() {
+        this(NanoClock.SYSTEM);
+    }
+
+    public InMemoryRateLimitBackend(NanoClock clock) {
+        this.clock = clock;
+    }
+
+    @Override
+    public long incrementAndGet(String key, long delta, long ttlMillis) {
+        long now = clock.nanoTime();
+        Value value = values.compute(key, (k, current) -> current == null || current.isExpired(now)
+                ? new Value(delta, expiresAt(now, ttlMillis))
+                : new Value(current.value + delta, current.expiresAt));
+        sweep(now);
+        return value.value;
+    }
+
+    @Override
+    public long get(String key) {
+        Value value = values.get(key);
+        return value == null || value.isExpired(clock.nanoTime()) ? 0 : value.value;
+    }
+
+    @Override
+    public boolean compareAndSet(String key, long expect, long update, long ttlMillis) {
+        long now = clock.nanoTime();
+        boolean[] set = new boolean[1];
+        values.compute(key, (k, current) -> {
+            long value = current == null || current.isExpired(now) ? 0 : current.value;
+            if (value != expect) {
+                return current;
+            }
+            set[0] = true;
+            return new Value(update, expiresAt(now, ttlMillis));
+        });
+        sweep(now);
+        return set[0];
+    }
+
+    /**
+     * Returns the number of keys, including expired keys that have not been dropped yet.
+     */
+    public long size() {
+        return values.mappingCount();
+    }
+
+    private void sweep(long now) {
+        if (!sweepLock.tryLock()) {
+            return;
+        }
+        try {
+            for (int i = 0; i < SWEEP_BATCH_SIZE; i++) {
+                if (sweepCursor == null || !sweepCursor.hasNext()) {
+                    sweepCursor = values.entrySet().iterator();
+                    if (!sweepCursor.hasNext()) {
+                        return;
+                    }
+                }
+                Map.Entry<String, Value> entry = sweepCursor.next();
+                if (entry.getValue().isExpired(now)) {
+                    values.remove(entry.getKey(), entry.getValue());
+                }
+            }
+        } finally {
+            sweepLock.unlock();
+        }
+    }
+
+    private static long expiresAt(long now, long ttlMillis) {
+        return now + TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+    }
+
+    private static final class Value {
+        final long value;
+        final long expiresAt;
+
+        Value(long value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+
+        boolean isExpired(long now) {
+            return now - expiresAt >= 0;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package org.example;
+
+import java.security.SecureRandom;
+
+/**
+ * Turns client keys into 128-bit values without allocating. IP addresses map to their exact bits
+ * (IPv4 as an IPv4-mapped IPv6 address), any other key is hashed with two independent 64-bit
+ * hashes so collisions are negligible even for tens of millions of keys.
+ * <p>
+ * Keys are spread over segments and slots with a random seed per table, so that clients cannot
+ * pick keys, such as the addresses of an IPv6 /64, that all land in the same probe window.
+ */
+final class KeyHashing {
+    private static final long IPV4_MAPPED_PREFIX = 0x0000_FFFF_0000_0000L;
+    private static final long FNV_OFFSET_BASIS = 0xCBF2_9CE4_8422_2325L;
+    private static final long FNV_PRIME = 0x0000_0100_0000_01B3L;
+    private static final long SECOND_SEED = 0x9E37_79B9_7F4A_7C15L;
+    private static final SecureRandom SEEDS = new SecureRandom();
+
+    private KeyHashing() {
+    }
+
+    static long ipv4Lo(int address) {
+        return IPV4_MAPPED_PREFIX | (address & 0xFFFF_FFFFL);
+    }
+
+    /**
+     * High 64 bits of an IPv4 (4 bytes) or IPv6 (16 bytes) address in network byte order, as
+     * returned by {@link java.net.InetAddress#getAddress()}.
+     */
+    static long addressHi(byte[] address) {
+        if (address.length == 4) {
+            return 0;
+        }
+        checkIPv6(address);
+        return readLong(address, 0);
+    }
+
+    static long addressLo(byte[] address) {
+        if (address.length == 4) {
+            return ipv4Lo(((address[0] & 0xFF) << 24) | ((address[1] & 0xFF) << 16)
+                    | ((address[2] & 0xFF) << 8) | (address[3] & 0xFF));
+        }
+        checkIPv6(address);
+        return readLong(address, 8);
+    }
+
+    static long hashHi(CharSequence key) {
+        long hash = FNV_OFFSET_BASIS;
+        for (int i = 0; i < key.length(); i++) {
+            hash = (hash ^ key.charAt(i)) * FNV_PRIME;
+        }
+        return mix(hash);
+    }
+
+    static long hashLo(CharSequence key) {
+        long hash = SECOND_SEED;
+        for (int i = 0; i < key.length(); i++) {
+            hash = Long.rotateLeft(hash + key.charAt(i), 23) * SECOND_SEED;
+        }
+        return mix(hash ^ key.length());
+    }
+
+    /**
+     * Returns a random seed for {@link #spread}.
+     */
+    static long newSeed() {
+        return SEEDS.nextLong();
+    }
+
+    /**
+     * Spreads a 128-bit key over all 64 bits, for picking segments and slots. A seed of 0 gives
+     * the spread of checkpoints written before tables had seeds.
+     */
+    static long spread(long hi, long lo, long seed) {
+        return mix((hi + seed) * SECOND_SEED ^ mix(lo ^ seed));
+    }
+
+    /**
+     * The MurmurHash3 64-bit finalizer.
+     */
+    static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xFF51_AFD7_ED55_8CCDL;
+        hash ^= hash >>> 33;
+        hash *= 0xC4CE_B9FE_1A85_EC53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    private static long readLong(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = offset; i < offset + 8; i++) {
+            value = (value << 8) | (bytes[i] & 0xFF);
+        }
+        return value;
+    }
+
+    private static void checkIPv6(byte[] address) {
+        if (address.length != 16) {
+            throw new IllegalArgumentException("address must be 4 or 16 bytes long");
+        }
+    }
+}
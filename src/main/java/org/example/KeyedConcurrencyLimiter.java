@@ -0,0 +1,131 @@
+package org.example;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-key {@link ConcurrencyLimiter}, such as a limit of calls in flight per client IP. A key only
+ * has a limiter while it has calls in flight or waiting; the last one to finish drops it, so
+ * memory is bounded by the number of concurrent calls rather than the number of keys ever seen,
+ * and no idle expiry is needed.
+ */
+public class KeyedConcurrencyLimiter {
+    private final Map<String, ConcurrencyLimiter> limiters = new ConcurrentHashMap<>();
+    private final boolean fair;
+    private final NanoClock clock;
+    private volatile int maxConcurrency;
+
+    public KeyedConcurrencyLimiter(int maxConcurrencyPerKey) {
+        this(maxConcurrencyPerKey, false);
+    }
+
+    public KeyedConcurrencyLimiter(int maxConcurrencyPerKey, boolean fair) {
+        this(maxConcurrencyPerKey, fair, NanoClock.SYSTEM);
+    }
+
+    public KeyedConcurrencyLimiter(int maxConcurrencyPerKey, boolean fair, NanoClock clock) {
+        ConcurrencyLimiter.checkMaxConcurrency(maxConcurrencyPerKey);
+        this.maxConcurrency = maxConcurrencyPerKey;
+        this.fair = fair;
+        this.clock = clock;
+    }
+
+    /**
+     * Takes a slot of the key if one is free, without waiting.
+     *
+     * @return the permit holding the slot, or null if all slots of the key are taken
+     */
+    public Permit tryAcquire(String key) {
+        return tryAcquire(key, 0, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Takes a slot of the key, waiting for one to free up until the timeout expires.
+     *
+     * @return the permit holding the slot, or null if the timeout expired
+     */
+    public Permit tryAcquire(String key, long timeout, TimeUnit unit) {
+        long timeoutInNanos = unit.toNanos(timeout);
+        long deadline = clock.nanoTime() + timeoutInNanos;
+        while (true) {
+            ConcurrencyLimiter limiter = limiters.get(key);
+            if (limiter == null) {
+                limiter = limiters.computeIfAbsent(key,
+                        k -> new ConcurrencyLimiter(maxConcurrency, fair, clock, idle -> limiters.remove(k, idle)));
+            }
+            int result = limiter.acquire(timeoutInNanos);
+            if (result == ConcurrencyLimiter.ACQUIRED) {
+                return new Permit(limiter);
+            }
+            if (result == ConcurrencyLimiter.DENIED) {
+                return null;
+            }
+            // Dropped by its last caller, retry with a fresh limiter for the key
+            timeoutInNanos = Math.max(0, deadline - clock.nanoTime());
+        }
+    }
+
+    /**
+     * Takes a slot of the key and the given number of permits of the rate limiter, all or
+     * nothing, without waiting.
+     *
+     * @return the permit holding the slot, or null if either limit was reached
+     */
+    public Permit tryAcquire(String key, RateLimiter rateLimiter, int permits) {
+        Permit permit = tryAcquire(key);
+        if (permit != null && !rateLimiter.acquire(permits)) {
+            permit.close();
+            return null;
+        }
+        return permit;
+    }
+
+    /**
+     * Takes a slot of the key and the given number of permits of the rate limiter, all or
+     * nothing, waiting until the timeout expires. The slot is held while waiting for the rate
+     * limiter.
+     *
+     * @return the permit holding the slot, or null if the timeout expired
+     */
+    public Permit tryAcquire(String key, RateLimiter rateLimiter, int permits, long timeout, TimeUnit unit) {
+        long deadline = clock.nanoTime() + unit.toNanos(timeout);
+        Permit permit = tryAcquire(key, timeout, unit);
+        if (permit != null
+                && !rateLimiter.tryAcquire(permits, deadline - clock.nanoTime(), TimeUnit.NANOSECONDS)) {
+            permit.close();
+            return null;
+        }
+        return permit;
+    }
+
+    /**
+     * Returns the number of slots of the key currently taken.
+     */
+    public int inFlight(String key) {
+        ConcurrencyLimiter limiter = limiters.get(key);
+        return limiter == null ? 0 : limiter.inFlight();
+    }
+
+    /**
+     * Returns the number of keys with calls in flight or waiting.
+     */
+    public int size() {
+        return limiters.size();
+    }
+
+    /**
+     * Sets the number of slots of every key.
+     */
+    public void setMaxConcurrency(int maxConcurrencyPerKey) {
+        ConcurrencyLimiter.checkMaxConcurrency(maxConcurrencyPerKey);
+        this.maxConcurrency = maxConcurrencyPerKey;
+        for (ConcurrencyLimiter limiter : limiters.values()) {
+            limiter.setMaxConcurrency(maxConcurrencyPerKey);
+        }
+    }
+
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+}
@@ -0,0 +1,96 @@
+package org.example;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of durations in nanoseconds with log-linear buckets, like HdrHistogram: every power
+ * of two is split into {@value #SUB_BUCKETS} equal buckets, so any value is recorded with an
+ * error of at most about 3% in a fixed 15KB. Recording is one atomic increment and never
+ * allocates, and neither do the queries, so the histogram can be polled as often as needed.
+ */
+public final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Up to values with their highest bit at 62, the largest a positive long has
+    private static final int BUCKETS = (Long.SIZE - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder total = new LongAdder();
+
+    LatencyHistogram() {
+    }
+
+    void record(long valueInNanos) {
+        long value = Math.max(0, valueInNanos);
+        counts.getAndIncrement(bucketOf(value));
+        total.add(value);
+    }
+
+    /**
+     * Returns the number of recorded values.
+     */
+    public long count() {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    public double mean() {
+        long count = count();
+        return count == 0 ? 0 : (double) total.sum() / count;
+    }
+
+    /**
+     * Returns a value that at least the given percentage of the recorded values are less than or
+     * equal to (up to the precision of the buckets), or 0 if nothing was recorded.
+     *
+     * @param percentile between 0 and 100
+     */
+    public long valueAtPercentile(double percentile) {
+        long count = count();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(count * Math.min(100, percentile) / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return highestValueIn(i);
+            }
+        }
+        return highestValueIn(BUCKETS - 1); // Values were recorded while counting
+    }
+
+    public long max() {
+        for (int i = BUCKETS - 1; i >= 0; i--) {
+            if (counts.get(i) != 0) {
+                return highestValueIn(i);
+            }
+        }
+        return 0;
+    }
+
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BUCKET_BITS;
+        // The top SUB_BUCKET_BITS + 1 bits of the value, the first of which is always set
+        int mantissa = (int) (value >>> shift);
+        return (shift + 1) * SUB_BUCKETS + mantissa - SUB_BUCKETS;
+    }
+
+    static long highestValueIn(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long mantissa = bucket % SUB_BUCKETS + SUB_BUCKETS;
+        return ((mantissa + 1) << shift) - 1;
+    }
+}
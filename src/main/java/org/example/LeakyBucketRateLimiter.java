@@ -1,88 +1,102 @@
 package org.example;
 
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
 
-public class LeakyBucketRateLimiter implements RateLimiter {
+public class LeakyBucketRateLimiter extends AbstractRateLimiter implements ReservableRateLimiter {
     private final ReentrantLock lock = new ReentrantLock();
     private final long capacity;
     private long permits;
     private long lastLeakTimestamp;
     private long leakIntervalInNanos;
-    private double permitsPerSecond;
+    // Written by setRate without the lock, and applied under it by the next leak
+    private volatile double permitsPerSecond;
+    private double appliedPermitsPerSecond;
 
     public LeakyBucketRateLimiter(long capacity, double permitsPerSecond) {
+        this(capacity, permitsPerSecond, NanoClock.SYSTEM);
+    }
+
+    public LeakyBucketRateLimiter(long capacity, double permitsPerSecond, NanoClock clock) {
+        super(clock);
         this.capacity = capacity;
         this.permitsPerSecond = permitsPerSecond;
+        this.appliedPermitsPerSecond = permitsPerSecond;
         this.leakIntervalInNanos = (long) (1_000_000_000 / permitsPerSecond);
         this.permits = 0;
-        this.lastLeakTimestamp = System.nanoTime();
+        this.lastLeakTimestamp = clock.nanoTime();
     }
 
     @Override
-    public boolean acquire() {
-        lock.lock();
+    protected long acquireOrGetWait(int permits, long now) {
+        lock(lock);
         try {
-            leakPermitsIfNeeded();
-            if (permits < capacity) {
-                permits++;
-                return true;
+            leakPermitsIfNeeded(now);
+            if (permits > capacity) {
+                return Long.MAX_VALUE;
+            }
+            if (this.permits + permits <= capacity) {
+                this.permits += permits;
+                return 0;
             }
-            return false;
+            long leaksNeeded = this.permits + permits - capacity;
+            return Math.max(1, lastLeakTimestamp + leaksNeeded * leakIntervalInNanos - now);
         } finally {
             lock.unlock();
         }
     }
 
+    /**
+     * Reserves the permits by adding them to the bucket even if that overfills it; the permits
+     * may be used once enough has leaked out for them to fit.
+     */
     @Override
-    public boolean tryAcquire(long timeout, TimeUnit unit) {
-        long timeoutInNanos = unit.toNanos(timeout);
-        long deadline = System.nanoTime() + timeoutInNanos;
-        lock.lock();
+    public Reservation reserve(int permits) {
+        checkPermits(permits);
+        long now = clock.nanoTime();
+        long waitInNanos = 0;
+        lock(lock);
         try {
-            while (System.nanoTime() < deadline) {
-                leakPermitsIfNeeded();
-                if (permits < capacity) {
-                    permits++;
-                    return true;
-                }
-                try {
-                    TimeUnit.NANOSECONDS.sleep(1_000); // Sleep briefly to avoid busy waiting
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                    return false;
-                }
+            leakPermitsIfNeeded(now);
+            long leaksNeeded = this.permits + permits - capacity;
+            if (leaksNeeded > 0) {
+                waitInNanos = Math.max(0, lastLeakTimestamp + leaksNeeded * leakIntervalInNanos - now);
             }
-            return false;
+            this.permits += permits;
         } finally {
             lock.unlock();
         }
+        return new Reservation(this, clock, permits, now + waitInNanos);
     }
 
     @Override
-    public void setRate(double permitsPerSecond) {
-        lock.lock();
+    public void refund(int permits) {
+        checkPermits(permits);
+        lock(lock);
         try {
-            this.permitsPerSecond = permitsPerSecond;
-            this.leakIntervalInNanos = (long) (1_000_000_000 / permitsPerSecond);
-            leakPermitsIfNeeded();
+            this.permits = Math.max(0, this.permits - permits);
         } finally {
             lock.unlock();
         }
+        clearDenial();
+    }
+
+    @Override
+    public void setRate(double permitsPerSecond) {
+        this.permitsPerSecond = permitsPerSecond;
+        clearDenial();
+    }
+
+    @Override
+    protected long maxPermits() {
+        return capacity;
     }
 
     @Override
     public double getRate() {
-        lock.lock();
-        try {
-            return permitsPerSecond;
-        } finally {
-            lock.unlock();
-        }
+        return permitsPerSecond;
     }
 
-    private void leakPermitsIfNeeded() {
-        long now = System.nanoTime();
+    private void leakPermitsIfNeeded(long now) {
         if (now > lastLeakTimestamp) {
             long elapsedTime = now - lastLeakTimestamp;
             long leaks = elapsedTime / leakIntervalInNanos;
@@ -91,6 +105,12 @@ public class LeakyBucketRateLimiter implements RateLimiter {
                 lastLeakTimestamp = now - (elapsedTime % leakIntervalInNanos);
             }
         }
+        // A new rate applies from the first leak after it was set, the time before that leaks at the old rate
+        double rate = permitsPerSecond;
+        if (rate != appliedPermitsPerSecond) {
+            appliedPermitsPerSecond = rate;
+            leakIntervalInNanos = (long) (1_000_000_000 / rate);
+        }
     }
 
 }
@@ -0,0 +1,196 @@
+package org.example;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Base class for the distributed rate limiters. The limit is shared through a
+ * {@link RateLimitBackend}, but permits are taken from it in leases of {@code leaseSize} at a
+ * time and handed out locally, so most calls never leave the process and only a lease refill
+ * pays a round trip. One caller at a time refills, under a refill lock but outside of the lease
+ * lock; concurrent callers that need a refill wait for its result instead of calling the backend
+ * as well, and those that find permits in the lease are not held up.
+ * <p>
+ * Permits leased by one node are not available to the others until they are used or the lease
+ * lapses, so a limit may be under-used by up to {@code leaseSize} permits per node. If the backend
+ * cannot be reached, each node enforces the rate on its own, as if it was not shared, and tries
+ * the backend again every {@value #BACKEND_RETRY_DELAY_IN_MILLIS}ms, rather than turning a backend
+ * outage into an outage of the whole service. Meanwhile permits are earned at the rate, fractions
+ * included, so a rate below one permit per retry delay is kept as well.
+ */
+abstract class LeasedRateLimiter extends AbstractRateLimiter {
+    private static final long BACKEND_RETRY_DELAY_IN_MILLIS = 100;
+
+    protected final RateLimitBackend backend;
+    protected final String key;
+    protected final int leaseSize;
+    // Guards the lease, never held while calling the backend
+    private final ReentrantLock lock = new ReentrantLock();
+    // Held by the one caller that refills the lease, the others wait for its result
+    private final ReentrantLock refillLock = new ReentrantLock();
+    private long leased;
+    private long leaseExpiresAt;
+    // No call to the backend before this time, the last one came back empty or failed
+    private long nextRefill;
+    // Permits earned at the rate while the backend cannot be reached, and when they were last added
+    private double fallbackCredit = 1;
+    private long fallbackCreditAt;
+
+    protected LeasedRateLimiter(RateLimitBackend backend, String key, int leaseSize, NanoClock clock) {
+        super(clock);
+        if (key.isEmpty()) {
+            throw new IllegalArgumentException("key must not be empty");
+        }
+        if (leaseSize <= 0) {
+            throw new IllegalArgumentException("leaseSize must be positive");
+        }
+        this.backend = backend;
+        this.key = key;
+        this.leaseSize = leaseSize;
+        this.nextRefill = clock.nanoTime();
+        this.leaseExpiresAt = nextRefill;
+        this.fallbackCreditAt = nextRefill;
+    }
+
+    @Override
+    protected long acquireOrGetWait(int permits, long now) {
+        if (permits > maxPermits()) {
+            return Long.MAX_VALUE;
+        }
+        lock(lock);
+        try {
+            long waitInNanos = takeFromLease(permits, now);
+            if (waitInNanos >= 0) {
+                return waitInNanos;
+            }
+        } finally {
+            lock.unlock();
+        }
+        // The backend is called without the lease lock, so callers that find permits in the lease
+        // are never held up by a round trip
+        refillLock.lock();
+        try {
+            long wanted;
+            lock(lock);
+            try {
+                long waitInNanos = takeFromLease(permits, now);
+                if (waitInNanos >= 0) {
+                    return waitInNanos; // Refilled by the caller that had the refill lock before
+                }
+                wanted = Math.max(leaseSize, permits) - leased;
+            } finally {
+                lock.unlock();
+            }
+            long fetched;
+            try {
+                fetched = fetch(wanted, now);
+            } catch (IOException e) {
+                fetched = -1;
+            }
+            lock(lock);
+            try {
+                if (fetched < 0) {
+                    // Enforce the rate on this node alone until the backend can be reached again
+                    long waitInNanos = leaseFallbackCredit(permits, now);
+                    nextRefill = now + Math.max(waitInNanos,
+                            TimeUnit.MILLISECONDS.toNanos(BACKEND_RETRY_DELAY_IN_MILLIS));
+                    leaseExpiresAt = nextRefill;
+                    return waitInNanos;
+                }
+                leased += fetched;
+                leaseExpiresAt = leaseExpiry(now);
+                if (leased >= permits) {
+                    leased -= permits;
+                    return 0;
+                }
+                long waitInNanos = Math.max(1, nanosUntilAvailable(permits - leased, now));
+                nextRefill = now + waitInNanos;
+                return waitInNanos;
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            refillLock.unlock();
+        }
+    }
+
+    /**
+     * Takes the permits from the lease if it has them, guarded by lock.
+     *
+     * @return 0 if the permits were taken, the time until the next refill if it is not due yet,
+     * or -1 if the lease needs a refill
+     */
+    private long takeFromLease(int permits, long now) {
+        if (now - leaseExpiresAt >= 0) {
+            leased = 0;
+        }
+        if (leased >= permits) {
+            leased -= permits;
+            return 0;
+        }
+        if (now - nextRefill < 0) {
+            return nextRefill - now;
+        }
+        return -1;
+    }
+
+    /**
+     * Adds the permits earned at the rate since the last call to the fallback credit, which holds
+     * up to a retry delay worth of them or {@code permits} if more, and if it has the permits,
+     * moves its whole permits to the lease and takes them from there, guarded by lock. The
+     * fraction left is carried over to the next retry.
+     *
+     * @return 0 if the permits were taken, or the time until the credit has them
+     */
+    private long leaseFallbackCredit(int permits, long now) {
+        double rate = getRate();
+        double maxCredit = Math.max(permits, rate * BACKEND_RETRY_DELAY_IN_MILLIS / 1000);
+        fallbackCredit = Math.min(maxCredit, fallbackCredit + rate * Math.max(0, now - fallbackCreditAt) / 1e9);
+        fallbackCreditAt = now;
+        if (fallbackCredit < permits) {
+            leased = 0;
+            return Math.max(1, (long) Math.ceil((permits - fallbackCredit) / rate * 1e9));
+        }
+        leased = (long) fallbackCredit - permits;
+        fallbackCredit -= (long) fallbackCredit;
+        return 0;
+    }
+
+    /**
+     * Returns the permits to the local lease; they go back to the backend only by being used.
+     */
+    @Override
+    public void refund(int permits) {
+        checkPermits(permits);
+        lock(lock);
+        try {
+            leased += permits;
+        } finally {
+            lock.unlock();
+        }
+        clearDenial();
+    }
+
+    /**
+     * The largest number of permits a single call can ever get.
+     */
+    protected abstract long maxPermits();
+
+    /**
+     * Takes up to {@code wanted} permits from the backend.
+     *
+     * @return the number of permits taken, between 0 and {@code wanted}
+     */
+    protected abstract long fetch(long wanted, long now) throws IOException;
+
+    /**
+     * Returns the time at which permits fetched at {@code now} can no longer be used.
+     */
+    protected abstract long leaseExpiry(long now);
+
+    /**
+     * Returns roughly how long it takes until the backend has {@code missing} more permits.
+     */
+    protected abstract long nanosUntilAvailable(long missing, long now);
+}
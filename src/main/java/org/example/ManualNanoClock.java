@@ -0,0 +1,40 @@
+package org.example;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Clock that only moves when told to, for deterministic tests. {@link #sleep(long)} and
+ * {@link #parkNanos(Object, long)} advance the clock instead of waiting, so a {@code tryAcquire}
+ * that has to wait returns immediately with the clock moved forward by the time it waited.
+ */
+public class ManualNanoClock implements NanoClock {
+    private final AtomicLong now;
+
+    public ManualNanoClock() {
+        this(0);
+    }
+
+    public ManualNanoClock(long initialNanoTime) {
+        this.now = new AtomicLong(initialNanoTime);
+    }
+
+    @Override
+    public long nanoTime() {
+        return now.get();
+    }
+
+    @Override
+    public void sleep(long nanos) {
+        advance(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void parkNanos(Object blocker, long nanos) {
+        advance(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void advance(long duration, TimeUnit unit) {
+        now.addAndGet(unit.toNanos(duration));
+    }
+}
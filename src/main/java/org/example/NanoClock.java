@@ -0,0 +1,51 @@
+package org.example;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Source of time for the rate limiters, in the same units and with the same meaning as
+ * {@link System#nanoTime()}.
+ */
+public interface NanoClock {
+
+    /**
+     * The precise clock, {@link System#nanoTime()}.
+     */
+    NanoClock SYSTEM = System::nanoTime;
+
+    /**
+     * The wall clock, {@link System#currentTimeMillis()} in nanoseconds. Only precise to the
+     * millisecond, but comparable between machines with synchronized clocks.
+     */
+    NanoClock WALL = () -> TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+
+    /**
+     * Returns the current value of this clock, in nanoseconds. Only differences between two
+     * values are meaningful.
+     *
+     * @return the current time in nanoseconds
+     */
+    long nanoTime();
+
+    /**
+     * Waits until this clock has advanced by the given number of nanoseconds.
+     *
+     * @param nanos the time to wait
+     * @throws InterruptedException if the current thread is interrupted while waiting
+     */
+    default void sleep(long nanos) throws InterruptedException {
+        TimeUnit.NANOSECONDS.sleep(nanos);
+    }
+
+    /**
+     * Parks the current thread until this clock has advanced by the given number of nanoseconds,
+     * it is unparked or interrupted, or spuriously, like {@link LockSupport#parkNanos(Object, long)}.
+     *
+     * @param blocker the object the thread is parked on
+     * @param nanos the maximum time to park
+     */
+    default void parkNanos(Object blocker, long nanos) {
+        LockSupport.parkNanos(blocker, nanos);
+    }
+}
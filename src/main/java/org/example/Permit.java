@@ -0,0 +1,24 @@
+package org.example;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A slot taken from a {@link ConcurrencyLimiter}, held for as long as the call it guards is in
+ * flight. Closing it gives the slot back, so it is meant for try-with-resources; closing it again
+ * does nothing.
+ */
+public final class Permit implements AutoCloseable {
+    private final ConcurrencyLimiter concurrencyLimiter;
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    Permit(ConcurrencyLimiter concurrencyLimiter) {
+        this.concurrencyLimiter = concurrencyLimiter;
+    }
+
+    @Override
+    public void close() {
+        if (released.compareAndSet(false, true)) {
+            concurrencyLimiter.release();
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package org.example;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the policies of a {@link PolicyRateLimiter} in sync with a policy file, see
+ * {@link RateLimitPolicies} for its format. The file is parsed on a background thread whenever it
+ * is written or replaced, and the limiter only sees the new policies once they are complete. A
+ * file that fails to parse leaves the current policies in place; the error goes to the thread's
+ * uncaught exception handler.
+ * <p>
+ * A file written in place is only read once it has not changed for {@value #QUIET_PERIOD_IN_MILLIS}
+ * milliseconds, but a writer stalled for longer could still have a partial file loaded. Replacing
+ * the file atomically, by writing a temporary file and moving it over the old one, is safe.
+ */
+public class PolicyFileWatcher implements AutoCloseable {
+    static final long QUIET_PERIOD_IN_MILLIS = 200;
+
+    private final Path file;
+    private final PolicyRateLimiter rateLimiter;
+    private final WatchService watchService;
+    private final Thread worker;
+
+    /**
+     * Loads the file into the limiter and starts watching it.
+     *
+     * @throws IOException if the file cannot be read or parsed, or its directory watched
+     */
+    public PolicyFileWatcher(Path file, PolicyRateLimiter rateLimiter) throws IOException {
+        this.file = file.toAbsolutePath();
+        this.rateLimiter = rateLimiter;
+        // Watch the directory: editors and deployment tools often replace the file rather than write to it
+        this.watchService = this.file.getFileSystem().newWatchService();
+        try {
+            this.file.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+            reload();
+        } catch (IOException | RuntimeException e) {
+            watchService.close();
+            throw e;
+        }
+        this.worker = new Thread(this::run, "rate-limit-policy-watcher");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    /**
+     * Reads the file and applies it right away.
+     */
+    public void reload() throws IOException {
+        rateLimiter.setPolicies(RateLimitPolicies.parse(file));
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                if (!changed(watchService.take())) {
+                    continue;
+                }
+                // Writing in place fires as soon as the write starts, wait for the file to settle
+                WatchKey key;
+                while ((key = watchService.poll(QUIET_PERIOD_IN_MILLIS, TimeUnit.MILLISECONDS)) != null) {
+                    changed(key);
+                }
+                try {
+                    reload();
+                } catch (IOException e) {
+                    worker.getUncaughtExceptionHandler().uncaughtException(worker, new UncheckedIOException(e));
+                }
+            }
+        } catch (ClosedWatchServiceException | InterruptedException e) {
+            // Closed
+        }
+    }
+
+    private boolean changed(WatchKey key) {
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            // An overflow may have hidden a change to the file
+            changed |= event.kind() == StandardWatchEventKinds.OVERFLOW
+                    || file.getFileName().equals(event.context());
+        }
+        key.reset();
+        return changed;
+    }
+
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+    }
+}
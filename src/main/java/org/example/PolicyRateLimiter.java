@@ -0,0 +1,114 @@
+package org.example;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Per-key rate limiter whose limits come from {@link RateLimitPolicies}. Keys no policy applies to
+ * are not limited.
+ * <p>
+ * {@link #setPolicies} only swaps a reference, so reloading any number of rules does not block
+ * callers nor touch existing limiters. A key's limiter is brought up to date the next time the
+ * key is used: it is kept as is if its policy did not change, gets the new rate if it still uses
+ * the same algorithm and burst, and is replaced by a fresh limiter otherwise.
+ */
+public class PolicyRateLimiter {
+    private static final long DEFAULT_MAXIMUM_SIZE = 1_000_000;
+    private static final long DEFAULT_EXPIRE_AFTER_IDLE_IN_SECONDS = 60;
+
+    private final IdleExpiringMap<String, KeyBinding> keyBindings;
+    private final NanoClock clock;
+    private volatile RateLimitPolicies policies;
+
+    public PolicyRateLimiter(RateLimitPolicies policies) {
+        this(policies, DEFAULT_MAXIMUM_SIZE, DEFAULT_EXPIRE_AFTER_IDLE_IN_SECONDS, TimeUnit.SECONDS, NanoClock.SYSTEM);
+    }
+
+    /**
+     * @param expireAfterIdle must be long enough for the limiter of any policy to return to its
+     *                        initial state, see {@link RateLimiterRegistry}
+     */
+    public PolicyRateLimiter(RateLimitPolicies policies, long maximumSize, long expireAfterIdle, TimeUnit unit,
+                             NanoClock clock) {
+        this.policies = policies;
+        this.clock = clock;
+        this.keyBindings = new IdleExpiringMap<>(key -> new KeyBinding(), maximumSize, expireAfterIdle, unit, clock);
+    }
+
+    public boolean acquire(String key) {
+        return acquire(key, 1);
+    }
+
+    public boolean acquire(String key, int permits) {
+        RateLimiter rateLimiter = getRateLimiterForKey(key);
+        return rateLimiter == null || rateLimiter.acquire(permits);
+    }
+
+    public boolean tryAcquire(String key, int permits, long timeout, TimeUnit unit) {
+        RateLimiter rateLimiter = getRateLimiterForKey(key);
+        return rateLimiter == null || rateLimiter.tryAcquire(permits, timeout, unit);
+    }
+
+    /**
+     * Replaces the policies. Limiters pick up the change lazily, on their next acquisition.
+     */
+    public void setPolicies(RateLimitPolicies policies) {
+        this.policies = policies;
+    }
+
+    public RateLimitPolicies getPolicies() {
+        return policies;
+    }
+
+    /**
+     * Returns the limiter of the key under the current policies, or null if none applies.
+     */
+    private RateLimiter getRateLimiterForKey(String key) {
+        return keyBindings.get(key).current(key, policies);
+    }
+
+    private static final class Binding {
+        final RateLimitPolicies policies;
+        final RateLimitPolicy policy;
+        final RateLimiter rateLimiter;
+
+        Binding(RateLimitPolicies policies, RateLimitPolicy policy, RateLimiter rateLimiter) {
+            this.policies = policies;
+            this.policy = policy;
+            this.rateLimiter = rateLimiter;
+        }
+    }
+
+    /**
+     * Entry of a key, pointing at the limiter of the policy it was last used under.
+     */
+    private final class KeyBinding {
+        private final AtomicReference<Binding> binding = new AtomicReference<>();
+
+        RateLimiter current(String key, RateLimitPolicies policies) {
+            while (true) {
+                Binding bound = binding.get();
+                if (bound != null && bound.policies == policies) {
+                    return bound.rateLimiter;
+                }
+                Binding migrated = migrate(bound, policies, policies.policyFor(key));
+                if (binding.compareAndSet(bound, migrated)) {
+                    return migrated.rateLimiter;
+                }
+            }
+        }
+
+        private Binding migrate(Binding bound, RateLimitPolicies policies, RateLimitPolicy policy) {
+            if (policy == null) {
+                return new Binding(policies, null, null);
+            }
+            if (bound == null || bound.policy == null || !bound.policy.isCompatibleWith(policy)) {
+                return new Binding(policies, policy, policy.newRateLimiter(clock));
+            }
+            if (bound.policy.permitsPerSecond() != policy.permitsPerSecond()) {
+                bound.rateLimiter.setRate(policy.permitsPerSecond());
+            }
+            return new Binding(policies, policy, bound.rateLimiter);
+        }
+    }
+}
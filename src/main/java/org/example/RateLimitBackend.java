@@ -0,0 +1,40 @@
+package org.example;
+
+import java.io.IOException;
+
+/**
+ * Shared state behind the distributed rate limiters: a map from string keys to {@code long}
+ * values that expire, with the two atomic operations the limiters need. A missing or expired key
+ * reads as 0. Implementations could be backed by Redis, Memcached or a database;
+ * {@link InMemoryRateLimitBackend} is the reference one and {@link RateLimitBackendServer} makes
+ * it reachable over a socket through {@link SocketRateLimitBackend}.
+ */
+public interface RateLimitBackend {
+
+    /**
+     * Atomically adds {@code delta} to the value of the key. A key that did not exist is created
+     * with value {@code delta} and expires after {@code ttlMillis}; the expiry of an existing key
+     * is left alone.
+     *
+     * @return the value after the increment
+     * @throws IOException if the backend could not be reached
+     */
+    long incrementAndGet(String key, long delta, long ttlMillis) throws IOException;
+
+    /**
+     * Returns the value of the key, or 0 if it does not exist.
+     *
+     * @throws IOException if the backend could not be reached
+     */
+    long get(String key) throws IOException;
+
+    /**
+     * Atomically sets the value of the key to {@code update} if it currently is {@code expect},
+     * where an {@code expect} of 0 matches a key that does not exist. The key expires after
+     * {@code ttlMillis} from now.
+     *
+     * @return true if the value was set
+     * @throws IOException if the backend could not be reached
+     */
+    boolean compareAndSet(String key, long expect, long update, long ttlMillis) throws IOException;
+}
@@ -0,0 +1,131 @@
+package org.example;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Serves a {@link RateLimitBackend} over TCP to {@link SocketRateLimitBackend} clients, so
+ * several processes (or several limiters in one test) can share one. Every connection gets its
+ * own thread and speaks a line based protocol, one request and one response per line:
+ * <pre>
+ * INCR key delta ttlMillis            -> value
+ * GET key                             -> value
+ * CAS key expect update ttlMillis     -> 1 or 0
+ * </pre>
+ * A request that cannot be served is answered with {@code ERR} and a message.
+ */
+public class RateLimitBackendServer implements AutoCloseable {
+    private final RateLimitBackend backend;
+    private final ServerSocket serverSocket;
+    private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+    private volatile boolean closed;
+
+    /**
+     * Serves the backend on an ephemeral port of the loopback address.
+     */
+    public RateLimitBackendServer(RateLimitBackend backend) throws IOException {
+        this(backend, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+    }
+
+    public RateLimitBackendServer(RateLimitBackend backend, InetSocketAddress address) throws IOException {
+        this.backend = backend;
+        this.serverSocket = new ServerSocket();
+        this.serverSocket.bind(address);
+        Thread acceptor = new Thread(this::accept, "rate-limit-backend-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public InetSocketAddress getAddress() {
+        return (InetSocketAddress) serverSocket.getLocalSocketAddress();
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        serverSocket.close();
+        for (Socket connection : connections) {
+            connection.close();
+        }
+    }
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket connection = serverSocket.accept();
+                connections.add(connection);
+                if (closed) {
+                    // Accepted while closing, after close() went through the connections
+                    connection.close();
+                    return;
+                }
+                Thread handler = new Thread(() -> serve(connection), "rate-limit-backend-connection");
+                handler.setDaemon(true);
+                handler.start();
+            } catch (IOException e) {
+                // Closed, or the connection failed before it was accepted
+            }
+        }
+    }
+
+    private void serve(Socket connection) {
+        try (connection;
+             BufferedReader in = new BufferedReader(
+                     new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8));
+             Writer out = new OutputStreamWriter(connection.getOutputStream(), StandardCharsets.UTF_8)) {
+            connection.setTcpNoDelay(true);
+            String request;
+            while ((request = in.readLine()) != null) {
+                out.write(handle(request));
+                out.write('\n');
+                out.flush();
+            }
+        } catch (SocketException e) {
+            // The client went away or the server was closed
+        } catch (IOException e) {
+            // Nothing to answer to anymore, the client reconnects if it wants to
+        } finally {
+            connections.remove(connection);
+        }
+    }
+
+    private String handle(String request) {
+        String[] parts = request.split(" ");
+        try {
+            switch (parts[0]) {
+                case "INCR":
+                    checkArguments(parts, 4);
+                    return Long.toString(backend.incrementAndGet(parts[1], Long.parseLong(parts[2]),
+                            Long.parseLong(parts[3])));
+                case "GET":
+                    checkArguments(parts, 2);
+                    return Long.toString(backend.get(parts[1]));
+                case "CAS":
+                    checkArguments(parts, 5);
+                    return backend.compareAndSet(parts[1], Long.parseLong(parts[2]), Long.parseLong(parts[3]),
+                            Long.parseLong(parts[4])) ? "1" : "0";
+                default:
+                    return "ERR unknown command " + parts[0];
+            }
+        } catch (IllegalArgumentException | IOException e) {
+            return "ERR " + e.getMessage();
+        }
+    }
+
+    private static void checkArguments(String[] parts, int expected) {
+        if (parts.length != expected) {
+            throw new IllegalArgumentException(parts[0] + " takes " + (expected - 1) + " arguments");
+        }
+    }
+}
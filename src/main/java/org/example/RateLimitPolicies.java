@@ -0,0 +1,124 @@
+package org.example;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Immutable set of {@link RateLimitPolicy} rules, looked up by key. An exact key wins over a
+ * prefix, a longer prefix over a shorter one, and {@code *} applies to whatever is left. A lookup
+ * is one hash lookup per distinct prefix length, so it costs the same for any number of rules.
+ * <p>
+ * The file format has one rule per line, {@code pattern algorithm permitsPerSecond [burst]}, with
+ * the algorithm one of {@code fixed-window}, {@code token-bucket} or {@code gcra} and the burst
+ * defaulting to one second worth of permits. Blank lines and lines starting with {@code #} are
+ * ignored:
+ * <pre>
+ * # Internal clients
+ * 10.0.*            token-bucket 1000 2000
+ * api-key-partner   gcra         50
+ * *                 fixed-window 10
+ * </pre>
+ */
+public final class RateLimitPolicies {
+    private final Map<String, RateLimitPolicy> exactKeys = new HashMap<>();
+    private final Map<String, RateLimitPolicy> prefixes = new HashMap<>();
+    // Distinct prefix lengths, longest first
+    private final int[] prefixLengths;
+    private final RateLimitPolicy fallback;
+    private final int size;
+
+    /**
+     * Creates the policies from the given rules; a later rule replaces an earlier one with the
+     * same pattern.
+     */
+    public RateLimitPolicies(List<RateLimitPolicy> policies) {
+        RateLimitPolicy fallback = null;
+        TreeSet<Integer> lengths = new TreeSet<>();
+        for (RateLimitPolicy policy : policies) {
+            String pattern = policy.pattern();
+            if (pattern.equals("*")) {
+                fallback = policy;
+            } else if (pattern.endsWith("*")) {
+                String prefix = pattern.substring(0, pattern.length() - 1);
+                prefixes.put(prefix, policy);
+                lengths.add(prefix.length());
+            } else {
+                exactKeys.put(pattern, policy);
+            }
+        }
+        this.fallback = fallback;
+        this.prefixLengths = lengths.descendingSet().stream().mapToInt(Integer::intValue).toArray();
+        this.size = exactKeys.size() + prefixes.size() + (fallback == null ? 0 : 1);
+    }
+
+    /**
+     * Reads policies from a file in the format described above.
+     */
+    public static RateLimitPolicies parse(Path file) throws IOException {
+        List<RateLimitPolicy> policies = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                try {
+                    policies.add(parse(line));
+                } catch (IllegalArgumentException e) {
+                    throw new IOException("Invalid policy at " + file + ":" + lineNumber + ": " + e.getMessage(), e);
+                }
+            }
+        }
+        return new RateLimitPolicies(policies);
+    }
+
+    private static RateLimitPolicy parse(String line) {
+        String[] parts = line.split("\\s+");
+        if (parts.length < 3 || parts.length > 4) {
+            throw new IllegalArgumentException("expected pattern, algorithm, permitsPerSecond and optional burst");
+        }
+        RateLimitPolicy.Algorithm algorithm = RateLimitPolicy.Algorithm.valueOf(
+                parts[1].toUpperCase(Locale.ROOT).replace('-', '_'));
+        double permitsPerSecond = Double.parseDouble(parts[2]);
+        long burst = parts.length == 4 ? Long.parseLong(parts[3]) : Math.max(1, (long) Math.ceil(permitsPerSecond));
+        return new RateLimitPolicy(parts[0], algorithm, permitsPerSecond, burst);
+    }
+
+    /**
+     * Returns the policy that applies to the key, or null if none does.
+     */
+    public RateLimitPolicy policyFor(String key) {
+        RateLimitPolicy policy = exactKeys.get(key);
+        if (policy != null) {
+            return policy;
+        }
+        for (int length : prefixLengths) {
+            if (length <= key.length()) {
+                policy = prefixes.get(key.substring(0, length));
+                if (policy != null) {
+                    return policy;
+                }
+            }
+        }
+        return fallback;
+    }
+
+    /**
+     * Returns the number of rules.
+     */
+    public int size() {
+        return size;
+    }
+}
@@ -0,0 +1,85 @@
+package org.example;
+
+import java.util.Objects;
+
+/**
+ * Limit applied to the keys matching a pattern, as configured in {@link RateLimitPolicies}. A
+ * pattern is either an exact key, a prefix followed by {@code *} such as {@code 10.0.*}, or
+ * {@code *} alone for every key no other pattern matches.
+ */
+public final class RateLimitPolicy {
+
+    public enum Algorithm {
+        FIXED_WINDOW,
+        TOKEN_BUCKET,
+        GCRA
+    }
+
+    private final String pattern;
+    private final Algorithm algorithm;
+    private final double permitsPerSecond;
+    private final long burst;
+
+    /**
+     * @param burst the capacity of a token bucket or the burst of GCRA, ignored by fixed windows
+     */
+    public RateLimitPolicy(String pattern, Algorithm algorithm, double permitsPerSecond, long burst) {
+        if (pattern.isEmpty() || pattern.indexOf('*') >= 0 && pattern.indexOf('*') != pattern.length() - 1) {
+            throw new IllegalArgumentException("pattern must be a key, a prefix followed by * or *: " + pattern);
+        }
+        if (!(permitsPerSecond > 0) || burst <= 0) {
+            throw new IllegalArgumentException("permitsPerSecond and burst must be positive");
+        }
+        if (algorithm == Algorithm.FIXED_WINDOW && (permitsPerSecond < 1 || permitsPerSecond != Math.rint(permitsPerSecond))) {
+            throw new IllegalArgumentException("A fixed window needs a whole number of permits per second: "
+                    + permitsPerSecond);
+        }
+        if (algorithm == Algorithm.GCRA) {
+            GcraRateLimiter.checkBurstTolerance(burst, GcraRateLimiter.emissionIntervalInNanos(permitsPerSecond));
+        }
+        this.pattern = pattern;
+        this.algorithm = Objects.requireNonNull(algorithm);
+        this.permitsPerSecond = permitsPerSecond;
+        this.burst = burst;
+    }
+
+    public String pattern() {
+        return pattern;
+    }
+
+    public Algorithm algorithm() {
+        return algorithm;
+    }
+
+    public double permitsPerSecond() {
+        return permitsPerSecond;
+    }
+
+    public long burst() {
+        return burst;
+    }
+
+    /**
+     * Returns whether a limiter created for this policy can take the other one by a rate change,
+     * keeping its state.
+     */
+    boolean isCompatibleWith(RateLimitPolicy other) {
+        return algorithm == other.algorithm && (algorithm == Algorithm.FIXED_WINDOW || burst == other.burst);
+    }
+
+    RateLimiter newRateLimiter(NanoClock clock) {
+        switch (algorithm) {
+            case FIXED_WINDOW:
+                return new FixedWindowRateLimiter((long) permitsPerSecond, clock);
+            case TOKEN_BUCKET:
+                return new TokenBucketRateLimiter(burst, permitsPerSecond, clock);
+            default:
+                return new GcraRateLimiter(permitsPerSecond, burst, clock);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return pattern + " " + algorithm + " " + permitsPerSecond + " " + burst;
+    }
+}
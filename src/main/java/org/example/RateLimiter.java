@@ -1,5 +1,6 @@
 package org.example;
 
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 
 public interface RateLimiter {
@@ -9,7 +10,17 @@ public interface RateLimiter {
      *
      * @return true if the permit was successfully acquired, false otherwise.
      */
-    boolean acquire();
+    default boolean acquire() {
+        return acquire(1);
+    }
+
+    /**
+     * Acquires the given number of permits from the rate limiter, all or none, without waiting.
+     *
+     * @param permits the number of permits to acquire
+     * @return true if the permits were successfully acquired, false otherwise.
+     */
+    boolean acquire(int permits);
 
     /**
      * Tries to acquire a permit from the rate limiter, blocking until one is available
@@ -19,7 +30,58 @@ public interface RateLimiter {
      * @param unit the time unit of the timeout argument
      * @return true if the permit was successfully acquired, false if the timeout expired
      */
-    boolean tryAcquire(long timeout, TimeUnit unit);
+    default boolean tryAcquire(long timeout, TimeUnit unit) {
+        return tryAcquire(1, timeout, unit);
+    }
+
+    /**
+     * Tries to acquire the given number of permits from the rate limiter, all or none, blocking
+     * until they are available or the timeout expires.
+     *
+     * @param permits the number of permits to acquire
+     * @param timeout the maximum time to wait for the permits
+     * @param unit the time unit of the timeout argument
+     * @return true if the permits were successfully acquired, false if the timeout expired
+     */
+    boolean tryAcquire(int permits, long timeout, TimeUnit unit);
+
+    /**
+     * Acquires the given number of permits without blocking the calling thread. Asynchronous
+     * callers are served in the order they asked; the returned future completes once the permits
+     * have been acquired, or with false if they can never be.
+     *
+     * @param permits the number of permits to acquire
+     * @return a future completed with true once the permits were acquired
+     */
+    CompletableFuture<Boolean> acquireAsync(int permits);
+
+    /**
+     * Acquires the given number of permits without blocking the calling thread, giving up once
+     * the timeout expires or as soon as it is known the permits won't be available in time.
+     *
+     * @param permits the number of permits to acquire
+     * @param timeout the maximum time to wait for the permits
+     * @param unit the time unit of the timeout argument
+     * @return a future completed with true once the permits were acquired, or false if the timeout expired
+     */
+    CompletableFuture<Boolean> acquireAsync(int permits, long timeout, TimeUnit unit);
+
+    /**
+     * Gives back permits that were acquired but will not be used, for example because another
+     * limiter denied the same request. Meant to be called right after the acquisition; permits
+     * whose window or interval has passed in between are simply returned to the current one.
+     *
+     * @param permits the number of permits to give back
+     */
+    void refund(int permits);
+
+    /**
+     * Starts recording into the given metrics, or stops recording if it is null. Metrics may be
+     * shared by several limiters.
+     *
+     * @param metrics the metrics to record into, or null
+     */
+    void setMetrics(RateLimiterMetrics metrics);
 
     /**
      * Sets the rate of the rate limiter.
@@ -0,0 +1,183 @@
+package org.example;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Counters and histograms of a rate limiter, enabled with {@link RateLimiter#setMetrics} or
+ * {@link IPBasedRateLimiter#setMetrics}. Without metrics a limiter pays one volatile read per
+ * call. With metrics, decisions are counted in {@link LongAdder}s, which stripe under
+ * contention, durations go to {@link LatencyHistogram}s and nothing on the hot path allocates.
+ * The getters can be polled by an exporter at any time, also without allocating.
+ * <p>
+ * The most throttled keys of a keyed limiter are tracked with the Space-Saving algorithm over
+ * {@code topKeys} counters per stripe, a key always going to the same stripe, so that a flood of
+ * denials for many keys does not serialize on a single lock. Updates that find their stripe busy
+ * are dropped rather than waited for, so the counts are approximate; keys that are denied most
+ * often still stand out.
+ */
+public final class RateLimiterMetrics {
+    private static final int DEFAULT_TOP_KEYS = 16;
+
+    private final LongAdder allowed = new LongAdder();
+    private final LongAdder denied = new LongAdder();
+    private final LongAdder lockContentions = new LongAdder();
+    private final LatencyHistogram acquireLatency = new LatencyHistogram();
+    private final LatencyHistogram waitTime = new LatencyHistogram();
+
+    private final TopKeys[] topKeyStripes;
+    private final int stripeMask;
+
+    public RateLimiterMetrics() {
+        this(DEFAULT_TOP_KEYS);
+    }
+
+    public RateLimiterMetrics(int topKeys) {
+        if (topKeys <= 0) {
+            throw new IllegalArgumentException("topKeys must be positive");
+        }
+        int stripes = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() - 1) << 1);
+        this.topKeyStripes = new TopKeys[stripes];
+        for (int i = 0; i < stripes; i++) {
+            topKeyStripes[i] = new TopKeys(topKeys);
+        }
+        this.stripeMask = stripes - 1;
+    }
+
+    /**
+     * Returns the number of calls that got their permits.
+     */
+    public long allowed() {
+        return allowed.sum();
+    }
+
+    /**
+     * Returns the number of calls that did not get their permits.
+     */
+    public long denied() {
+        return denied.sum();
+    }
+
+    /**
+     * Returns how often a call found the limiter's lock held by another thread and had to wait.
+     */
+    public long lockContentions() {
+        return lockContentions.sum();
+    }
+
+    /**
+     * Returns the time taken to decide calls that do not wait, such as {@code acquire()}.
+     */
+    public LatencyHistogram acquireLatency() {
+        return acquireLatency;
+    }
+
+    /**
+     * Returns the time callers of {@code tryAcquire} and {@code acquireAsync} spent until they
+     * got their permits or gave up.
+     */
+    public LatencyHistogram waitTime() {
+        return waitTime;
+    }
+
+    /**
+     * Copies the most throttled keys, most throttled first, with their approximate number of
+     * denials into the given arrays.
+     *
+     * @return the number of keys copied, at most the length of the arrays
+     */
+    public int topThrottledKeys(String[] keys, long[] counts) {
+        int limit = Math.min(keys.length, counts.length);
+        long previous = Long.MAX_VALUE;
+        int copied = 0;
+        // Selection of the next largest count; the arrays are small and this is not the hot path
+        for (; copied < limit; copied++) {
+            String bestKey = null;
+            long bestCount = -1;
+            for (TopKeys stripe : topKeyStripes) {
+                stripe.lock.lock();
+                try {
+                    for (int i = 0; i < stripe.keys.length; i++) {
+                        if (stripe.keys[i] != null && stripe.counts[i] <= previous && stripe.counts[i] > bestCount
+                                && !contains(keys, copied, stripe.keys[i])) {
+                            bestKey = stripe.keys[i];
+                            bestCount = stripe.counts[i];
+                        }
+                    }
+                } finally {
+                    stripe.lock.unlock();
+                }
+            }
+            if (bestKey == null) {
+                break;
+            }
+            keys[copied] = bestKey;
+            counts[copied] = bestCount;
+            previous = bestCount;
+        }
+        return copied;
+    }
+
+    void recordAcquire(boolean acquired, long latencyInNanos) {
+        (acquired ? allowed : denied).increment();
+        acquireLatency.record(latencyInNanos);
+    }
+
+    void recordWait(boolean acquired, long waitInNanos) {
+        (acquired ? allowed : denied).increment();
+        waitTime.record(waitInNanos);
+    }
+
+    void recordLockContention() {
+        lockContentions.increment();
+    }
+
+    void recordThrottled(String key) {
+        int hash = key.hashCode();
+        TopKeys stripe = topKeyStripes[(hash ^ hash >>> 16) & stripeMask];
+        if (!stripe.lock.tryLock()) {
+            return;
+        }
+        try {
+            stripe.record(key);
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    private static boolean contains(String[] keys, int length, String key) {
+        for (int i = 0; i < length; i++) {
+            if (keys[i] == key) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static final class TopKeys {
+        final ReentrantLock lock = new ReentrantLock();
+        final String[] keys;
+        final long[] counts;
+
+        TopKeys(int size) {
+            this.keys = new String[size];
+            this.counts = new long[size];
+        }
+
+        void record(String key) {
+            int min = 0;
+            for (int i = 0; i < keys.length; i++) {
+                if (key.equals(keys[i])) {
+                    counts[i]++;
+                    return;
+                }
+                if (counts[i] < counts[min]) {
+                    min = i;
+                }
+            }
+            // Space-Saving: the new key takes over the smallest counter and inherits its count
+            keys[min] = key;
+            counts[min]++;
+        }
+    }
+}
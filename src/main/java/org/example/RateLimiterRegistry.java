@@ -0,0 +1,62 @@
+package org.example;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Bounded map of per-key rate limiters. Limiters that have been idle for longer than
+ * {@code expireAfterIdle} are dropped, and once {@code maximumSize} is exceeded the least recently
+ * used of a small sample of entries is dropped.
+ * <p>
+ * Eviction is incremental: callers do a few steps of work at a time on a shared cursor, guarded by
+ * a lock that is only ever try-locked, so no caller waits for a full scan. The idle timeout must
+ * be at least as long as it takes a limiter to return to its initial state (one window for a
+ * fixed window limiter, a full refill for a token bucket); a fresh limiter created for an expired
+ * key then behaves exactly like the one that was dropped.
+ */
+public class RateLimiterRegistry<K> {
+    private final IdleExpiringMap<K, RateLimiter> limiters;
+
+    public RateLimiterRegistry(Function<? super K, ? extends RateLimiter> factory, long maximumSize,
+                               long expireAfterIdle, TimeUnit unit) {
+        this(factory, maximumSize, expireAfterIdle, unit, NanoClock.SYSTEM);
+    }
+
+    public RateLimiterRegistry(Function<? super K, ? extends RateLimiter> factory, long maximumSize,
+                               long expireAfterIdle, TimeUnit unit, NanoClock clock) {
+        this.limiters = new IdleExpiringMap<>(factory, maximumSize, expireAfterIdle, unit, clock);
+    }
+
+    /**
+     * Returns the limiter for the given key, creating it if needed.
+     */
+    public RateLimiter get(K key) {
+        return limiters.get(key);
+    }
+
+    /**
+     * Returns the limiter for the given key without creating it, or null if there is none. Unlike
+     * {@link #getIfPresent} this counts as an access, so the limiter is kept as long as it is used.
+     */
+    public RateLimiter touchIfPresent(K key) {
+        return limiters.touchIfPresent(key);
+    }
+
+    /**
+     * Returns the limiter for the given key, or null if there is none.
+     */
+    public RateLimiter getIfPresent(K key) {
+        return limiters.getIfPresent(key);
+    }
+
+    public long size() {
+        return limiters.size();
+    }
+
+    /**
+     * Removes every idle limiter. Unlike the incremental eviction this walks the whole map.
+     */
+    public void cleanUp() {
+        limiters.cleanUp();
+    }
+}
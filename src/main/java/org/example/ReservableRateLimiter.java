@@ -0,0 +1,19 @@
+package org.example;
+
+/**
+ * Rate limiter that can also hand out permits ahead of time, for callers that pace their own
+ * work: instead of polling {@code acquire()} they reserve permits once and schedule the work for
+ * when the reservation says the permits are theirs.
+ */
+public interface ReservableRateLimiter extends RateLimiter {
+
+    /**
+     * Reserves the given number of permits, always successfully. If they are not available yet
+     * the limiter goes into debt for them, and later callers wait for the debt to be paid off
+     * before their own permits.
+     *
+     * @param permits the number of permits to reserve
+     * @return the reservation, telling how long to wait before using the permits
+     */
+    Reservation reserve(int permits);
+}
@@ -0,0 +1,48 @@
+package org.example;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Permits reserved with {@link ReservableRateLimiter#reserve(int)}. They may be used once
+ * {@link #nanosToWait()} reaches 0; a reservation that is not going to be used should be
+ * cancelled before then, so that the permits go back to the limiter.
+ */
+public final class Reservation {
+    private final RateLimiter rateLimiter;
+    private final NanoClock clock;
+    private final int permits;
+    private final long readyAt;
+    private final AtomicBoolean cancelled = new AtomicBoolean();
+
+    Reservation(RateLimiter rateLimiter, NanoClock clock, int permits, long readyAt) {
+        this.rateLimiter = rateLimiter;
+        this.clock = clock;
+        this.permits = permits;
+        this.readyAt = readyAt;
+    }
+
+    public int permits() {
+        return permits;
+    }
+
+    /**
+     * Returns the number of nanoseconds until the permits may be used, 0 if they may be used now.
+     */
+    public long nanosToWait() {
+        return Math.max(0, readyAt - clock.nanoTime());
+    }
+
+    /**
+     * Gives the permits back to the limiter, unless the time to use them has already come.
+     *
+     * @return true if the permits were given back, false if the reservation was already due or
+     * cancelled
+     */
+    public boolean cancel() {
+        if (readyAt - clock.nanoTime() <= 0 || !cancelled.compareAndSet(false, true)) {
+            return false;
+        }
+        rateLimiter.refund(permits);
+        return true;
+    }
+}
@@ -3,9 +3,10 @@ package org.example;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
 
-public class SlidingWindowCounterRateLimiter implements RateLimiter {
+public class SlidingWindowCounterRateLimiter extends AbstractRateLimiter {
     private final long windowSizeInNanos;
-    private final int permitsPerSecond;
+    private volatile double permitsPerSecond;
+    private volatile long maxPermits;
     private long currentWindowStart;
     private long previousWindowStart;
     private int currentWindowCount;
@@ -13,16 +14,21 @@ public class SlidingWindowCounterRateLimiter implements RateLimiter {
     private final ReentrantLock lock = new ReentrantLock();
 
     public SlidingWindowCounterRateLimiter(int permitsPerSecond, int windowSizeInSeconds) {
+        this(permitsPerSecond, windowSizeInSeconds, NanoClock.SYSTEM);
+    }
+
+    public SlidingWindowCounterRateLimiter(int permitsPerSecond, int windowSizeInSeconds, NanoClock clock) {
+        super(clock);
         this.permitsPerSecond = permitsPerSecond;
+        this.maxPermits = permitsPerSecond;
         this.windowSizeInNanos = TimeUnit.SECONDS.toNanos(windowSizeInSeconds);
-        this.currentWindowStart = System.nanoTime();
+        this.currentWindowStart = clock.nanoTime();
         this.previousWindowStart = currentWindowStart - windowSizeInNanos;
         this.currentWindowCount = 0;
         this.previousWindowCount = 0;
     }
 
-    private void updateWindows() {
-        long now = System.nanoTime();
+    private void updateWindows(long now) {
         if (now - currentWindowStart >= windowSizeInNanos) {
             previousWindowStart = currentWindowStart;
             previousWindowCount = currentWindowCount;
@@ -41,63 +47,52 @@ public class SlidingWindowCounterRateLimiter implements RateLimiter {
     }
 
     @Override
-    public boolean acquire() {
-        lock.lock();
+    protected long acquireOrGetWait(int permits, long now) {
+        lock(lock);
         try {
-            updateWindows();
-            if (getTotalCount() < permitsPerSecond) {
-                currentWindowCount++;
-                return true;
+            updateWindows(now);
+            long maxPermits = this.maxPermits;
+            if (permits > maxPermits) {
+                return Long.MAX_VALUE;
             }
-            return false;
+            if (getTotalCount() + permits <= maxPermits) {
+                currentWindowCount += permits;
+                return 0;
+            }
+            // The weighted total only changes when the current window rolls over
+            return Math.max(1, currentWindowStart + windowSizeInNanos - now);
         } finally {
             lock.unlock();
         }
     }
 
     @Override
-    public boolean tryAcquire(long timeout, TimeUnit unit) {
-        long timeoutInNanos = unit.toNanos(timeout);
-        long deadline = System.nanoTime() + timeoutInNanos;
-        lock.lock();
+    public void refund(int permits) {
+        checkPermits(permits);
+        lock(lock);
         try {
-            while (System.nanoTime() < deadline) {
-                updateWindows();
-                if (getTotalCount() < permitsPerSecond) {
-                    currentWindowCount++;
-                    return true;
-                }
-                try {
-                    TimeUnit.NANOSECONDS.sleep(1_000); // Sleep briefly to avoid busy waiting
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                    return false;
-                }
-            }
-            return false;
+            currentWindowCount = Math.max(0, currentWindowCount - permits);
         } finally {
             lock.unlock();
         }
+        clearDenial();
     }
 
     @Override
     public void setRate(double permitsPerSecond) {
-        lock.lock();
-        try {
-            // No need to convert permitsPerSecond to int because this method is never called in this implementation.
-        } finally {
-            lock.unlock();
-        }
+        this.permitsPerSecond = permitsPerSecond;
+        this.maxPermits = (long) permitsPerSecond;
+        clearDenial();
+    }
+
+    @Override
+    protected long maxPermits() {
+        return maxPermits;
     }
 
     @Override
     public double getRate() {
-        lock.lock();
-        try {
-            return permitsPerSecond;
-        } finally {
-            lock.unlock();
-        }
+        return permitsPerSecond;
     }
 
 }
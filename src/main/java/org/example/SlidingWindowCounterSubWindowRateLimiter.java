@@ -1,119 +1,120 @@
 package org.example;
 
+import java.util.Arrays;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
 
-public class SlidingWindowCounterSubWindowRateLimiter implements RateLimiter {
-    private final int windowSizeInSeconds;
-    private final int subWindowSizeInSeconds;
-    private long maxPermits;
+public class SlidingWindowCounterSubWindowRateLimiter extends AbstractRateLimiter {
+    private final long windowSizeInNanos;
+    private final long subWindowSizeInNanos;
+    private volatile long maxPermits;
     private final ReentrantLock lock = new ReentrantLock();
+    // Ring of sub-window counters, indexed by sub-window number modulo its length
     private final long[] subWindowCounters;
-    private final long[] subWindowStartTimes;
-    private int currentSubWindow;
-    private double permitsPerSecond;
+    private final long origin;
+    private long currentSubWindow;
+    private long totalCount;
+    private volatile double permitsPerSecond;
 
     public SlidingWindowCounterSubWindowRateLimiter(double permitsPerSecond, int windowSizeInSeconds, int subWindowSizeInSeconds) {
-        this.permitsPerSecond = permitsPerSecond;
-        this.maxPermits = (long) permitsPerSecond;
-        this.windowSizeInSeconds = windowSizeInSeconds;
-        this.subWindowSizeInSeconds = subWindowSizeInSeconds;
-        int subWindowCount = (windowSizeInSeconds / subWindowSizeInSeconds) + 1;
-        this.subWindowCounters = new long[subWindowCount];
-        this.subWindowStartTimes = new long[subWindowCount];
-        this.currentSubWindow = 0;
-        long now = System.nanoTime();
-        for (int i = 0; i < subWindowCount; i++) {
-            subWindowStartTimes[i] = now;
-        }
+        this(permitsPerSecond, windowSizeInSeconds, subWindowSizeInSeconds, TimeUnit.SECONDS);
     }
 
-    private void updateCounters() {
-        long now = System.nanoTime();
-        long windowDurationInNanos = windowSizeInSeconds * 1_000_000_000L;
-        long subWindowDurationInNanos = subWindowSizeInSeconds * 1_000_000_000L;
+    public SlidingWindowCounterSubWindowRateLimiter(double permitsPerSecond, int windowSizeInSeconds, int subWindowSizeInSeconds, NanoClock clock) {
+        this(permitsPerSecond, windowSizeInSeconds, subWindowSizeInSeconds, TimeUnit.SECONDS, clock);
+    }
 
-        for (int i = 0; i < subWindowCounters.length; i++) {
-            if (now - subWindowStartTimes[i] >= windowDurationInNanos) {
-                subWindowCounters[i] = 0;
-                subWindowStartTimes[i] = now;
-            }
-        }
+    public SlidingWindowCounterSubWindowRateLimiter(double permitsPerSecond, long windowSize, long subWindowSize, TimeUnit unit) {
+        this(permitsPerSecond, windowSize, subWindowSize, unit, NanoClock.SYSTEM);
+    }
 
-        long oldestSubWindowStartTime = subWindowStartTimes[currentSubWindow];
-        if (now - oldestSubWindowStartTime >= subWindowDurationInNanos) {
-            currentSubWindow = (currentSubWindow + 1) % subWindowCounters.length;
-            subWindowCounters[currentSubWindow] = 0;
-            subWindowStartTimes[currentSubWindow] = now;
+    public SlidingWindowCounterSubWindowRateLimiter(double permitsPerSecond, long windowSize, long subWindowSize, TimeUnit unit, NanoClock clock) {
+        super(clock);
+        if (subWindowSize <= 0 || windowSize < subWindowSize) {
+            throw new IllegalArgumentException("subWindowSize must be positive and no larger than windowSize");
         }
+        this.permitsPerSecond = permitsPerSecond;
+        this.maxPermits = (long) permitsPerSecond;
+        this.windowSizeInNanos = unit.toNanos(windowSize);
+        this.subWindowSizeInNanos = unit.toNanos(subWindowSize);
+        int subWindowCount = (int) ((windowSizeInNanos + subWindowSizeInNanos - 1) / subWindowSizeInNanos);
+        this.subWindowCounters = new long[subWindowCount];
+        this.origin = clock.nanoTime();
+        this.currentSubWindow = 0;
+        this.totalCount = 0;
     }
 
-    private long getTotalCount() {
-        long total = 0;
-        for (long count : subWindowCounters) {
-            total += count;
+    private void updateCounters(long now) {
+        long subWindow = (now - origin) / subWindowSizeInNanos;
+        long skipped = subWindow - currentSubWindow;
+        if (skipped <= 0) {
+            return;
+        }
+        if (skipped >= subWindowCounters.length) {
+            // Idle for a whole window, everything has expired
+            Arrays.fill(subWindowCounters, 0);
+            totalCount = 0;
+        } else {
+            // Only the sub-windows skipped since the last call expire
+            for (long i = currentSubWindow + 1; i <= subWindow; i++) {
+                int index = (int) (i % subWindowCounters.length);
+                totalCount -= subWindowCounters[index];
+                subWindowCounters[index] = 0;
+            }
         }
-        return total;
+        currentSubWindow = subWindow;
     }
 
     @Override
-    public boolean acquire() {
-        lock.lock();
+    protected long acquireOrGetWait(int permits, long now) {
+        lock(lock);
         try {
-            updateCounters();
-            if (getTotalCount() < maxPermits) {
-                subWindowCounters[currentSubWindow]++;
-                return true;
+            updateCounters(now);
+            long maxPermits = this.maxPermits;
+            if (permits > maxPermits) {
+                return Long.MAX_VALUE;
             }
-            return false;
+            if (totalCount + permits <= maxPermits) {
+                subWindowCounters[(int) (currentSubWindow % subWindowCounters.length)] += permits;
+                totalCount += permits;
+                return 0;
+            }
+            // Permits can only free up when the oldest sub-window expires at the next boundary
+            return Math.max(1, origin + (currentSubWindow + 1) * subWindowSizeInNanos - now);
         } finally {
             lock.unlock();
         }
     }
 
     @Override
-    public boolean tryAcquire(long timeout, TimeUnit unit) {
-        long timeoutInNanos = unit.toNanos(timeout);
-        long deadline = System.nanoTime() + timeoutInNanos;
-        lock.lock();
+    public void refund(int permits) {
+        checkPermits(permits);
+        lock(lock);
         try {
-            while (System.nanoTime() < deadline) {
-                updateCounters();
-                if (getTotalCount() < maxPermits) {
-                    subWindowCounters[currentSubWindow]++;
-                    return true;
-                }
-                try {
-                    TimeUnit.NANOSECONDS.sleep(1_000); // Sleep briefly to avoid busy waiting
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                    return false;
-                }
-            }
-            return false;
+            int index = (int) (currentSubWindow % subWindowCounters.length);
+            long refunded = Math.min(permits, subWindowCounters[index]);
+            subWindowCounters[index] -= refunded;
+            totalCount -= refunded;
         } finally {
             lock.unlock();
         }
+        clearDenial();
     }
 
     @Override
     public void setRate(double permitsPerSecond) {
-        lock.lock();
-        try {
-            this.permitsPerSecond = permitsPerSecond;
-            this.maxPermits = (long) permitsPerSecond;
-        } finally {
-            lock.unlock();
-        }
+        this.permitsPerSecond = permitsPerSecond;
+        this.maxPermits = (long) permitsPerSecond;
+        clearDenial();
+    }
+
+    @Override
+    protected long maxPermits() {
+        return maxPermits;
     }
 
     @Override
     public double getRate() {
-        lock.lock();
-        try {
-            return permitsPerSecond;
-        } finally {
-            lock.unlock();
-        }
+        return permitsPerSecond;
     }
 }
@@ -1,94 +1,133 @@
 package org.example;
 
-import java.util.Deque;
-import java.util.LinkedList;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
 
-public class SlidingWindowLogRateLimiter implements RateLimiter {
+public class SlidingWindowLogRateLimiter extends AbstractRateLimiter {
     private final ReentrantLock lock = new ReentrantLock();
 
     private final long windowSizeInNanos;
-    private final Deque<Long> timestamps;
-    private double permitsPerSecond;
-    private long maxPermits;
+    // Ring buffer of admission times, oldest at head. Only holds more than maxPermits entries
+    // right after the rate was lowered.
+    private long[] timestamps;
+    private int head;
+    private int size;
+    private volatile double permitsPerSecond;
+    private volatile long maxPermits;
 
     public SlidingWindowLogRateLimiter(double permitsPerSecond) {
+        this(permitsPerSecond, NanoClock.SYSTEM);
+    }
+
+    public SlidingWindowLogRateLimiter(double permitsPerSecond, NanoClock clock) {
+        super(clock);
         this.permitsPerSecond = permitsPerSecond;
-        this.maxPermits = (long) permitsPerSecond;
+        this.maxPermits = checkMaxPermits(permitsPerSecond);
         this.windowSizeInNanos = 1_000_000_000; // 1 second in nanoseconds
-        this.timestamps = new LinkedList<>();
+        this.timestamps = new long[(int) maxPermits];
     }
 
     @Override
-    public boolean acquire() {
-        long now = System.nanoTime();
-        lock.lock();
+    protected long acquireOrGetWait(int permits, long now) {
+        lock(lock);
         try {
-            // Remove timestamps that are outside the window
-            while (!timestamps.isEmpty() && now - timestamps.peekFirst() >= windowSizeInNanos) {
-                timestamps.pollFirst();
+            if (size > 0) {
+                // Keep the log sorted even if a caller read the clock before the previous one
+                now = Math.max(now, timestamps[index(size - 1)]);
+            }
+            evictExpired(now);
+            long maxPermits = this.maxPermits;
+            if (timestamps.length != maxPermits && size <= maxPermits) {
+                resize((int) maxPermits); // The rate was changed since the last call
             }
 
-            if (timestamps.size() < maxPermits) {
-                timestamps.addLast(now);
-                return true;
+            if (permits > maxPermits) {
+                return Long.MAX_VALUE;
+            }
+            if (size + permits <= maxPermits) {
+                for (int i = 0; i < permits; i++) {
+                    timestamps[index(size++)] = now;
+                }
+                return 0;
             }
-            return false;
+            // Enough of the oldest timestamps have to leave the window to make room
+            long toExpire = size + permits - maxPermits;
+            return Math.max(1, timestamps[index((int) toExpire - 1)] + windowSizeInNanos - now);
         } finally {
             lock.unlock();
         }
     }
 
     @Override
-    public boolean tryAcquire(long timeout, TimeUnit unit) {
-        long timeoutInNanos = unit.toNanos(timeout);
-        long deadline = System.nanoTime() + timeoutInNanos;
-        lock.lock();
+    public void refund(int permits) {
+        checkPermits(permits);
+        lock(lock);
         try {
-            while (System.nanoTime() < deadline) {
-                long now = System.nanoTime();
-                // Remove timestamps that are outside the window
-                while (!timestamps.isEmpty() && now - timestamps.peekFirst() >= windowSizeInNanos) {
-                    timestamps.pollFirst();
-                }
-
-                if (timestamps.size() < maxPermits) {
-                    timestamps.addLast(now);
-                    return true;
-                }
-                try {
-                    TimeUnit.NANOSECONDS.sleep(1_000); // Sleep briefly to avoid busy waiting
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                    return false;
-                }
-            }
-            return false;
+            // The newest entries are the ones the permits were just logged as
+            size -= Math.min(permits, size);
         } finally {
             lock.unlock();
         }
+        clearDenial();
     }
 
     @Override
     public void setRate(double permitsPerSecond) {
-        lock.lock();
-        try {
-            this.permitsPerSecond = permitsPerSecond;
-            this.maxPermits = (long) permitsPerSecond;
-        } finally {
-            lock.unlock();
-        }
+        long maxPermits = checkMaxPermits(permitsPerSecond);
+        this.permitsPerSecond = permitsPerSecond;
+        // The log is resized by the next call, once it fits
+        this.maxPermits = maxPermits;
+        clearDenial();
+    }
+
+    @Override
+    protected long maxPermits() {
+        return maxPermits;
     }
 
     @Override
     public double getRate() {
-        lock.lock();
-        try {
-            return permitsPerSecond;
-        } finally {
-            lock.unlock();
+        return permitsPerSecond;
+    }
+
+    private void evictExpired(long now) {
+        // The log is sorted, so binary search for the first timestamp still inside the window
+        long oldestInWindow = now - windowSizeInNanos;
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (timestamps[index(mid)] - oldestInWindow <= 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        head = index(low);
+        size -= low;
+    }
+
+    private void resize(int capacity) {
+        if (capacity == timestamps.length) {
+            return;
+        }
+        long[] resized = new long[capacity];
+        for (int i = 0; i < size; i++) {
+            resized[i] = timestamps[index(i)];
+        }
+        timestamps = resized;
+        head = 0;
+    }
+
+    private int index(int offset) {
+        int index = head + offset;
+        return index >= timestamps.length ? index - timestamps.length : index;
+    }
+
+    private static long checkMaxPermits(double permitsPerSecond) {
+        if (permitsPerSecond < 0 || permitsPerSecond >= Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("permitsPerSecond must be between 0 and " + Integer.MAX_VALUE);
         }
+        return (long) permitsPerSecond;
     }
 
 }
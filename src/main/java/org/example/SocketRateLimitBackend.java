@@ -0,0 +1,157 @@
+package org.example;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Client of a {@link RateLimitBackendServer}. Requests go over a single connection, one at a
+ * time; the distributed limiters only call the backend to refill their leases, so this is rarely
+ * contended. A connection that fails is dropped and the next request opens a new one.
+ * <p>
+ * Keys go on the wire with {@code '%'} and whitespace escaped as {@code %XXXX}, so any key can be
+ * used, and a reply that is not what the protocol says is reported as an {@link IOException}
+ * like any other failure of the backend.
+ */
+public class SocketRateLimitBackend implements RateLimitBackend, AutoCloseable {
+    private static final int DEFAULT_TIMEOUT_IN_MILLIS = 1_000;
+
+    private final InetSocketAddress address;
+    private final int timeoutInMillis;
+    private final ReentrantLock lock = new ReentrantLock();
+    private Socket socket;
+    private BufferedReader in;
+    private Writer out;
+
+    public SocketRateLimitBackend(InetSocketAddress address) {
+        this(address, DEFAULT_TIMEOUT_IN_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public SocketRateLimitBackend(InetSocketAddress address, long timeout, TimeUnit unit) {
+        this.address = address;
+        this.timeoutInMillis = (int) Math.min(Integer.MAX_VALUE, unit.toMillis(timeout));
+    }
+
+    @Override
+    public long incrementAndGet(String key, long delta, long ttlMillis) throws IOException {
+        return parseLong(call("INCR " + encodeKey(key) + " " + delta + " " + ttlMillis));
+    }
+
+    @Override
+    public long get(String key) throws IOException {
+        return parseLong(call("GET " + encodeKey(key)));
+    }
+
+    @Override
+    public boolean compareAndSet(String key, long expect, long update, long ttlMillis) throws IOException {
+        String response = call("CAS " + encodeKey(key) + " " + expect + " " + update + " " + ttlMillis);
+        if (!response.equals("1") && !response.equals("0")) {
+            throw new IOException("Malformed reply from " + address + ": " + response);
+        }
+        return response.equals("1");
+    }
+
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            disconnect();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private String call(String request) throws IOException {
+        lock.lock();
+        try {
+            if (socket == null) {
+                connect();
+            }
+            String response;
+            try {
+                out.write(request);
+                out.write('\n');
+                out.flush();
+                response = in.readLine();
+            } catch (IOException e) {
+                disconnect();
+                throw e;
+            }
+            if (response == null) {
+                disconnect();
+                throw new IOException("Connection closed by " + address);
+            }
+            if (response.startsWith("ERR")) {
+                throw new IOException(response);
+            }
+            return response;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void connect() throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(address, timeoutInMillis);
+            socket.setSoTimeout(timeoutInMillis);
+            socket.setTcpNoDelay(true);
+            this.in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            this.out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+            this.socket = socket;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    private void disconnect() {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Dropping the connection either way
+            }
+            socket = null;
+            in = null;
+            out = null;
+        }
+    }
+
+    private long parseLong(String response) throws IOException {
+        try {
+            return Long.parseLong(response);
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed reply from " + address + ": " + response, e);
+        }
+    }
+
+    private static String encodeKey(String key) {
+        if (key.isEmpty()) {
+            return "%"; // Can't be the encoding of another key, a '%' always has four digits after it
+        }
+        StringBuilder encoded = null;
+        for (int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+            if (c == '%' || Character.isWhitespace(c) || Character.isISOControl(c)) {
+                if (encoded == null) {
+                    encoded = new StringBuilder(key.length() + 8).append(key, 0, i);
+                }
+                encoded.append('%');
+                for (int shift = 12; shift >= 0; shift -= 4) {
+                    encoded.append(Character.forDigit(c >> shift & 0xF, 16));
+                }
+            } else if (encoded != null) {
+                encoded.append(c);
+            }
+        }
+        return encoded == null ? key : encoded.toString();
+    }
+}
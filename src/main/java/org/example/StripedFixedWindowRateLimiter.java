@@ -0,0 +1,196 @@
+package org.example;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed window rate limiter for a single, very hot global limit. The budget of each window is
+ * split evenly across stripes, in the style of {@link java.util.concurrent.atomic.LongAdder},
+ * and every thread draws from the stripe picked by its thread id, so threads on different cores
+ * update different cache lines instead of one shared lock. A thread whose stripe runs dry
+ * borrows from the other stripes before the request is denied.
+ * <p>
+ * Every stripe is one {@code long} packing the index of the window it belongs to, 32 bits that
+ * last for over a century of one second windows, and the permits it still has. A stripe from an
+ * earlier window is reset to its share of the current window by the first CAS that sees it, so
+ * windows roll over without any coordinator, however long a stripe was idle. Every permit is
+ * drawn from a stripe of exactly one window, so at a fixed rate no window admits more than its
+ * budget. A call to {@link #setRate(double)} only affects windows starting after it; the window
+ * in progress can be off by the rate difference.
+ */
+public class StripedFixedWindowRateLimiter extends AbstractRateLimiter {
+    private static final int WINDOW_BITS = 32;
+    private static final int REMAINING_BITS = Long.SIZE - WINDOW_BITS;
+    private static final long WINDOW_MASK = (1L << WINDOW_BITS) - 1;
+    private static final long REMAINING_MASK = (1L << REMAINING_BITS) - 1;
+    // Spaces stripes a cache line apart
+    private static final int PADDING = 8;
+
+    public static final long MAX_PERMITS_PER_SECOND = REMAINING_MASK;
+
+    private final AtomicLongArray stripes;
+    private final int stripeCount;
+    private final long origin;
+    private final long windowSizeInNanos;
+    private volatile long maxPermits;
+    private volatile double permitsPerSecond;
+    // Window in which a full scan found every stripe empty, so later calls can deny without scanning
+    private volatile long exhaustedWindow = -1;
+
+    public StripedFixedWindowRateLimiter(long permitsPerSecond) {
+        this(permitsPerSecond, Runtime.getRuntime().availableProcessors());
+    }
+
+    public StripedFixedWindowRateLimiter(long permitsPerSecond, int stripeCount) {
+        this(permitsPerSecond, stripeCount, NanoClock.SYSTEM);
+    }
+
+    public StripedFixedWindowRateLimiter(long permitsPerSecond, int stripeCount, NanoClock clock) {
+        super(clock);
+        if (stripeCount <= 0) {
+            throw new IllegalArgumentException("stripeCount must be positive");
+        }
+        checkRate(permitsPerSecond);
+        this.stripeCount = stripeCount;
+        this.stripes = new AtomicLongArray(stripeCount * PADDING);
+        this.permitsPerSecond = permitsPerSecond;
+        this.maxPermits = permitsPerSecond;
+        this.windowSizeInNanos = 1_000_000_000; // 1 second in nanoseconds
+        this.origin = clock.nanoTime();
+        // Every stripe starts out in window tag 0, which has ended before the first window
+    }
+
+    @Override
+    protected long acquireOrGetWait(int permits, long now) {
+        if (permits > maxPermits) {
+            return Long.MAX_VALUE;
+        }
+        long window = (now - origin) / windowSizeInNanos;
+        long nanosUntilNextWindow = Math.max(1, origin + (window + 1) * windowSizeInNanos - now);
+        if (exhaustedWindow == window) {
+            return nanosUntilNextWindow;
+        }
+        int home = (int) (Thread.currentThread().getId() % stripeCount);
+        long needed = permits;
+        for (int i = 0; i < stripeCount && needed > 0; i++) {
+            needed -= take((home + i) % stripeCount, window, needed);
+        }
+        if (needed == 0) {
+            return 0;
+        }
+        // Not enough permits left in this window, hand back what was taken
+        if (needed < permits) {
+            give(home, window, permits - needed);
+            // A caller that saw the stripes while they were taken may have marked the window
+            exhaustedWindow = -1;
+            clearDenial();
+        } else {
+            exhaustedWindow = window;
+            // Permits handed back by a caller that did not see the mark are found by the re-check
+            if (hasPermits(window)) {
+                exhaustedWindow = -1;
+            }
+        }
+        return nanosUntilNextWindow;
+    }
+
+    @Override
+    public void refund(int permits) {
+        checkPermits(permits);
+        long window = (clock.nanoTime() - origin) / windowSizeInNanos;
+        give((int) (Thread.currentThread().getId() % stripeCount), window, permits);
+        exhaustedWindow = -1;
+        clearDenial();
+    }
+
+    @Override
+    public void setRate(double permitsPerSecond) {
+        checkRate(permitsPerSecond);
+        this.permitsPerSecond = permitsPerSecond;
+        this.maxPermits = (long) permitsPerSecond;
+        clearDenial();
+    }
+
+    @Override
+    protected long maxPermits() {
+        return maxPermits;
+    }
+
+    @Override
+    public double getRate() {
+        return permitsPerSecond;
+    }
+
+    private long take(int stripe, long window, long permits) {
+        int index = stripe * PADDING;
+        long windowTag = tag(window);
+        while (true) {
+            long current = stripes.get(index);
+            long remaining;
+            if (windowOf(current) == windowTag) {
+                remaining = remainingOf(current);
+            } else if (windowOf(current) < windowTag) {
+                remaining = share(stripe);
+            } else {
+                return 0; // A later window already started on this stripe
+            }
+            long taken = Math.min(remaining, permits);
+            if (taken == 0 && windowOf(current) == windowTag) {
+                return 0;
+            }
+            if (stripes.compareAndSet(index, current, pack(windowTag, remaining - taken))) {
+                return taken;
+            }
+        }
+    }
+
+    private void give(int stripe, long window, long permits) {
+        int index = stripe * PADDING;
+        long windowTag = tag(window);
+        while (true) {
+            long current = stripes.get(index);
+            if (windowOf(current) != windowTag || stripes.compareAndSet(index, current,
+                    pack(windowTag, Math.min(REMAINING_MASK, remainingOf(current) + permits)))) {
+                return;
+            }
+        }
+    }
+
+    private long share(int stripe) {
+        long max = maxPermits;
+        return max / stripeCount + (stripe < max % stripeCount ? 1 : 0);
+    }
+
+    private boolean hasPermits(long window) {
+        long windowTag = tag(window);
+        for (int i = 0; i < stripeCount; i++) {
+            long current = stripes.get(i * PADDING);
+            if (windowOf(current) < windowTag ? share(i) > 0
+                    : windowOf(current) == windowTag && remainingOf(current) > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long tag(long window) {
+        return (window + 1) & WINDOW_MASK;
+    }
+
+    private static void checkRate(double permitsPerSecond) {
+        if (!(permitsPerSecond >= 0 && permitsPerSecond <= MAX_PERMITS_PER_SECOND)) {
+            throw new IllegalArgumentException("permitsPerSecond must be between 0 and " + MAX_PERMITS_PER_SECOND);
+        }
+    }
+
+    private static long pack(long windowTag, long remaining) {
+        return (windowTag << REMAINING_BITS) | (remaining & REMAINING_MASK);
+    }
+
+    private static long windowOf(long stripe) {
+        return stripe >>> REMAINING_BITS;
+    }
+
+    private static long remainingOf(long stripe) {
+        return stripe & REMAINING_MASK;
+    }
+}
@@ -0,0 +1,436 @@
+package org.example;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Per-address rate limiter that also limits the subnets around each address, so that a client
+ * rotating through the addresses of a /24 or an IPv6 /64 is still held to the limit of that
+ * prefix. There is one limit per level, each level being a prefix length for IPv4 and one for
+ * IPv6: by default the address itself (/32 and /128), a small subnet (/24 and /64) and a large
+ * one (/16 and /48). A request is allowed only if every level allows it, and then counts against
+ * all of them.
+ * <p>
+ * Every prefix seen is a node of a binary Patricia trie over the 128 bits of the address (IPv4
+ * as an IPv4-mapped IPv6 address), so finding the prefixes of an address takes at most one step
+ * per bit no matter how many prefixes are tracked. The trie lives in primitive arrays, and each
+ * prefix keeps GCRA state like {@link GcraRateLimiter}: one theoretical arrival time, with a
+ * burst tolerance of one second worth of its rate. Deciding a request does not allocate, except
+ * for the rare request that rebuilds a segment.
+ * <p>
+ * The trie is split into segments by the shortest prefix, each with its own lock, so all the
+ * prefixes of an address are in the same segment. When a segment runs out of nodes it is rebuilt
+ * with only the prefixes that are not back at rest, and if too many are still live, without the
+ * ones least recently used as well, so that every rebuild frees at least a quarter of the nodes.
+ * A rebuild copies the live prefixes out to temporary arrays under the segment lock, which keeps
+ * the segments at their size rather than twice it.
+ * Prefixes are looked up shortest first, and the subnets an address is in are used by every one
+ * of its requests, so a client rotating through addresses evicts its addresses, not its subnets.
+ */
+public class SubnetRateLimiter {
+    private static final int[] DEFAULT_IPV4_PREFIX_LENGTHS = {32, 24, 16};
+    private static final int[] DEFAULT_IPV6_PREFIX_LENGTHS = {128, 64, 48};
+    private static final int DEFAULT_MAXIMUM_PREFIXES = 1_000_000;
+    private static final int NIL = -1;
+    // Theoretical arrival time of a node that only branches and is not a tracked prefix
+    private static final long BRANCH = -1;
+    private static final int IPV4_MAPPED_BITS = 96;
+    private static final long IPV4_MAPPED_MARKER = 0xFFFFL;
+
+    private final NanoClock clock;
+    private final long origin;
+    private final int[] ipv4PrefixLengths;
+    private final int[] ipv6PrefixLengths;
+    // Levels by increasing prefix length
+    private final int[] ipv4LevelOrder;
+    private final int[] ipv6LevelOrder;
+    private final int ipv4SegmentPrefixLength;
+    private final int ipv6SegmentPrefixLength;
+    private final Segment[] segments;
+    private final int segmentShift;
+    private final long seed = KeyHashing.newSeed();
+    private final ReentrantLock rateLock = new ReentrantLock();
+    // Emission interval and burst tolerance of each level, replaced as a whole by setRate
+    private volatile long[] limits;
+    private volatile double[] permitsPerSecond;
+
+    /**
+     * Creates a limiter for addresses (/32, /128), small subnets (/24, /64) and large subnets
+     * (/16, /48) with the given rates.
+     */
+    public SubnetRateLimiter(double permitsPerAddress, double permitsPerSmallSubnet, double permitsPerLargeSubnet) {
+        this(DEFAULT_IPV4_PREFIX_LENGTHS, DEFAULT_IPV6_PREFIX_LENGTHS,
+                new double[]{permitsPerAddress, permitsPerSmallSubnet, permitsPerLargeSubnet},
+                DEFAULT_MAXIMUM_PREFIXES, Runtime.getRuntime().availableProcessors() * 4, NanoClock.SYSTEM);
+    }
+
+    /**
+     * Creates a limiter with one level per element of {@code permitsPerSecond}, level {@code i}
+     * limiting the IPv4 prefixes of length {@code ipv4PrefixLengths[i]} and the IPv6 prefixes of
+     * length {@code ipv6PrefixLengths[i]}.
+     */
+    public SubnetRateLimiter(int[] ipv4PrefixLengths, int[] ipv6PrefixLengths, double[] permitsPerSecond,
+                             int maximumPrefixes, int concurrencyLevel, NanoClock clock) {
+        if (permitsPerSecond.length == 0 || ipv4PrefixLengths.length != permitsPerSecond.length
+                || ipv6PrefixLengths.length != permitsPerSecond.length) {
+            throw new IllegalArgumentException("There must be one IPv4 and one IPv6 prefix length per level");
+        }
+        this.ipv4PrefixLengths = new int[ipv4PrefixLengths.length];
+        this.ipv6PrefixLengths = ipv6PrefixLengths.clone();
+        int ipv4SegmentPrefixLength = Integer.MAX_VALUE;
+        int ipv6SegmentPrefixLength = Integer.MAX_VALUE;
+        for (int i = 0; i < permitsPerSecond.length; i++) {
+            if (ipv4PrefixLengths[i] < 0 || ipv4PrefixLengths[i] > 32
+                    || ipv6PrefixLengths[i] < 0 || ipv6PrefixLengths[i] > 128) {
+                throw new IllegalArgumentException("Prefix lengths must be between 0 and 32 (IPv4) or 128 (IPv6)");
+            }
+            this.ipv4PrefixLengths[i] = IPV4_MAPPED_BITS + ipv4PrefixLengths[i];
+            ipv4SegmentPrefixLength = Math.min(ipv4SegmentPrefixLength, this.ipv4PrefixLengths[i]);
+            ipv6SegmentPrefixLength = Math.min(ipv6SegmentPrefixLength, ipv6PrefixLengths[i]);
+        }
+        this.ipv4LevelOrder = levelOrder(this.ipv4PrefixLengths);
+        this.ipv6LevelOrder = levelOrder(this.ipv6PrefixLengths);
+        this.ipv4SegmentPrefixLength = ipv4SegmentPrefixLength;
+        this.ipv6SegmentPrefixLength = ipv6SegmentPrefixLength;
+        this.limits = limits(permitsPerSecond);
+        this.permitsPerSecond = permitsPerSecond.clone();
+
+        int segmentCount = CompactKeyedRateLimiter.segmentCount(concurrencyLevel);
+        // A prefix takes at most two nodes, itself and the branch it hangs from
+        int nodesPerSegment = (int) Math.min(Integer.MAX_VALUE - 8,
+                Math.max(4L * permitsPerSecond.length, 2L * maximumPrefixes / segmentCount));
+        this.segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment(nodesPerSegment, permitsPerSecond.length);
+        }
+        this.segmentShift = Long.SIZE - Integer.numberOfTrailingZeros(segmentCount);
+        this.clock = clock;
+        this.origin = clock.nanoTime();
+    }
+
+    /**
+     * Acquires a permit for an IPv4 (4 bytes) or IPv6 (16 bytes) address in network byte order,
+     * from the address and every subnet around it.
+     */
+    public boolean acquire(byte[] address) {
+        return acquire(address, 1);
+    }
+
+    /**
+     * Acquires the given number of permits for an IPv4 or IPv6 address, all or none.
+     */
+    public boolean acquire(byte[] address, int permits) {
+        return acquire(KeyHashing.addressHi(address), KeyHashing.addressLo(address), permits);
+    }
+
+    /**
+     * Acquires a permit for an IPv4 address packed into an int, most significant byte first.
+     */
+    public boolean acquireIPv4(int address) {
+        return acquireIPv4(address, 1);
+    }
+
+    /**
+     * Acquires the given number of permits for an IPv4 address packed into an int, all or none.
+     */
+    public boolean acquireIPv4(int address, int permits) {
+        return acquire(0, KeyHashing.ipv4Lo(address), permits);
+    }
+
+    /**
+     * Acquires the given number of permits for an address given as the high and low 64 bits of
+     * an IPv6 or IPv4-mapped address, all or none.
+     */
+    public boolean acquire(long addressHi, long addressLo, int permits) {
+        AbstractRateLimiter.checkPermits(permits);
+        boolean ipv4 = addressHi == 0 && addressLo >>> 32 == IPV4_MAPPED_MARKER;
+        int[] prefixLengths = ipv4 ? ipv4PrefixLengths : ipv6PrefixLengths;
+        int[] levelOrder = ipv4 ? ipv4LevelOrder : ipv6LevelOrder;
+        int segmentPrefixLength = ipv4 ? ipv4SegmentPrefixLength : ipv6SegmentPrefixLength;
+        long spread = KeyHashing.spread(maskHi(addressHi, segmentPrefixLength),
+                maskLo(addressLo, segmentPrefixLength), seed);
+        Segment segment = segments[segmentShift == Long.SIZE ? 0 : (int) (spread >>> segmentShift)];
+        long now = clock.nanoTime() - origin;
+        segment.lock.lock();
+        try {
+            return segment.acquire(addressHi, addressLo, prefixLengths, levelOrder, permits, now);
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    /**
+     * Sets the rate of the given level.
+     */
+    public void setRate(int level, double permitsPerSecond) {
+        rateLock.lock();
+        try {
+            double[] rates = this.permitsPerSecond.clone();
+            rates[level] = permitsPerSecond;
+            this.limits = limits(rates);
+            this.permitsPerSecond = rates;
+        } finally {
+            rateLock.unlock();
+        }
+    }
+
+    public double getRate(int level) {
+        return permitsPerSecond[level];
+    }
+
+    /**
+     * Returns the number of tracked prefixes, including those that are back at rest and not yet
+     * dropped by a rebuild.
+     */
+    public long size() {
+        long size = 0;
+        for (Segment segment : segments) {
+            size += segment.prefixes;
+        }
+        return size;
+    }
+
+    private static long[] limits(double[] permitsPerSecond) {
+        long[] limits = new long[permitsPerSecond.length * 2];
+        for (int i = 0; i < permitsPerSecond.length; i++) {
+            long interval = GcraRateLimiter.emissionIntervalInNanos(permitsPerSecond[i]);
+            limits[i * 2] = interval;
+            limits[i * 2 + 1] = Math.max(1, (long) Math.ceil(permitsPerSecond[i])) * interval;
+        }
+        return limits;
+    }
+
+    private static int[] levelOrder(int[] prefixLengths) {
+        int[] order = new int[prefixLengths.length];
+        for (int i = 0; i < order.length; i++) {
+            int level = i;
+            for (; level > 0 && prefixLengths[order[level - 1]] > prefixLengths[i]; level--) {
+                order[level] = order[level - 1];
+            }
+            order[level] = i;
+        }
+        return order;
+    }
+
+    private static long maskHi(long hi, int length) {
+        return length >= Long.SIZE ? hi : length == 0 ? 0 : hi & (-1L << (Long.SIZE - length));
+    }
+
+    private static long maskLo(long lo, int length) {
+        return length <= Long.SIZE ? 0 : length == 2 * Long.SIZE ? lo : lo & (-1L << (2 * Long.SIZE - length));
+    }
+
+    private static int bit(long hi, long lo, int index) {
+        return (int) (index < Long.SIZE ? hi >>> (Long.SIZE - 1 - index) : lo >>> (2 * Long.SIZE - 1 - index)) & 1;
+    }
+
+    private static int commonPrefixLength(long hi1, long lo1, long hi2, long lo2, int limit) {
+        long hi = hi1 ^ hi2;
+        int common = hi != 0 ? Long.numberOfLeadingZeros(hi) : Long.SIZE + Long.numberOfLeadingZeros(lo1 ^ lo2);
+        return Math.min(common, limit);
+    }
+
+    private final class Segment {
+        final ReentrantLock lock = new ReentrantLock();
+        final long[] prefixesHi;
+        final long[] prefixesLo;
+        final int[] lengths;
+        final int[] children;
+        final long[] theoreticalArrivalTimes;
+        // Sequence number of the last request that used each node
+        final long[] lastUsed;
+        // Node of each level for the address being decided, NIL if it could not be tracked
+        final int[] found;
+        int root = NIL;
+        int used;
+        long requests;
+        volatile int prefixes;
+
+        Segment(int nodes, int levels) {
+            this.prefixesHi = new long[nodes];
+            this.prefixesLo = new long[nodes];
+            this.lengths = new int[nodes];
+            this.children = new int[nodes * 2];
+            this.theoreticalArrivalTimes = new long[nodes];
+            this.lastUsed = new long[nodes];
+            this.found = new int[levels];
+        }
+
+        boolean acquire(long hi, long lo, int[] prefixLengths, int[] levelOrder, int permits, long now) {
+            if (!findAll(hi, lo, prefixLengths, levelOrder, now)) {
+                rebuild(now);
+                findAll(hi, lo, prefixLengths, levelOrder, now);
+            }
+            long[] limits = SubnetRateLimiter.this.limits;
+            for (int level = 0; level < found.length; level++) {
+                if (found[level] == NIL) {
+                    continue; // Not tracked for lack of nodes, the other levels still apply
+                }
+                long interval = limits[level * 2];
+                long tat = Math.max(theoreticalArrivalTimes[found[level]], now) + permits * interval;
+                if (tat - limits[level * 2 + 1] > now) {
+                    return false;
+                }
+            }
+            for (int level = 0; level < found.length; level++) {
+                int node = found[level];
+                if (node != NIL) {
+                    theoreticalArrivalTimes[node] = Math.max(theoreticalArrivalTimes[node], now)
+                            + permits * limits[level * 2];
+                }
+            }
+            return true;
+        }
+
+        private boolean findAll(long hi, long lo, int[] prefixLengths, int[] levelOrder, long now) {
+            boolean all = true;
+            long request = ++requests;
+            // Shortest first, so that the subnets are tracked even when the address cannot be
+            for (int level : levelOrder) {
+                int length = prefixLengths[level];
+                int node = findOrInsert(maskHi(hi, length), maskLo(lo, length), length, now);
+                found[level] = node;
+                if (node == NIL) {
+                    all = false;
+                } else {
+                    lastUsed[node] = request;
+                }
+            }
+            return all;
+        }
+
+        /**
+         * Returns the node of the given prefix, inserting it at rest if it is not tracked yet, or
+         * {@link #NIL} if there are no nodes left.
+         */
+        private int findOrInsert(long hi, long lo, int length, long now) {
+            int parent = NIL;
+            int direction = 0;
+            int node = root;
+            while (node != NIL) {
+                int nodeLength = lengths[node];
+                int common = commonPrefixLength(prefixesHi[node], prefixesLo[node], hi, lo,
+                        Math.min(nodeLength, length));
+                if (common < nodeLength) {
+                    // The prefix ends inside the node's prefix or branches off it
+                    if (used + 2 > theoreticalArrivalTimes.length) {
+                        return NIL;
+                    }
+                    int created = allocate(hi, lo, length, now);
+                    int top = created;
+                    if (common == length) {
+                        children[created * 2 + bit(prefixesHi[node], prefixesLo[node], length)] = node;
+                    } else {
+                        top = allocate(maskHi(hi, common), maskLo(lo, common), common, BRANCH);
+                        children[top * 2 + bit(hi, lo, common)] = created;
+                        children[top * 2 + bit(prefixesHi[node], prefixesLo[node], common)] = node;
+                    }
+                    link(parent, direction, top);
+                    return created;
+                }
+                if (nodeLength == length) {
+                    if (theoreticalArrivalTimes[node] == BRANCH) {
+                        theoreticalArrivalTimes[node] = now;
+                        prefixes++;
+                    }
+                    return node;
+                }
+                parent = node;
+                direction = bit(hi, lo, nodeLength);
+                node = children[node * 2 + direction];
+            }
+            if (used + 1 > theoreticalArrivalTimes.length) {
+                return NIL;
+            }
+            int created = allocate(hi, lo, length, now);
+            link(parent, direction, created);
+            return created;
+        }
+
+        private int allocate(long hi, long lo, int length, long theoreticalArrivalTime) {
+            int node = used++;
+            prefixesHi[node] = hi;
+            prefixesLo[node] = lo;
+            lengths[node] = length;
+            children[node * 2] = NIL;
+            children[node * 2 + 1] = NIL;
+            theoreticalArrivalTimes[node] = theoreticalArrivalTime;
+            if (theoreticalArrivalTime != BRANCH) {
+                prefixes++;
+            }
+            return node;
+        }
+
+        private void link(int parent, int direction, int node) {
+            if (parent == NIL) {
+                root = node;
+            } else {
+                children[parent * 2 + direction] = node;
+            }
+        }
+
+        /**
+         * Drops every prefix that is back at rest, which is the same as a prefix never seen, and
+         * rebuilds the trie from the others. If they would take more than three quarters of the
+         * nodes, or leave too few for the next address, the least recently used are dropped too,
+         * so rebuilds stay rare however many prefixes are live.
+         */
+        private void rebuild(long now) {
+            // Counted by length first, to put the prefixes back shortest first
+            int[] starts = new int[2 * Long.SIZE + 2];
+            int live = 0;
+            for (int node = 0; node < used; node++) {
+                if (theoreticalArrivalTimes[node] > now) {
+                    starts[lengths[node] + 1]++;
+                    live++;
+                }
+            }
+            for (int length = 1; length < starts.length; length++) {
+                starts[length] += starts[length - 1];
+            }
+            long[] hi = new long[live];
+            long[] lo = new long[live];
+            int[] length = new int[live];
+            long[] tat = new long[live];
+            long[] lastUse = new long[live];
+            for (int node = 0; node < used; node++) {
+                if (theoreticalArrivalTimes[node] > now) {
+                    int kept = starts[lengths[node]]++;
+                    hi[kept] = prefixesHi[node];
+                    lo[kept] = prefixesLo[node];
+                    length[kept] = lengths[node];
+                    tat[kept] = theoreticalArrivalTimes[node];
+                    lastUse[kept] = lastUsed[node];
+                }
+            }
+            // A prefix takes at most two nodes, and the next address needs two per level
+            int nodes = theoreticalArrivalTimes.length;
+            int keep = (nodes - Math.max(nodes / 4, 2 * found.length)) / 2;
+            long evictedBefore = Long.MIN_VALUE;
+            int lastUseTies = 0;
+            if (live > keep) {
+                long[] sorted = lastUse.clone();
+                Arrays.sort(sorted);
+                evictedBefore = sorted[live - keep];
+                // Prefixes of the same request share their last use, the shorter ones are kept
+                lastUseTies = keep;
+                for (long use : sorted) {
+                    if (use > evictedBefore) {
+                        lastUseTies--;
+                    }
+                }
+            }
+            root = NIL;
+            used = 0;
+            prefixes = 0;
+            for (int i = 0; i < live; i++) {
+                if (lastUse[i] < evictedBefore || lastUse[i] == evictedBefore && lastUseTies-- <= 0) {
+                    continue;
+                }
+                int node = findOrInsert(hi[i], lo[i], length[i], now);
+                theoreticalArrivalTimes[node] = tat[i];
+                lastUsed[node] = lastUse[i];
+            }
+        }
+    }
+}
@@ -1,93 +1,109 @@
 package org.example;
 
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
 
-public class TokenBucketRateLimiter implements RateLimiter {
+public class TokenBucketRateLimiter extends AbstractRateLimiter implements ReservableRateLimiter {
     private final long capacity;
     private double tokens;
     private final ReentrantLock lock = new ReentrantLock();
     private long refillIntervalInNanos;
     private long lastRefillTimestamp;
-    private double refillTokens;
+    // Written by setRate without the lock, and applied under it by the next refill
+    private volatile double refillTokens;
+    private double appliedRefillTokens;
 
     public TokenBucketRateLimiter(long capacity, double permitsPerSecond) {
+        this(capacity, permitsPerSecond, NanoClock.SYSTEM);
+    }
+
+    public TokenBucketRateLimiter(long capacity, double permitsPerSecond, NanoClock clock) {
+        super(clock);
         this.capacity = capacity;
         this.refillTokens = permitsPerSecond;
+        this.appliedRefillTokens = permitsPerSecond;
         this.refillIntervalInNanos = (long) (1_000_000_000 / permitsPerSecond);
         this.tokens = capacity;
-        this.lastRefillTimestamp = System.nanoTime();
+        this.lastRefillTimestamp = clock.nanoTime();
     }
 
     @Override
-    public boolean acquire() {
-        lock.lock();
+    protected long acquireOrGetWait(int permits, long now) {
+        lock(lock);
         try {
-            refillTokensIfNeeded();
-            if (tokens >= 1) {
-                tokens--;
-                return true;
+            refillTokensIfNeeded(now);
+            if (permits > capacity) {
+                return Long.MAX_VALUE;
+            }
+            if (tokens >= permits) {
+                tokens -= permits;
+                return 0;
             }
-            return false;
+            return Math.max(1, (long) Math.ceil((permits - tokens) * refillIntervalInNanos));
         } finally {
             lock.unlock();
         }
     }
 
+    /**
+     * Reserves the permits by taking them from the bucket even if that leaves it with a negative
+     * number of tokens; the permits may be used once it has refilled back to zero.
+     */
     @Override
-    public boolean tryAcquire(long timeout, TimeUnit unit) {
-        long timeoutInNanos = unit.toNanos(timeout);
-        long deadline = System.nanoTime() + timeoutInNanos;
-        lock.lock();
+    public Reservation reserve(int permits) {
+        checkPermits(permits);
+        long now = clock.nanoTime();
+        long waitInNanos;
+        lock(lock);
         try {
-            while (System.nanoTime() < deadline) {
-                refillTokensIfNeeded();
-                if (tokens >= 1) {
-                    tokens--;
-                    return true;
-                }
-                try {
-                    TimeUnit.NANOSECONDS.sleep(1_000); // Sleep briefly to avoid busy waiting
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                    return false;
-                }
-            }
-            return false;
+            refillTokensIfNeeded(now);
+            waitInNanos = tokens >= permits ? 0 : (long) Math.ceil((permits - tokens) * refillIntervalInNanos);
+            tokens -= permits;
         } finally {
             lock.unlock();
         }
+        return new Reservation(this, clock, permits, now + waitInNanos);
     }
 
     @Override
-    public void setRate(double permitsPerSecond) {
-        lock.lock();
+    public void refund(int permits) {
+        checkPermits(permits);
+        lock(lock);
         try {
-            this.refillTokens = permitsPerSecond;
-            this.refillIntervalInNanos = (long) (1_000_000_000 / permitsPerSecond);
-            refillTokensIfNeeded();
+            tokens = Math.min(capacity, tokens + permits);
         } finally {
             lock.unlock();
         }
+        clearDenial();
+    }
+
+    @Override
+    public void setRate(double permitsPerSecond) {
+        this.refillTokens = permitsPerSecond;
+        clearDenial();
+    }
+
+    @Override
+    protected long maxPermits() {
+        return capacity;
     }
 
     @Override
     public double getRate() {
-        lock.lock();
-        try {
-            return refillTokens;
-        } finally {
-            lock.unlock();
-        }
+        return refillTokens;
     }
 
-    private void refillTokensIfNeeded() {
-        long now = System.nanoTime();
+    private void refillTokensIfNeeded(long now) {
         if (now > lastRefillTimestamp) {
             long elapsedTime = now - lastRefillTimestamp;
-            double newTokens = (elapsedTime / (double) refillIntervalInNanos) * refillTokens;
+            double newTokens = elapsedTime / (double) refillIntervalInNanos;
             tokens = Math.min(capacity, tokens + newTokens);
             lastRefillTimestamp = now;
         }
+        // A new rate applies from the first refill after it was set, the time before that refills at the old rate
+        double rate = refillTokens;
+        if (rate != appliedRefillTokens) {
+            appliedRefillTokens = rate;
+            refillIntervalInNanos = (long) (1_000_000_000 / rate);
+        }
     }
 }
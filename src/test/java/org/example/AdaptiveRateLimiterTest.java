@@ -0,0 +1,140 @@
+package org.example;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AdaptiveRateLimiterTest {
+
+    private ManualNanoClock clock;
+    private FixedWindowRateLimiter delegate;
+
+    @BeforeEach
+    public void setUp() {
+        clock = new ManualNanoClock();
+        delegate = new FixedWindowRateLimiter(100, clock);
+    }
+
+    @Test
+    public void testAimdBacksOffOnErrors() {
+        AdaptiveRateLimiter rateLimiter = aimd();
+        rateLimiter.onError();
+        assertEquals(100, rateLimiter.getRate()); // Not before the end of the interval
+
+        clock.advance(100, TimeUnit.MILLISECONDS);
+        rateLimiter.onError();
+        assertEquals(90, rateLimiter.getRate(), 1e-9);
+        assertEquals(90, delegate.getRate(), 1e-9);
+    }
+
+    @Test
+    public void testAimdGrowsOnlyWhileUsed() {
+        AdaptiveRateLimiter rateLimiter = aimd();
+        for (int i = 0; i < 10; i++) {
+            assertTrue(rateLimiter.acquire());
+        }
+        rateLimiter.onSuccess(10, TimeUnit.MILLISECONDS);
+        clock.advance(100, TimeUnit.MILLISECONDS);
+        rateLimiter.onSuccess(10, TimeUnit.MILLISECONDS);
+        assertEquals(102, rateLimiter.getRate(), 1e-9);
+
+        // Nothing admitted in this interval
+        clock.advance(100, TimeUnit.MILLISECONDS);
+        rateLimiter.onSuccess(10, TimeUnit.MILLISECONDS);
+        assertEquals(102, rateLimiter.getRate(), 1e-9);
+    }
+
+    @Test
+    public void testRefundOfEarlierIntervalIsNotTakenOff() {
+        AdaptiveRateLimiter rateLimiter = aimd();
+        long token = rateLimiter.acquireWithToken(10);
+        assertNotEquals(AdaptiveRateLimiter.NOT_ACQUIRED, token);
+        rateLimiter.onSuccess(10, TimeUnit.MILLISECONDS);
+        clock.advance(100, TimeUnit.MILLISECONDS);
+        rateLimiter.onSuccess(10, TimeUnit.MILLISECONDS);
+        assertEquals(102, rateLimiter.getRate(), 1e-9);
+
+        // The refund is for the permits of the last interval, this one still used its share
+        assertTrue(rateLimiter.acquire(10));
+        rateLimiter.refund(10, token);
+        clock.advance(100, TimeUnit.MILLISECONDS);
+        rateLimiter.onSuccess(10, TimeUnit.MILLISECONDS);
+        assertEquals(104, rateLimiter.getRate(), 1e-9);
+
+        // Refunded in the same interval, nothing was used
+        token = rateLimiter.acquireWithToken(10);
+        rateLimiter.refund(10, token);
+        clock.advance(100, TimeUnit.MILLISECONDS);
+        rateLimiter.onSuccess(10, TimeUnit.MILLISECONDS);
+        assertEquals(104, rateLimiter.getRate(), 1e-9);
+
+        // Without a token the permits are given back to the limiter but still count as used
+        assertTrue(rateLimiter.acquire(10));
+        rateLimiter.refund(10);
+        clock.advance(100, TimeUnit.MILLISECONDS);
+        rateLimiter.onSuccess(10, TimeUnit.MILLISECONDS);
+        assertEquals(106, rateLimiter.getRate(), 1e-9);
+    }
+
+    @Test
+    public void testAsyncRefundUsesTokenOfAcquisition() throws Exception {
+        AdaptiveRateLimiter rateLimiter = aimd();
+        long token = rateLimiter.acquireAsyncWithToken(10, 1, TimeUnit.SECONDS).get();
+        assertNotEquals(AdaptiveRateLimiter.NOT_ACQUIRED, token);
+
+        // Refunded from another thread, in the same interval
+        Thread refunder = new Thread(() -> rateLimiter.refund(10, token));
+        refunder.start();
+        refunder.join();
+        clock.advance(100, TimeUnit.MILLISECONDS);
+        rateLimiter.onSuccess(10, TimeUnit.MILLISECONDS);
+        assertEquals(100, rateLimiter.getRate(), 1e-9);
+        assertEquals(AdaptiveRateLimiter.NOT_ACQUIRED, rateLimiter.acquireWithToken(1000));
+    }
+
+    @Test
+    public void testGradientBacksOffOnRisingLatency() {
+        AdaptiveRateLimiter rateLimiter = new AdaptiveRateLimiter(delegate, 10, 200,
+                AdaptiveRateLimiter.Algorithm.GRADIENT, 100, TimeUnit.MILLISECONDS, clock);
+        clock.advance(100, TimeUnit.MILLISECONDS);
+        rateLimiter.onSuccess(10, TimeUnit.MILLISECONDS);
+        assertEquals(100, rateLimiter.getRate(), 1e-9);
+
+        clock.advance(100, TimeUnit.MILLISECONDS);
+        rateLimiter.onSuccess(40, TimeUnit.MILLISECONDS); // Gradient is clamped to 0.5, smoothed
+        assertEquals(90, rateLimiter.getRate(), 1e-9);
+
+        for (int i = 0; i < 100; i++) {
+            clock.advance(100, TimeUnit.MILLISECONDS);
+            rateLimiter.onError();
+        }
+        assertEquals(10, rateLimiter.getRate(), 1e-9);
+    }
+
+    @Test
+    public void testSetRateIsClamped() {
+        AdaptiveRateLimiter rateLimiter = aimd();
+        rateLimiter.setRate(1000);
+        assertEquals(200, rateLimiter.getRate());
+        assertEquals(200, delegate.getRate());
+        assertThrows(IllegalArgumentException.class, () -> new AdaptiveRateLimiter(delegate, 0, 10));
+    }
+
+    @Test
+    public void testSlidingWindowCounterSetRateTakesEffect() {
+        SlidingWindowCounterRateLimiter rateLimiter = new SlidingWindowCounterRateLimiter(10, 1, clock);
+        rateLimiter.setRate(2);
+        assertEquals(2, rateLimiter.getRate());
+        assertTrue(rateLimiter.acquire());
+        assertTrue(rateLimiter.acquire());
+        assertFalse(rateLimiter.acquire());
+    }
+
+    private AdaptiveRateLimiter aimd() {
+        return new AdaptiveRateLimiter(delegate, 10, 200,
+                AdaptiveRateLimiter.Algorithm.AIMD, 100, TimeUnit.MILLISECONDS, clock);
+    }
+}
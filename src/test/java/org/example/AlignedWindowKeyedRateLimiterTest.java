@@ -0,0 +1,88 @@
+package org.example;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AlignedWindowKeyedRateLimiterTest {
+
+    @Test
+    public void testWindowsAreAligned() {
+        ManualNanoClock clock = new ManualNanoClock(TimeUnit.MILLISECONDS.toNanos(700));
+        AlignedWindowKeyedRateLimiter rateLimiter = new AlignedWindowKeyedRateLimiter(3, 1_000, 4, clock);
+        assertTrue(rateLimiter.acquire("192.168.1.1", 3));
+        assertFalse(rateLimiter.acquire("192.168.1.1"));
+        assertTrue(rateLimiter.acquire("192.168.1.2"));
+
+        // The window ends on the second, not one second after the first request
+        clock.advance(300, TimeUnit.MILLISECONDS);
+        assertTrue(rateLimiter.acquire("192.168.1.1", 3));
+        assertFalse(rateLimiter.acquire("192.168.1.1"));
+        assertEquals(2, rateLimiter.size());
+    }
+
+    @Test
+    public void testFullProbeWindowKeepsLimits() {
+        ManualNanoClock clock = new ManualNanoClock();
+        AlignedWindowKeyedRateLimiter rateLimiter = new AlignedWindowKeyedRateLimiter(2, 16, 1, clock);
+        int allowed = 0;
+        for (int key = 0; key < 300; key++) {
+            for (int i = 0; i < 10; i++) {
+                if (rateLimiter.acquireIPv4(key)) {
+                    allowed++;
+                }
+            }
+        }
+        assertTrue(allowed <= 128 * 2, "allowed " + allowed);
+
+        clock.advance(1, TimeUnit.SECONDS);
+        assertTrue(rateLimiter.acquireIPv4(299));
+    }
+
+    @Test
+    public void testReset() {
+        ManualNanoClock clock = new ManualNanoClock();
+        AlignedWindowKeyedRateLimiter rateLimiter = new AlignedWindowKeyedRateLimiter(1, 1_000, 4, clock);
+        for (int i = 0; i < 500; i++) {
+            assertTrue(rateLimiter.acquireIPv4(i));
+            assertFalse(rateLimiter.acquireIPv4(i));
+        }
+        rateLimiter.reset();
+        for (int i = 0; i < 500; i++) {
+            assertTrue(rateLimiter.acquireIPv4(i));
+        }
+    }
+
+    @Test
+    public void testStaleCountsNeverComeBack() {
+        ManualNanoClock clock = new ManualNanoClock();
+        AlignedWindowKeyedRateLimiter rateLimiter = new AlignedWindowKeyedRateLimiter(1, 1_000, 1, clock);
+        assertTrue(rateLimiter.acquire("192.168.1.1"));
+        // One full cycle of window tags later, with other keys seen in between
+        for (int i = 0; i < 4095; i++) {
+            clock.advance(1, TimeUnit.SECONDS);
+            assertTrue(rateLimiter.acquire("10.0.0." + (i % 7)));
+        }
+        assertTrue(rateLimiter.acquire("192.168.1.1"));
+
+        // Same after a long idle period
+        clock.advance(3 * 4095, TimeUnit.SECONDS);
+        assertTrue(rateLimiter.acquire("192.168.1.1"));
+        clock.advance(4095, TimeUnit.SECONDS);
+        assertTrue(rateLimiter.acquire("192.168.1.1"));
+    }
+
+    @Test
+    public void testSetRate() {
+        ManualNanoClock clock = new ManualNanoClock();
+        AlignedWindowKeyedRateLimiter rateLimiter = new AlignedWindowKeyedRateLimiter(1, 1_000, 4, clock);
+        rateLimiter.setRate(2);
+        assertEquals(2, rateLimiter.getRate());
+        assertTrue(rateLimiter.acquire("key", 2));
+        assertFalse(rateLimiter.acquire("key"));
+        assertThrows(IllegalArgumentException.class,
+                () -> rateLimiter.setRate(AlignedWindowKeyedRateLimiter.MAX_PERMITS_PER_WINDOW + 1));
+    }
+}
@@ -0,0 +1,95 @@
+package org.example;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AsyncWaitersTest {
+
+    private ManualNanoClock clock;
+    private HashedWheelTimer timer;
+    private ExecutorService executor;
+    private AsyncWaiters waiters;
+
+    @BeforeEach
+    public void setUp() {
+        clock = new ManualNanoClock();
+        timer = new HashedWheelTimer(clock, 1, TimeUnit.MILLISECONDS, 64);
+        executor = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, "callbacks"));
+        // 2 tokens capacity, one token every 100ms
+        waiters = new AsyncWaiters(new TokenBucketRateLimiter(2, 10, clock), timer, executor);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testServesWaitersInOrderAsPermitsFreeUp() throws Exception {
+        assertTrue(waiters.acquire(2, Long.MAX_VALUE).join());
+        CompletableFuture<Boolean> first = waiters.acquire(1, Long.MAX_VALUE);
+        CompletableFuture<Boolean> second = waiters.acquire(1, Long.MAX_VALUE);
+        assertFalse(first.isDone());
+
+        clock.advance(100, TimeUnit.MILLISECONDS);
+        assertTrue(first.get(5, TimeUnit.SECONDS));
+        assertFalse(second.isDone()); // Waits for its own token
+
+        clock.advance(100, TimeUnit.MILLISECONDS);
+        assertTrue(second.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testCompletesFuturesOnTheExecutor() throws Exception {
+        assertTrue(waiters.acquire(2, Long.MAX_VALUE).join());
+        CompletableFuture<String> thread = waiters.acquire(1, Long.MAX_VALUE)
+                .thenApply(acquired -> Thread.currentThread().getName());
+
+        clock.advance(100, TimeUnit.MILLISECONDS);
+        assertEquals("callbacks", thread.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testDeniesImpossibleRequestsRightAway() {
+        assertTrue(waiters.acquire(2, Long.MAX_VALUE).join());
+        CompletableFuture<Boolean> queued = waiters.acquire(1, Long.MAX_VALUE);
+
+        // More than the capacity, even behind another waiter
+        CompletableFuture<Boolean> tooMany = waiters.acquire(3, Long.MAX_VALUE);
+        assertTrue(tooMany.isDone());
+        assertFalse(tooMany.join());
+
+        // Its permits free up after the timeout
+        CompletableFuture<Boolean> tooLate = new AsyncWaiters(new TokenBucketRateLimiter(1, 10, clock), timer, executor)
+                .acquire(2, Long.MAX_VALUE);
+        assertFalse(tooLate.join());
+        assertFalse(queued.isDone());
+    }
+
+    @Test
+    public void testTimesOutOnTheLimiterClockAndCancelsTimeouts() throws Exception {
+        assertTrue(waiters.acquire(2, Long.MAX_VALUE).join());
+        CompletableFuture<Boolean> head = waiters.acquire(1, Long.MAX_VALUE);
+        CompletableFuture<Boolean> expiring = waiters.acquire(2, TimeUnit.MILLISECONDS.toNanos(150));
+        CompletableFuture<Boolean> next = waiters.acquire(1, TimeUnit.SECONDS.toNanos(10));
+        HashedWheelTimerTest.awaitSize(timer, 3); // One drain, two timeouts
+
+        clock.advance(150, TimeUnit.MILLISECONDS);
+        assertTrue(head.get(5, TimeUnit.SECONDS));
+        assertFalse(expiring.get(5, TimeUnit.SECONDS));
+        assertFalse(next.isDone());
+
+        // Granted long before its timeout, which is cancelled instead of sitting in the timer
+        clock.advance(50, TimeUnit.MILLISECONDS);
+        assertTrue(next.get(5, TimeUnit.SECONDS));
+        HashedWheelTimerTest.awaitSize(timer, 0);
+    }
+}
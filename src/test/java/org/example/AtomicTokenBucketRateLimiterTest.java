@@ -0,0 +1,157 @@
+package org.example;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AtomicTokenBucketRateLimiterTest {
+
+    private ManualNanoClock clock;
+    private AtomicTokenBucketRateLimiter rateLimiter;
+
+    @BeforeEach
+    public void setUp() {
+        clock = new ManualNanoClock();
+        rateLimiter = new AtomicTokenBucketRateLimiter(5, 5, clock); // 5 tokens capacity, 5 tokens per second
+    }
+
+    @Test
+    public void testBasicRateLimiting() {
+        for (int i = 0; i < 5; i++) {
+            assertTrue(rateLimiter.acquire());
+        }
+        assertFalse(rateLimiter.acquire());
+
+        // One token is refilled every 200ms
+        clock.advance(250, TimeUnit.MILLISECONDS);
+        assertTrue(rateLimiter.acquire());
+        assertFalse(rateLimiter.acquire());
+    }
+
+    @Test
+    public void testAcquireWithTimeout() {
+        for (int i = 0; i < 5; i++) {
+            assertTrue(rateLimiter.acquire());
+        }
+        assertFalse(rateLimiter.tryAcquire(50, TimeUnit.MILLISECONDS));
+        assertTrue(rateLimiter.tryAcquire(500, TimeUnit.MILLISECONDS));
+        assertTrue(clock.nanoTime() >= TimeUnit.MILLISECONDS.toNanos(200));
+    }
+
+    @Test
+    public void testGetRate() {
+        assertEquals(5, rateLimiter.getRate());
+        rateLimiter.setRate(10);
+        assertEquals(10, rateLimiter.getRate());
+    }
+
+    @Test
+    public void testCapacityOutOfRange() {
+        assertThrows(IllegalArgumentException.class,
+                () -> new AtomicTokenBucketRateLimiter(AtomicTokenBucketRateLimiter.MAX_CAPACITY + 1, 1));
+    }
+
+    @Test
+    public void testAcquireAsync() {
+        // Real clock, the async waiters are woken by the shared timer
+        AtomicTokenBucketRateLimiter limiter = new AtomicTokenBucketRateLimiter(1, 20);
+        assertFalse(limiter.acquireAsync(2).join()); // More than the capacity
+        assertTrue(limiter.acquireAsync(1).join());
+
+        CompletableFuture<Boolean> first = limiter.acquireAsync(1);
+        CompletableFuture<Boolean> second = limiter.acquireAsync(1, 10, TimeUnit.SECONDS);
+        assertFalse(limiter.acquireAsync(1, 1, TimeUnit.MILLISECONDS).join()); // Next token is 50ms away
+
+        assertTrue(first.join());
+        assertFalse(second.isDone()); // Waits for its own token, in order
+        assertTrue(second.join());
+    }
+
+    @Test
+    public void testConcurrency() throws InterruptedException {
+        AtomicTokenBucketRateLimiter limiter = new AtomicTokenBucketRateLimiter(100, 0.001);
+        AtomicInteger successfulAcquires = new AtomicInteger(0);
+        AtomicInteger failedAcquires = new AtomicInteger(0);
+
+        Runnable acquireTask = () -> {
+            for (int i = 0; i < 50; i++) {
+                if (limiter.acquire()) {
+                    successfulAcquires.incrementAndGet();
+                } else {
+                    failedAcquires.incrementAndGet();
+                }
+            }
+        };
+
+        Thread[] threads = new Thread[16];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(acquireTask);
+            threads[i].start();
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(100, successfulAcquires.get());
+        assertEquals(700, failedAcquires.get());
+    }
+
+    @Test
+    public void testStaleClockReadDoesNotRefill() {
+        clock.advance(1, TimeUnit.SECONDS);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(rateLimiter.acquire());
+        }
+        // A caller that read the clock just before another thread stored a later refill time
+        long staleNow = clock.nanoTime() - TimeUnit.MILLISECONDS.toNanos(1);
+        assertTrue(rateLimiter.acquireOrGetWait(1, staleNow) > 0);
+        assertFalse(rateLimiter.acquire());
+    }
+
+    @Test
+    public void testRefillsAfterLongIdle() {
+        for (int i = 0; i < 5; i++) {
+            assertTrue(rateLimiter.acquire());
+        }
+        // Past half the range of the timestamps, which must not read as a stale clock read
+        clock.advance(150, TimeUnit.DAYS);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(rateLimiter.acquire());
+        }
+        assertFalse(rateLimiter.acquire());
+    }
+
+    @Test
+    public void testConcurrencyWithRefill() throws InterruptedException {
+        // Real clock: threads read it at different times and race on every refill
+        AtomicTokenBucketRateLimiter limiter = new AtomicTokenBucketRateLimiter(10, 1_000);
+        AtomicInteger successfulAcquires = new AtomicInteger(0);
+        long start = System.nanoTime();
+        long end = start + TimeUnit.MILLISECONDS.toNanos(300);
+
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> {
+                while (System.nanoTime() < end) {
+                    if (limiter.acquire()) {
+                        successfulAcquires.incrementAndGet();
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue(successfulAcquires.get() <= 10 + elapsedMillis + 1, successfulAcquires + " in " + elapsedMillis + "ms");
+        assertTrue(successfulAcquires.get() > 100, successfulAcquires + " in " + elapsedMillis + "ms");
+    }
+}
@@ -0,0 +1,208 @@
+package org.example;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CompactKeyedRateLimiterTest {
+
+    @Test
+    public void testBasicRateLimiting() {
+        ManualNanoClock clock = new ManualNanoClock();
+        CompactKeyedRateLimiter rateLimiter = new CompactKeyedRateLimiter(5, 1_000, 4, clock);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(rateLimiter.acquire("192.168.1.1"));
+        }
+        assertFalse(rateLimiter.acquire("192.168.1.1"));
+        assertTrue(rateLimiter.acquire("192.168.1.2"));
+
+        // Wait for the next window
+        clock.advance(1, TimeUnit.SECONDS);
+        assertTrue(rateLimiter.acquire("192.168.1.1"));
+    }
+
+    @Test
+    public void testAddressForms() {
+        CompactKeyedRateLimiter rateLimiter = new CompactKeyedRateLimiter(2, 1_000);
+        assertTrue(rateLimiter.acquire(new byte[]{(byte) 192, (byte) 168, 1, 1}));
+        assertTrue(rateLimiter.acquireIPv4(0xC0A80101));
+        assertFalse(rateLimiter.acquire(new byte[]{(byte) 192, (byte) 168, 1, 1}));
+
+        byte[] ipv6 = new byte[16];
+        ipv6[0] = 0x20;
+        ipv6[1] = 0x01;
+        ipv6[15] = 1;
+        assertTrue(rateLimiter.acquire(ipv6));
+        assertTrue(rateLimiter.acquire(ipv6));
+        assertFalse(rateLimiter.acquire(ipv6));
+        assertEquals(2, rateLimiter.size());
+    }
+
+    @Test
+    public void testManyKeys() {
+        CompactKeyedRateLimiter rateLimiter = new CompactKeyedRateLimiter(1, 100_000);
+        for (int i = 0; i < 100_000; i++) {
+            assertTrue(rateLimiter.acquireIPv4(i));
+        }
+        for (int i = 0; i < 100_000; i++) {
+            assertFalse(rateLimiter.acquireIPv4(i));
+        }
+        assertEquals(100_000, rateLimiter.size());
+    }
+
+    @Test
+    public void testFullProbeWindowKeepsLimits() {
+        ManualNanoClock clock = new ManualNanoClock();
+        // Two segments of 64 slots
+        CompactKeyedRateLimiter rateLimiter = new CompactKeyedRateLimiter(2, 16, 1, clock);
+        int allowed = 0;
+        for (int key = 0; key < 300; key++) {
+            for (int i = 0; i < 10; i++) {
+                if (rateLimiter.acquireIPv4(key)) {
+                    allowed++;
+                }
+            }
+        }
+        // Keys without a free slot take over a used up count instead of going unlimited
+        assertTrue(allowed <= 128 * 2, "allowed " + allowed);
+        assertEquals(128, rateLimiter.size());
+
+        clock.advance(1, TimeUnit.SECONDS);
+        assertTrue(rateLimiter.acquireIPv4(299));
+    }
+
+    @Test
+    public void testAcquireAll() {
+        CompactKeyedRateLimiter rateLimiter = new CompactKeyedRateLimiter(2, 1_000);
+        assertTrue(rateLimiter.acquire("tenant-a", 2));
+        assertFalse(rateLimiter.acquire("tenant-b", 3));
+
+        CharSequence[] keys = {"tenant-a", "tenant-b", "tenant-b", "tenant-c", "tenant-b"};
+        BitSet allowed = rateLimiter.acquireAll(keys);
+        assertFalse(allowed.get(0));
+        assertTrue(allowed.get(1));
+        assertTrue(allowed.get(2));
+        assertTrue(allowed.get(3));
+        assertFalse(allowed.get(4));
+    }
+
+    @Test
+    public void testConcurrency() throws InterruptedException {
+        CompactKeyedRateLimiter rateLimiter = new CompactKeyedRateLimiter(20, 1_000);
+        int[] successfulAcquires = new int[10];
+
+        Thread[] threads = new Thread[10];
+        for (int i = 0; i < threads.length; i++) {
+            int thread = i;
+            threads[i] = new Thread(() -> {
+                for (int j = 0; j < 50; j++) {
+                    if (rateLimiter.acquire("api-key-" + (j % 2))) {
+                        successfulAcquires[thread]++;
+                    }
+                }
+            });
+            threads[i].start();
+        }
+
+        int total = 0;
+        for (int i = 0; i < threads.length; i++) {
+            threads[i].join();
+            total += successfulAcquires[i];
+        }
+        assertEquals(40, total);
+    }
+
+    @Test
+    public void testCheckpointAndRestore(@TempDir Path directory) throws IOException {
+        ManualNanoClock clock = new ManualNanoClock();
+        ManualNanoClock wallClock = new ManualNanoClock(TimeUnit.DAYS.toNanos(20_000));
+        CompactKeyedRateLimiter rateLimiter = new CompactKeyedRateLimiter(5, 1_000, 4, clock);
+        assertTrue(rateLimiter.acquire("192.168.1.1", 5));
+        assertTrue(rateLimiter.acquire("192.168.1.2", 2));
+        clock.advance(400, TimeUnit.MILLISECONDS);
+        Path file = directory.resolve("limiter.checkpoint");
+        rateLimiter.checkpoint(file, wallClock);
+
+        // The new process has an unrelated nanoTime, but the wall clock moved on by 300ms
+        ManualNanoClock restartedClock = new ManualNanoClock(123_456_789_000L);
+        wallClock.advance(300, TimeUnit.MILLISECONDS);
+        CompactKeyedRateLimiter restored = CompactKeyedRateLimiter.restore(file, restartedClock, wallClock);
+        assertEquals(2, restored.size());
+        assertEquals(5, restored.getRate());
+        assertFalse(restored.acquire("192.168.1.1"));
+        assertTrue(restored.acquire("192.168.1.2", 3));
+        assertFalse(restored.acquire("192.168.1.2"));
+
+        // 300ms are left of the windows started before the restart
+        restartedClock.advance(300, TimeUnit.MILLISECONDS);
+        assertTrue(restored.acquire("192.168.1.1", 5));
+        assertTrue(restored.acquire("192.168.1.3", 5));
+    }
+
+    @Test
+    public void testRestoreRejectsCorruptHeader(@TempDir Path directory) throws IOException {
+        CompactKeyedRateLimiter rateLimiter = new CompactKeyedRateLimiter(5, 1_000, 4, new ManualNanoClock());
+        assertTrue(rateLimiter.acquire("192.168.1.1"));
+        Path file = directory.resolve("limiter.checkpoint");
+        rateLimiter.checkpoint(file);
+
+        assertCorrupt(file, 8, littleEndian(4).putInt(0, 1 << 30)); // Segment count
+        assertCorrupt(file, 8, littleEndian(4).putInt(0, Integer.MIN_VALUE));
+        assertCorrupt(file, 12, littleEndian(4).putInt(0, 1 << 30)); // Slots per segment
+        assertCorrupt(file, 24, littleEndian(8).putDouble(0, Double.NaN)); // Rate
+        assertCorrupt(file, 24, littleEndian(8).putDouble(0, -1));
+        assertCorrupt(file, 48, littleEndian(8).putLong(0, -1)); // Burst
+        assertCorrupt(file, 64, littleEndian(4).putInt(0, -1)); // Size of the first segment
+    }
+
+    private static void assertCorrupt(Path file, long position, ByteBuffer value) throws IOException {
+        Path corrupt = file.resolveSibling("corrupt.checkpoint");
+        Files.copy(file, corrupt, StandardCopyOption.REPLACE_EXISTING);
+        try (FileChannel channel = FileChannel.open(corrupt, StandardOpenOption.WRITE)) {
+            channel.write(value, position);
+        }
+        assertThrows(IOException.class, () -> CompactKeyedRateLimiter.restore(corrupt, new ManualNanoClock()));
+    }
+
+    private static ByteBuffer littleEndian(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    @Test
+    public void testGcraMode(@TempDir Path directory) throws IOException {
+        ManualNanoClock clock = new ManualNanoClock();
+        ManualNanoClock wallClock = new ManualNanoClock(TimeUnit.DAYS.toNanos(20_000));
+        CompactKeyedRateLimiter rateLimiter = new CompactKeyedRateLimiter(10, 2, 1_000, 4, clock);
+        assertTrue(rateLimiter.acquire("192.168.1.1", 2));
+        assertFalse(rateLimiter.acquire("192.168.1.1"));
+        assertFalse(rateLimiter.acquire("192.168.1.2", 3)); // More than the burst
+
+        // One permit every 100ms, no window boundary to burst across
+        clock.advance(100, TimeUnit.MILLISECONDS);
+        assertTrue(rateLimiter.acquire("192.168.1.1"));
+        assertFalse(rateLimiter.acquire("192.168.1.1"));
+
+        Path file = directory.resolve("limiter.checkpoint");
+        rateLimiter.checkpoint(file, wallClock);
+        ManualNanoClock restartedClock = new ManualNanoClock(123_456_789_000L);
+        wallClock.advance(50, TimeUnit.MILLISECONDS);
+        CompactKeyedRateLimiter restored = CompactKeyedRateLimiter.restore(file, restartedClock, wallClock);
+        assertEquals(10, restored.getRate());
+        assertFalse(restored.acquire("192.168.1.1"));
+        restartedClock.advance(50, TimeUnit.MILLISECONDS);
+        assertTrue(restored.acquire("192.168.1.1"));
+        assertFalse(restored.acquire("192.168.1.1"));
+    }
+}
@@ -0,0 +1,118 @@
+package org.example;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CompositeRateLimiterTest {
+
+    private ManualNanoClock clock;
+
+    @BeforeEach
+    public void setUp() {
+        clock = new ManualNanoClock();
+    }
+
+    @Test
+    public void testDeniedPermitsAreRefunded() {
+        FixedWindowRateLimiter user = new FixedWindowRateLimiter(2, clock);
+        TokenBucketRateLimiter global = new TokenBucketRateLimiter(3, 3, clock);
+        CompositeRateLimiter composite = new CompositeRateLimiter(List.of(user, global), clock);
+
+        assertTrue(composite.acquire(2));
+        assertFalse(composite.acquire()); // Denied by the user limit, the global bucket keeps its token
+        assertTrue(global.acquire());
+        assertFalse(global.acquire());
+
+        // The user limit has room again, the global bucket has refilled but is drained by others
+        clock.advance(1, TimeUnit.SECONDS);
+        assertTrue(global.acquire(3));
+        assertFalse(composite.acquire()); // Denied by the global bucket, the user window is refunded
+        assertTrue(user.acquire(2));
+    }
+
+    @Test
+    public void testTryAcquireWaitsForEveryLimiter() {
+        FixedWindowRateLimiter user = new FixedWindowRateLimiter(5, clock);
+        SlidingWindowLogRateLimiter global = new SlidingWindowLogRateLimiter(1, clock);
+        CompositeRateLimiter composite = new CompositeRateLimiter(List.of(user, global), clock);
+
+        assertTrue(composite.acquire());
+        assertFalse(composite.acquire());
+        assertTrue(composite.tryAcquire(2, TimeUnit.SECONDS));
+        assertEquals(TimeUnit.SECONDS.toNanos(1), clock.nanoTime());
+    }
+
+    @Test
+    public void testComposesOtherRateLimiters() {
+        FixedWindowRateLimiter user = new FixedWindowRateLimiter(5, clock);
+        AdaptiveRateLimiter adaptive = new AdaptiveRateLimiter(new TokenBucketRateLimiter(2, 2, clock), 1, 2,
+                AdaptiveRateLimiter.Algorithm.AIMD, 100, TimeUnit.MILLISECONDS, clock);
+        CompositeRateLimiter composite = new CompositeRateLimiter(List.of(user, adaptive), clock);
+
+        assertTrue(composite.acquire(2));
+        assertFalse(composite.acquire()); // Denied by the adaptive limiter, the user window is refunded
+        // Waits for the adaptive limiter at its rate of 2 per second
+        assertTrue(composite.tryAcquire(1, TimeUnit.SECONDS));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(500), clock.nanoTime());
+        assertTrue(user.acquire(2));
+        assertFalse(user.acquire());
+    }
+
+    @Test
+    public void testLimitersRecordTheirDecisions() {
+        FixedWindowRateLimiter user = new FixedWindowRateLimiter(2, clock);
+        TokenBucketRateLimiter global = new TokenBucketRateLimiter(3, 3, clock);
+        RateLimiterMetrics userMetrics = new RateLimiterMetrics();
+        user.setMetrics(userMetrics);
+        CompositeRateLimiter composite = new CompositeRateLimiter(List.of(user, global), clock);
+
+        assertTrue(composite.acquire(2));
+        assertFalse(composite.acquire());
+        assertEquals(1, userMetrics.allowed());
+        assertEquals(1, userMetrics.denied());
+    }
+
+    @Test
+    public void testHierarchicalLimits() {
+        FixedWindowRateLimiter global = new FixedWindowRateLimiter(100, clock);
+        HierarchicalRateLimiter rateLimiter = new HierarchicalRateLimiter(global, List.of(
+                tenant -> new FixedWindowRateLimiter(10, clock),
+                apiKey -> new FixedWindowRateLimiter(6, clock),
+                endpoint -> new FixedWindowRateLimiter(endpoint.equals("/search") ? 2 : 100, clock)),
+                1000, 1, TimeUnit.MINUTES, clock);
+
+        assertTrue(rateLimiter.acquire(2, "acme", "key1", "/search"));
+        assertFalse(rateLimiter.acquire("acme", "key1", "/search"));
+        assertTrue(rateLimiter.acquire(4, "acme", "key1", "/orders"));
+        assertFalse(rateLimiter.acquire("acme", "key1", "/orders")); // The API key is at its limit
+        assertTrue(rateLimiter.acquire(4, "acme", "key2", "/orders"));
+        assertFalse(rateLimiter.acquire("acme", "key3", "/orders")); // The tenant is at its limit
+        assertTrue(rateLimiter.acquire("other", "key1", "/search")); // Same keys, another tenant
+
+        // Only the permits of granted requests were taken from the global limit
+        assertTrue(global.acquire(89));
+        assertFalse(global.acquire());
+        assertThrows(IllegalArgumentException.class, () -> rateLimiter.acquire("acme", "key1"));
+    }
+
+    @Test
+    public void testHierarchicalPathsDoNotCollide() {
+        FixedWindowRateLimiter global = new FixedWindowRateLimiter(100, clock);
+        HierarchicalRateLimiter rateLimiter = new HierarchicalRateLimiter(global, List.of(
+                tenant -> new FixedWindowRateLimiter(10, clock),
+                apiKey -> new FixedWindowRateLimiter(1, clock)),
+                1000, 1, TimeUnit.MINUTES, clock);
+
+        assertTrue(rateLimiter.acquire("a\u0000b", "c"));
+        assertTrue(rateLimiter.acquire("a", "b\u0000c"));
+        assertTrue(rateLimiter.acquire("1:a", "b"));
+        assertTrue(rateLimiter.acquire("1", "a1:b"));
+        assertTrue(rateLimiter.acquire("", "2:x"));
+        assertFalse(rateLimiter.acquire("", "2:x"));
+    }
+}
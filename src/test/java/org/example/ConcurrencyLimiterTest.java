@@ -0,0 +1,133 @@
+package org.example;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ConcurrencyLimiterTest {
+
+    @Test
+    public void testLimitsCallsInFlight() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(2);
+        Permit first = limiter.tryAcquire();
+        Permit second = limiter.tryAcquire();
+        assertNotNull(first);
+        assertNotNull(second);
+        assertNull(limiter.tryAcquire());
+        assertEquals(2, limiter.inFlight());
+
+        first.close();
+        first.close(); // Closing twice gives back one slot
+        assertEquals(1, limiter.inFlight());
+        try (Permit permit = limiter.tryAcquire()) {
+            assertNotNull(permit);
+            assertNull(limiter.tryAcquire());
+        }
+        assertEquals(1, limiter.inFlight());
+    }
+
+    @Test
+    public void testTimesOutOnClock() {
+        ManualNanoClock clock = new ManualNanoClock();
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, true, clock);
+        assertNotNull(limiter.tryAcquire());
+        assertNull(limiter.tryAcquire(10, TimeUnit.MILLISECONDS));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(10), clock.nanoTime());
+    }
+
+    @Test
+    public void testWaitsForSlot() throws InterruptedException {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, true);
+        Permit permit = limiter.tryAcquire();
+        AtomicReference<Permit> acquired = new AtomicReference<>();
+        Thread waiter = new Thread(() -> acquired.set(limiter.tryAcquire(10, TimeUnit.SECONDS)));
+        waiter.start();
+        while (waiter.getState() != Thread.State.TIMED_WAITING) {
+            Thread.onSpinWait();
+        }
+        permit.close();
+        waiter.join();
+        assertNotNull(acquired.get());
+    }
+
+    @Test
+    public void testComposesWithRateLimiter() {
+        ManualNanoClock clock = new ManualNanoClock();
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(5);
+        FixedWindowRateLimiter rateLimiter = new FixedWindowRateLimiter(1, clock);
+        Permit permit = limiter.tryAcquire(rateLimiter, 1);
+        assertNotNull(permit);
+        assertNull(limiter.tryAcquire(rateLimiter, 1)); // Rate limited, the slot is given back
+        assertEquals(1, limiter.inFlight());
+    }
+
+    @Test
+    public void testNeverExceedsLimitUnderContention() throws InterruptedException {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(4);
+        AtomicInteger current = new AtomicInteger();
+        AtomicInteger highest = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(16);
+        for (int i = 0; i < 16; i++) {
+            new Thread(() -> {
+                for (int j = 0; j < 200; j++) {
+                    try (Permit permit = limiter.tryAcquire(1, TimeUnit.SECONDS)) {
+                        if (permit != null) {
+                            highest.accumulateAndGet(current.incrementAndGet(), Math::max);
+                            current.decrementAndGet();
+                        }
+                    }
+                }
+                done.countDown();
+            }).start();
+        }
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        assertTrue(highest.get() <= 4);
+        assertEquals(0, limiter.inFlight());
+    }
+
+    @Test
+    public void testKeyedLimiterDropsIdleKeys() {
+        KeyedConcurrencyLimiter limiter = new KeyedConcurrencyLimiter(1);
+        Permit first = limiter.tryAcquire("10.0.0.1");
+        assertNotNull(first);
+        assertNull(limiter.tryAcquire("10.0.0.1"));
+        Permit other = limiter.tryAcquire("10.0.0.2");
+        assertNotNull(other);
+        assertEquals(2, limiter.size());
+
+        first.close();
+        other.close();
+        assertEquals(0, limiter.size());
+        assertEquals(0, limiter.inFlight("10.0.0.1"));
+        assertNotNull(limiter.tryAcquire("10.0.0.1"));
+    }
+
+    @Test
+    public void testKeyedLimiterWaitsForRateLimiter() {
+        ManualNanoClock clock = new ManualNanoClock();
+        KeyedConcurrencyLimiter limiter = new KeyedConcurrencyLimiter(2, false, clock);
+        SlidingWindowLogRateLimiter rateLimiter = new SlidingWindowLogRateLimiter(1, clock);
+        assertNotNull(limiter.tryAcquire("10.0.0.1", rateLimiter, 1, 2, TimeUnit.SECONDS));
+        assertNotNull(limiter.tryAcquire("10.0.0.1", rateLimiter, 1, 2, TimeUnit.SECONDS));
+        assertEquals(TimeUnit.SECONDS.toNanos(1), clock.nanoTime());
+
+        // A slot, but the rate limiter has nothing before the timeout, the slot is given back
+        assertNull(limiter.tryAcquire("10.0.0.2", rateLimiter, 1, 100, TimeUnit.MILLISECONDS));
+        assertEquals(0, limiter.inFlight("10.0.0.2"));
+        // No slot left for the key until the timeout
+        assertNull(limiter.tryAcquire("10.0.0.1", rateLimiter, 1, 2, TimeUnit.SECONDS));
+        assertEquals(TimeUnit.SECONDS.toNanos(3), clock.nanoTime());
+        assertEquals(2, limiter.inFlight("10.0.0.1"));
+    }
+
+    @Test
+    public void testInvalidMaxConcurrency() {
+        assertThrows(IllegalArgumentException.class, () -> new ConcurrencyLimiter(0));
+        assertThrows(IllegalArgumentException.class, () -> new KeyedConcurrencyLimiter(-1));
+    }
+}
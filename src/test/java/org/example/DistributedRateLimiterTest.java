@@ -0,0 +1,186 @@
+package org.example;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DistributedRateLimiterTest {
+
+    private ManualNanoClock clock;
+    private RateLimitBackendServer server;
+    private SocketRateLimitBackend node1Backend;
+    private SocketRateLimitBackend node2Backend;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        clock = new ManualNanoClock();
+        server = new RateLimitBackendServer(new InMemoryRateLimitBackend(clock));
+        node1Backend = new SocketRateLimitBackend(server.getAddress());
+        node2Backend = new SocketRateLimitBackend(server.getAddress());
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        node1Backend.close();
+        node2Backend.close();
+        server.close();
+    }
+
+    @Test
+    public void testFixedWindowIsSharedByNodes() {
+        RateLimiter node1 = new DistributedFixedWindowRateLimiter(node1Backend, "api", 100, 10, clock);
+        RateLimiter node2 = new DistributedFixedWindowRateLimiter(node2Backend, "api", 100, 10, clock);
+
+        assertEquals(100, acquireUntilDenied(node1, node2));
+
+        // Wait for the next window
+        clock.advance(1, TimeUnit.SECONDS);
+        assertEquals(100, acquireUntilDenied(node1, node2));
+    }
+
+    @Test
+    public void testTokenBucketIsSharedByNodes() {
+        RateLimiter node1 = new DistributedTokenBucketRateLimiter(node1Backend, "api", 20, 10, 5, clock);
+        RateLimiter node2 = new DistributedTokenBucketRateLimiter(node2Backend, "api", 20, 10, 5, clock);
+
+        assertEquals(20, acquireUntilDenied(node1, node2));
+
+        // 10 tokens per second are refilled, wherever they end up being used
+        clock.advance(1, TimeUnit.SECONDS);
+        assertEquals(10, acquireUntilDenied(node1, node2));
+        assertFalse(node1.acquire(21)); // More than the capacity
+    }
+
+    @Test
+    public void testEnforcesRateLocallyWithoutBackend() throws IOException {
+        InetSocketAddress address = server.getAddress();
+        server.close();
+        RateLimiter node = new DistributedFixedWindowRateLimiter(new SocketRateLimitBackend(address), "api", 10, 5, clock);
+
+        // One permit per retry delay of 100ms, which is the rate of 10 per second
+        assertTrue(node.acquire());
+        assertFalse(node.acquire());
+        clock.advance(100, TimeUnit.MILLISECONDS);
+        assertTrue(node.acquire());
+        assertFalse(node.acquire());
+    }
+
+    @Test
+    public void testEnforcesLowRateLocallyWithoutBackend() throws IOException {
+        InetSocketAddress address = server.getAddress();
+        server.close();
+        RateLimiter node = new DistributedTokenBucketRateLimiter(new SocketRateLimitBackend(address), "api", 10, 2, 5,
+                clock);
+
+        // Far less than a permit per retry delay, the fractions add up across retries
+        int allowed = 0;
+        for (int i = 0; i < 100; i++) {
+            if (node.acquire()) {
+                allowed++;
+            }
+            clock.advance(100, TimeUnit.MILLISECONDS);
+        }
+        assertTrue(allowed >= 19 && allowed <= 21, "allowed " + allowed);
+    }
+
+    @Test
+    public void testMalformedReplyIsBackendFailure() throws IOException {
+        try (ServerSocket broken = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            Thread replier = new Thread(() -> {
+                try (Socket socket = broken.accept()) {
+                    while (socket.getInputStream().read() != -1) {
+                        socket.getOutputStream().write("garbage\n".getBytes(StandardCharsets.UTF_8));
+                    }
+                } catch (IOException e) {
+                    // Test is over
+                }
+            });
+            replier.setDaemon(true);
+            replier.start();
+            InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), broken.getLocalPort());
+            try (SocketRateLimitBackend backend = new SocketRateLimitBackend(address)) {
+                assertThrows(IOException.class, () -> backend.get("api"));
+                assertThrows(IOException.class, () -> backend.compareAndSet("api", 0, 1, 1000));
+                RateLimiter node = new DistributedFixedWindowRateLimiter(backend, "api", 10, 5, clock);
+                assertTrue(node.acquire());
+                assertFalse(node.acquire());
+            }
+        }
+    }
+
+    @Test
+    public void testKeysWithWhitespace() throws IOException {
+        RateLimiter node1 = new DistributedFixedWindowRateLimiter(node1Backend, "my api", 10, 5, clock);
+        RateLimiter node2 = new DistributedFixedWindowRateLimiter(node2Backend, "my api", 10, 5, clock);
+        assertEquals(10, acquireUntilDenied(node1, node2));
+
+        assertEquals(1, node1Backend.incrementAndGet("a b", 1, 1000));
+        assertEquals(0, node1Backend.get("a%0020b"));
+        assertEquals(0, node1Backend.get("a\tb"));
+        assertEquals(0, node1Backend.get(""));
+        assertThrows(IllegalArgumentException.class,
+                () -> new DistributedFixedWindowRateLimiter(node1Backend, "", 10, 5, clock));
+    }
+
+    @Test
+    public void testTokenLeasesLapse() {
+        RateLimiter node1 = new DistributedTokenBucketRateLimiter(node1Backend, "api", 20, 10, 5, clock);
+        RateLimiter node2 = new DistributedTokenBucketRateLimiter(node2Backend, "api", 20, 10, 5, clock);
+        assertTrue(node1.acquire()); // Leases 5 tokens, 4 left in the lease
+
+        // The bucket is full again, and the lease lapsed instead of adding to it
+        clock.advance(1, TimeUnit.SECONDS);
+        assertEquals(20, acquireUntilDenied(node1, node2));
+    }
+
+    @Test
+    public void testInMemoryBackendDropsExpiredKeys() {
+        InMemoryRateLimitBackend backend = new InMemoryRateLimitBackend(clock);
+        for (int i = 0; i < 100; i++) {
+            backend.incrementAndGet("window:" + i, 1, 1000);
+        }
+        clock.advance(2, TimeUnit.SECONDS);
+        for (int i = 0; i < 100; i++) {
+            backend.incrementAndGet("live", 1, 1000);
+        }
+        assertEquals(1, backend.size());
+        assertEquals(100, backend.get("live"));
+    }
+
+    @Test
+    public void testIPBasedRateLimiterWithBackend() {
+        IPBasedRateLimiter node1 = new IPBasedRateLimiter(10, 1000, 60, TimeUnit.SECONDS, clock, node1Backend, 4);
+        IPBasedRateLimiter node2 = new IPBasedRateLimiter(10, 1000, 60, TimeUnit.SECONDS, clock, node2Backend, 4);
+
+        int allowed = 0;
+        for (int i = 0; i < 20; i++) {
+            if ((i % 2 == 0 ? node1 : node2).acquire("192.168.0.1")) {
+                allowed++;
+            }
+        }
+        assertEquals(10, allowed);
+        assertTrue(node2.acquire("192.168.0.2"));
+    }
+
+    private static int acquireUntilDenied(RateLimiter node1, RateLimiter node2) {
+        int allowed = 0;
+        boolean node1Allowed = true;
+        boolean node2Allowed = true;
+        while (node1Allowed || node2Allowed) {
+            node1Allowed = node1.acquire();
+            node2Allowed = node2.acquire();
+            allowed += (node1Allowed ? 1 : 0) + (node2Allowed ? 1 : 0);
+        }
+        return allowed;
+    }
+}
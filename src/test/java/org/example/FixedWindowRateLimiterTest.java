@@ -10,39 +10,75 @@ import static org.junit.jupiter.api.Assertions.*;
 
 public class FixedWindowRateLimiterTest {
 
+    private ManualNanoClock clock;
     private FixedWindowRateLimiter rateLimiter;
 
     @BeforeEach
     public void setUp() {
-        rateLimiter = new FixedWindowRateLimiter(5); // 5 permits per second
+        clock = new ManualNanoClock();
+        rateLimiter = new FixedWindowRateLimiter(5, clock); // 5 permits per second
     }
 
     @Test
-    public void testBasicRateLimiting() throws InterruptedException {
+    public void testBasicRateLimiting() {
         for (int i = 0; i < 5; i++) {
             assertTrue(rateLimiter.acquire());
         }
         assertFalse(rateLimiter.acquire());
 
         // Wait for the next window
-        TimeUnit.SECONDS.sleep(1);
+        clock.advance(1, TimeUnit.SECONDS);
         assertTrue(rateLimiter.acquire());
     }
 
     @Test
-    public void testAcquireWithTimeout() throws InterruptedException {
+    public void testAcquireWithTimeout() {
         for (int i = 0; i < 5; i++) {
             assertTrue(rateLimiter.acquire());
         }
         assertFalse(rateLimiter.tryAcquire(100, TimeUnit.MILLISECONDS));
+        assertEquals(0, clock.nanoTime()); // Failed fast instead of waiting for the timeout
 
         // Wait for the next window
-        TimeUnit.SECONDS.sleep(1);
+        clock.advance(1, TimeUnit.SECONDS);
         assertTrue(rateLimiter.tryAcquire(100, TimeUnit.MILLISECONDS));
     }
 
     @Test
-    public void testChangeRate() throws InterruptedException {
+    public void testBlockedCallersWaitInTurn() throws InterruptedException {
+        AtomicInteger successfulAcquires = new AtomicInteger(0);
+        Thread[] threads = new Thread[50];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> {
+                if (rateLimiter.tryAcquire(20, TimeUnit.SECONDS)) {
+                    successfulAcquires.incrementAndGet();
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(50, successfulAcquires.get());
+        // Only one caller at a time sleeps on the clock, so it moved one window per 5 callers
+        assertEquals(TimeUnit.SECONDS.toNanos(9), clock.nanoTime());
+    }
+
+    @Test
+    public void testAcquireMultiplePermits() {
+        assertTrue(rateLimiter.acquire(3));
+        assertFalse(rateLimiter.acquire(3));
+        assertTrue(rateLimiter.acquire(2));
+        assertFalse(rateLimiter.acquire());
+
+        // More permits than a window holds can never be acquired, so this fails without waiting
+        assertFalse(rateLimiter.tryAcquire(6, 10, TimeUnit.SECONDS));
+        assertThrows(IllegalArgumentException.class, () -> rateLimiter.acquire(0));
+    }
+
+    @Test
+    public void testChangeRate() {
         rateLimiter.setRate(10); // Change rate to 10 permits per second
         for (int i = 0; i < 10; i++) {
             assertTrue(rateLimiter.acquire());
@@ -50,10 +86,38 @@ public class FixedWindowRateLimiterTest {
         assertFalse(rateLimiter.acquire());
 
         // Wait for the next window
-        TimeUnit.SECONDS.sleep(1);
+        clock.advance(1, TimeUnit.SECONDS);
         assertTrue(rateLimiter.acquire());
     }
 
+    @Test
+    public void testDenialsSkipTheLimiterUntilPermitsFreeUp() {
+        AtomicInteger decisions = new AtomicInteger();
+        FixedWindowRateLimiter limiter = new FixedWindowRateLimiter(2, clock) {
+            @Override
+            protected long acquireOrGetWait(int permits, long now) {
+                decisions.incrementAndGet();
+                return super.acquireOrGetWait(permits, now);
+            }
+        };
+        assertTrue(limiter.acquire(2));
+        for (int i = 0; i < 100; i++) {
+            assertFalse(limiter.acquire());
+        }
+        assertFalse(limiter.acquire(2));
+        assertEquals(2, decisions.get()); // Only the first denial asked the limiter
+
+        limiter.refund(1);
+        assertTrue(limiter.acquire());
+        assertFalse(limiter.acquire());
+        limiter.setRate(3);
+        assertTrue(limiter.acquire());
+
+        assertFalse(limiter.acquire());
+        clock.advance(1, TimeUnit.SECONDS);
+        assertTrue(limiter.acquire(3));
+    }
+
     @Test
     public void testGetRate() {
         assertEquals(5, rateLimiter.getRate());
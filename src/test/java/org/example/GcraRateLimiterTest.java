@@ -0,0 +1,98 @@
+package org.example;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class GcraRateLimiterTest {
+
+    private ManualNanoClock clock;
+    private GcraRateLimiter rateLimiter;
+
+    @BeforeEach
+    public void setUp() {
+        clock = new ManualNanoClock();
+        rateLimiter = new GcraRateLimiter(10, 3, clock); // One permit every 100ms, bursts of 3
+    }
+
+    @Test
+    public void testBurstThenPacing() {
+        for (int i = 0; i < 3; i++) {
+            assertTrue(rateLimiter.acquire());
+        }
+        assertFalse(rateLimiter.acquire());
+        assertFalse(rateLimiter.acquire(4)); // More than the burst
+
+        clock.advance(99, TimeUnit.MILLISECONDS);
+        assertFalse(rateLimiter.acquire());
+        clock.advance(1, TimeUnit.MILLISECONDS);
+        assertTrue(rateLimiter.acquire());
+        assertFalse(rateLimiter.acquire());
+
+        // Resting longer than the burst does not save up more than the burst
+        clock.advance(10, TimeUnit.SECONDS);
+        assertTrue(rateLimiter.acquire(3));
+        assertFalse(rateLimiter.acquire());
+    }
+
+    @Test
+    public void testExactPacingWithoutDrift() {
+        GcraRateLimiter limiter = new GcraRateLimiter(3, 1, clock);
+        int acquired = 0;
+        for (int i = 0; i < 3_000; i++) {
+            if (limiter.acquire()) {
+                acquired++;
+            }
+            clock.advance(1, TimeUnit.MILLISECONDS);
+        }
+        assertEquals(9, acquired); // 3 seconds at 3 per second
+    }
+
+    @Test
+    public void testTryAcquireWaitsForTheNextPermit() {
+        assertTrue(rateLimiter.acquire(3));
+        assertFalse(rateLimiter.tryAcquire(50, TimeUnit.MILLISECONDS));
+        assertTrue(rateLimiter.tryAcquire(2, 1, TimeUnit.SECONDS));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(200), clock.nanoTime());
+    }
+
+    @Test
+    public void testReserveAndRefund() {
+        assertTrue(rateLimiter.acquire(3));
+        Reservation reservation = rateLimiter.reserve(2);
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(200), reservation.nanosToWait());
+        assertTrue(reservation.cancel());
+        rateLimiter.refund(1);
+        assertTrue(rateLimiter.acquire());
+        assertFalse(rateLimiter.acquire());
+    }
+
+    @Test
+    public void testSetRate() {
+        rateLimiter.setRate(1);
+        assertEquals(1, rateLimiter.getRate());
+        assertTrue(rateLimiter.acquire(3));
+        clock.advance(500, TimeUnit.MILLISECONDS);
+        assertFalse(rateLimiter.acquire());
+        assertThrows(IllegalArgumentException.class, () -> rateLimiter.setRate(0));
+        assertThrows(IllegalArgumentException.class, () -> new GcraRateLimiter(1, 0));
+    }
+
+    @Test
+    public void testBurstToleranceIsBounded() {
+        // A burst of 2^24 permits, one every 11.6 days, spans more than the TAT can hold
+        assertThrows(IllegalArgumentException.class, () -> new GcraRateLimiter(1e-6, 1 << 24, clock));
+        assertThrows(IllegalArgumentException.class, () -> rateLimiter.setRate(1e-18));
+        assertEquals(10, rateLimiter.getRate());
+        assertThrows(IllegalArgumentException.class,
+                () -> new CompactKeyedRateLimiter(1e-6, (1 << 24) - 1, 16, 1, clock));
+
+        GcraRateLimiter slow = new GcraRateLimiter(1e-6, 1000, clock);
+        assertTrue(slow.acquire(1000));
+        assertFalse(slow.acquire());
+        assertThrows(IllegalArgumentException.class, () -> slow.reserve(Integer.MAX_VALUE));
+    }
+}
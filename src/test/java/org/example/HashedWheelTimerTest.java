@@ -0,0 +1,90 @@
+package org.example;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HashedWheelTimerTest {
+
+    @Test
+    public void testRunsTasksOnceTheirDelayPassedOnTheClock() throws InterruptedException {
+        ManualNanoClock clock = new ManualNanoClock();
+        HashedWheelTimer timer = new HashedWheelTimer(clock, 1, TimeUnit.MILLISECONDS, 8);
+        List<String> ran = new CopyOnWriteArrayList<>();
+        CountDownLatch first = new CountDownLatch(1);
+        CountDownLatch second = new CountDownLatch(1);
+        timer.schedule(() -> {
+            ran.add("second");
+            second.countDown();
+        }, 20, TimeUnit.MILLISECONDS); // More than one turn of the wheel
+        timer.schedule(() -> {
+            ran.add("first");
+            first.countDown();
+        }, 5, TimeUnit.MILLISECONDS);
+
+        Thread.sleep(50); // Real time does not count
+        assertTrue(ran.isEmpty());
+
+        clock.advance(10, TimeUnit.MILLISECONDS);
+        assertTrue(first.await(5, TimeUnit.SECONDS));
+        assertEquals(List.of("first"), ran);
+
+        clock.advance(10, TimeUnit.MILLISECONDS);
+        assertTrue(second.await(5, TimeUnit.SECONDS));
+        assertEquals(List.of("first", "second"), ran);
+    }
+
+    @Test
+    public void testCancelledTaskNeverRunsAndFreesItsSlot() throws InterruptedException {
+        ManualNanoClock clock = new ManualNanoClock();
+        HashedWheelTimer timer = new HashedWheelTimer(clock, 1, TimeUnit.MILLISECONDS, 8);
+        List<String> ran = new CopyOnWriteArrayList<>();
+        HashedWheelTimer.Timeout cancelled = timer.schedule(() -> ran.add("cancelled"), 1, TimeUnit.HOURS);
+        CountDownLatch done = new CountDownLatch(1);
+        timer.schedule(done::countDown, 10, TimeUnit.MILLISECONDS);
+        awaitSize(timer, 2);
+
+        cancelled.cancel();
+        awaitSize(timer, 1); // Gone long before its deadline
+
+        clock.advance(2, TimeUnit.HOURS);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        awaitSize(timer, 0);
+        assertTrue(ran.isEmpty());
+    }
+
+    @Test
+    public void testIdleTimerWakesUpForNewTasks() throws InterruptedException {
+        HashedWheelTimer timer = new HashedWheelTimer(NanoClock.SYSTEM, 1, TimeUnit.MILLISECONDS, 8);
+        for (int i = 0; i < 3; i++) {
+            Thread.sleep(20); // Parked with nothing to do
+            CountDownLatch done = new CountDownLatch(1);
+            timer.schedule(done::countDown, 1, TimeUnit.MILLISECONDS);
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void testFailingTaskDoesNotStopTheTimer() throws InterruptedException {
+        HashedWheelTimer timer = new HashedWheelTimer(NanoClock.SYSTEM, 1, TimeUnit.MILLISECONDS, 8);
+        timer.schedule(() -> {
+            throw new IllegalStateException("expected by the test");
+        }, 0, TimeUnit.MILLISECONDS);
+        CountDownLatch done = new CountDownLatch(1);
+        timer.schedule(done::countDown, 2, TimeUnit.MILLISECONDS);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+
+    static void awaitSize(HashedWheelTimer timer, int size) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (timer.size() != size && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(size, timer.size());
+    }
+}
@@ -0,0 +1,84 @@
+package org.example;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HeavyHitterRateLimiterTest {
+
+    private ManualNanoClock clock;
+    private HeavyHitterRateLimiter rateLimiter;
+
+    @BeforeEach
+    public void setUp() {
+        clock = new ManualNanoClock();
+        // 10 permits per second, keys above 5 get an exact limiter, over-counting at most 0.01% of the traffic
+        rateLimiter = new HeavyHitterRateLimiter(10, 5, 0.0001, 0.01, 1000, clock);
+    }
+
+    @Test
+    public void testLightKeysAreNotTracked() {
+        // Over-counted by at most 0.0001 * 10000 = 1 permit, far below the threshold
+        for (int i = 0; i < 10_000; i++) {
+            assertTrue(rateLimiter.acquire("10.0." + (i >> 8) + "." + (i & 0xFF)));
+        }
+        assertEquals(0, rateLimiter.promotedKeys());
+    }
+
+    @Test
+    public void testHeavyKeyIsLimited() {
+        int allowed = 0;
+        for (int i = 0; i < 100; i++) {
+            if (rateLimiter.acquire("192.168.1.1")) {
+                allowed++;
+            }
+        }
+        // The threshold before promotion, then the exact limit
+        assertEquals(15, allowed);
+        assertEquals(1, rateLimiter.promotedKeys());
+        assertTrue(rateLimiter.acquire("192.168.1.2"));
+
+        // Wait for the next window
+        clock.advance(1, TimeUnit.SECONDS);
+        assertTrue(rateLimiter.acquire("192.168.1.1"));
+    }
+
+    @Test
+    public void testHotKeyStaysPromoted() {
+        HeavyHitterRateLimiter limiter = new HeavyHitterRateLimiter(10, 5, 0.0001, 0.01, 2, clock);
+        for (int i = 0; i < 100; i++) {
+            limiter.acquire("192.168.1.1");
+        }
+        // Past the idle timeout, while other keys get promoted and evicted all along
+        for (int second = 1; second <= 70; second++) {
+            clock.advance(1, TimeUnit.SECONDS);
+            int allowed = 0;
+            for (int i = 0; i < 100; i++) {
+                if (limiter.acquire("192.168.1.1")) {
+                    allowed++;
+                }
+            }
+            assertEquals(10, allowed, "second " + second); // Never the threshold again on top of it
+            for (int i = 0; i < 6; i++) {
+                limiter.acquire("10.0.0." + second);
+            }
+        }
+    }
+
+    @Test
+    public void testEstimateDecays() {
+        for (int i = 0; i < 4; i++) {
+            rateLimiter.acquire("192.168.1.1");
+        }
+        assertEquals(4, rateLimiter.estimate("192.168.1.1"));
+
+        clock.advance(1500, TimeUnit.MILLISECONDS); // Half of the previous window still counts
+        assertEquals(2, rateLimiter.estimate("192.168.1.1"));
+
+        clock.advance(1, TimeUnit.SECONDS);
+        assertEquals(0, rateLimiter.estimate("192.168.1.1"));
+    }
+}
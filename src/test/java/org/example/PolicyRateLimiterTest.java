@@ -0,0 +1,128 @@
+package org.example;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PolicyRateLimiterTest {
+
+    @Test
+    public void testParseAndMatchPrecedence(@TempDir Path directory) throws IOException {
+        Path file = directory.resolve("policies.conf");
+        Files.write(file, List.of(
+                "# Longest match wins",
+                "*               fixed-window 10",
+                "10.*            token-bucket 100 200",
+                "10.0.*          gcra         50",
+                "",
+                "10.0.0.1        GCRA         5 1"), StandardCharsets.UTF_8);
+        RateLimitPolicies policies = RateLimitPolicies.parse(file);
+
+        assertEquals(4, policies.size());
+        assertEquals("10.0.0.1", policies.policyFor("10.0.0.1").pattern());
+        assertEquals("10.0.*", policies.policyFor("10.0.0.2").pattern());
+        assertEquals(50, policies.policyFor("10.0.0.2").burst());
+        assertEquals("10.*", policies.policyFor("10.1.0.1").pattern());
+        assertEquals(RateLimitPolicy.Algorithm.TOKEN_BUCKET, policies.policyFor("10.1.0.1").algorithm());
+        assertEquals("*", policies.policyFor("192.168.1.1").pattern());
+        assertEquals("*", policies.policyFor("1").pattern());
+
+        assertNull(new RateLimitPolicies(List.of()).policyFor("10.0.0.1"));
+    }
+
+    @Test
+    public void testInvalidFile(@TempDir Path directory) throws IOException {
+        Path file = directory.resolve("policies.conf");
+        Files.write(file, List.of("* fixed-window 10", "10.* leaky-bucket 10"), StandardCharsets.UTF_8);
+        IOException e = assertThrows(IOException.class, () -> RateLimitPolicies.parse(file));
+        assertTrue(e.getMessage().contains(":2"), e.getMessage());
+
+        assertThrows(IllegalArgumentException.class,
+                () -> new RateLimitPolicy("10.*.1", RateLimitPolicy.Algorithm.GCRA, 10, 1));
+        assertThrows(IllegalArgumentException.class,
+                () -> new RateLimitPolicy("10.*", RateLimitPolicy.Algorithm.GCRA, 0, 1));
+        assertThrows(IllegalArgumentException.class,
+                () -> new RateLimitPolicy("10.*", RateLimitPolicy.Algorithm.FIXED_WINDOW, 0.5, 1));
+        assertThrows(IllegalArgumentException.class,
+                () -> new RateLimitPolicy("10.*", RateLimitPolicy.Algorithm.FIXED_WINDOW, 10.5, 1));
+        Files.write(file, List.of("* fixed-window 0.5"), StandardCharsets.UTF_8);
+        assertThrows(IOException.class, () -> RateLimitPolicies.parse(file));
+    }
+
+    @Test
+    public void testKeysWithoutPolicyAreNotLimited() {
+        ManualNanoClock clock = new ManualNanoClock();
+        PolicyRateLimiter rateLimiter = new PolicyRateLimiter(new RateLimitPolicies(List.of(
+                new RateLimitPolicy("api-key-1", RateLimitPolicy.Algorithm.FIXED_WINDOW, 2, 2))),
+                1_000, 60, TimeUnit.SECONDS, clock);
+
+        assertTrue(rateLimiter.acquire("api-key-1", 2));
+        assertFalse(rateLimiter.acquire("api-key-1"));
+        for (int i = 0; i < 100; i++) {
+            assertTrue(rateLimiter.acquire("api-key-2"));
+        }
+    }
+
+    @Test
+    public void testReloadMigratesStateLazily() {
+        ManualNanoClock clock = new ManualNanoClock();
+        PolicyRateLimiter rateLimiter = new PolicyRateLimiter(new RateLimitPolicies(List.of(
+                new RateLimitPolicy("user-*", RateLimitPolicy.Algorithm.TOKEN_BUCKET, 10, 5))),
+                1_000, 60, TimeUnit.SECONDS, clock);
+        assertTrue(rateLimiter.acquire("user-1", 5));
+        assertFalse(rateLimiter.acquire("user-1"));
+
+        // Same algorithm and burst: the bucket keeps its tokens and refills at the new rate
+        rateLimiter.setPolicies(new RateLimitPolicies(List.of(
+                new RateLimitPolicy("user-*", RateLimitPolicy.Algorithm.TOKEN_BUCKET, 20, 5))));
+        assertFalse(rateLimiter.acquire("user-1"));
+        clock.advance(50, TimeUnit.MILLISECONDS);
+        assertTrue(rateLimiter.acquire("user-1"));
+        assertFalse(rateLimiter.acquire("user-1"));
+
+        // Another algorithm: the key starts over with a fresh limiter
+        rateLimiter.setPolicies(new RateLimitPolicies(List.of(
+                new RateLimitPolicy("user-*", RateLimitPolicy.Algorithm.GCRA, 20, 3))));
+        assertTrue(rateLimiter.acquire("user-1", 3));
+        assertFalse(rateLimiter.acquire("user-1"));
+
+        // No policy any more: not limited
+        rateLimiter.setPolicies(new RateLimitPolicies(List.of()));
+        assertTrue(rateLimiter.acquire("user-1", 100));
+    }
+
+    @Test
+    public void testWatcherReloadsReplacedFile(@TempDir Path directory) throws Exception {
+        Path file = directory.resolve("policies.conf");
+        Files.write(file, List.of("* fixed-window 1"), StandardCharsets.UTF_8);
+        PolicyRateLimiter rateLimiter = new PolicyRateLimiter(new RateLimitPolicies(List.of()));
+
+        PolicyFileWatcher watcher = new PolicyFileWatcher(file, rateLimiter);
+        try {
+            RateLimitPolicies initial = rateLimiter.getPolicies();
+            assertEquals(1, initial.policyFor("10.0.0.1").burst());
+
+            // Written next to it then moved over it, the way deployment tools replace files
+            Path staged = directory.resolve("policies.conf.tmp");
+            Files.write(staged, List.of("* fixed-window 1", "10.* gcra 100 50"), StandardCharsets.UTF_8);
+            Files.move(staged, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (rateLimiter.getPolicies() == initial && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(50, rateLimiter.getPolicies().policyFor("10.0.0.1").burst());
+        } finally {
+            watcher.close();
+        }
+    }
+}
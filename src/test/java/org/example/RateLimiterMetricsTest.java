@@ -0,0 +1,73 @@
+package org.example;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RateLimiterMetricsTest {
+
+    @Test
+    public void testCountsDecisions() {
+        ManualNanoClock clock = new ManualNanoClock();
+        FixedWindowRateLimiter rateLimiter = new FixedWindowRateLimiter(5, clock);
+        RateLimiterMetrics metrics = new RateLimiterMetrics();
+        rateLimiter.setMetrics(metrics);
+
+        for (int i = 0; i < 8; i++) {
+            rateLimiter.acquire();
+        }
+        assertTrue(rateLimiter.tryAcquire(2, TimeUnit.SECONDS)); // Waits for the next window
+
+        assertEquals(6, metrics.allowed());
+        assertEquals(3, metrics.denied());
+        assertEquals(8, metrics.acquireLatency().count());
+        assertEquals(1, metrics.waitTime().count());
+        assertEquals(TimeUnit.SECONDS.toNanos(1), metrics.waitTime().max(), TimeUnit.SECONDS.toNanos(1) / 32);
+
+        rateLimiter.setMetrics(null);
+        rateLimiter.acquire();
+        assertEquals(3, metrics.denied());
+    }
+
+    @Test
+    public void testTopThrottledKeys() {
+        IPBasedRateLimiter rateLimiter = new IPBasedRateLimiter(1);
+        RateLimiterMetrics metrics = new RateLimiterMetrics(4);
+        rateLimiter.setMetrics(metrics);
+
+        for (int i = 0; i < 10; i++) {
+            rateLimiter.acquire("192.168.1.1");
+            if (i < 5) {
+                rateLimiter.acquire("192.168.1.2");
+            }
+            rateLimiter.acquire("192.168.1." + (10 + i));
+        }
+
+        String[] keys = new String[2];
+        long[] counts = new long[2];
+        assertEquals(2, metrics.topThrottledKeys(keys, counts));
+        assertArrayEquals(new String[]{"192.168.1.1", "192.168.1.2"}, keys);
+        assertArrayEquals(new long[]{9, 4}, counts);
+    }
+
+    @Test
+    public void testHistogramPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long value = 1; value <= 1000; value++) {
+            histogram.record(value * 1000);
+        }
+        assertEquals(1000, histogram.count());
+        assertEquals(500_000, histogram.valueAtPercentile(50), 500_000 / 32);
+        assertEquals(990_000, histogram.valueAtPercentile(99), 990_000 / 32);
+        assertEquals(1_000_000, histogram.max(), 1_000_000 / 32);
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(Long.MAX_VALUE, histogram.max());
+        for (long value : new long[]{0, 31, 32, 63, 64, 1000, 1L << 62, Long.MAX_VALUE}) {
+            int bucket = LatencyHistogram.bucketOf(value);
+            assertTrue(LatencyHistogram.highestValueIn(bucket) >= value);
+            assertTrue(bucket == 0 || LatencyHistogram.highestValueIn(bucket - 1) < value);
+        }
+    }
+}
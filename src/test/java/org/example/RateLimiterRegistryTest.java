@@ -0,0 +1,94 @@
+package org.example;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RateLimiterRegistryTest {
+
+    @Test
+    public void testSameLimiterForSameKey() {
+        RateLimiterRegistry<String> registry =
+                new RateLimiterRegistry<>(key -> new FixedWindowRateLimiter(5), 100, 1, TimeUnit.MINUTES);
+        assertSame(registry.get("192.168.1.1"), registry.get("192.168.1.1"));
+        assertNotSame(registry.get("192.168.1.1"), registry.get("192.168.1.2"));
+        assertNull(registry.getIfPresent("192.168.1.3"));
+        assertEquals(2, registry.size());
+    }
+
+    @Test
+    public void testMaximumSize() {
+        RateLimiterRegistry<Integer> registry =
+                new RateLimiterRegistry<>(key -> new FixedWindowRateLimiter(5), 100, 1, TimeUnit.MINUTES);
+        for (int i = 0; i < 10_000; i++) {
+            registry.get(i);
+        }
+        assertTrue(registry.size() <= 100);
+    }
+
+    @Test
+    public void testIdleLimitersExpire() {
+        ManualNanoClock clock = new ManualNanoClock();
+        RateLimiterRegistry<String> registry = new RateLimiterRegistry<>(
+                key -> new FixedWindowRateLimiter(5, clock), 100, 1, TimeUnit.SECONDS, clock);
+        RateLimiter rateLimiter = registry.get("192.168.1.1");
+        for (int i = 0; i < 5; i++) {
+            assertTrue(rateLimiter.acquire());
+        }
+        assertFalse(registry.get("192.168.1.1").acquire());
+
+        clock.advance(500, TimeUnit.MILLISECONDS);
+        registry.cleanUp();
+        assertEquals(1, registry.size());
+
+        clock.advance(500, TimeUnit.MILLISECONDS);
+        registry.cleanUp();
+        assertEquals(0, registry.size());
+        assertNotSame(rateLimiter, registry.get("192.168.1.1"));
+    }
+
+    @Test
+    public void testIPBasedRateLimiterKeepsRateAcrossEviction() {
+        IPBasedRateLimiter ipBasedRateLimiter = new IPBasedRateLimiter(5, 1, 1, TimeUnit.SECONDS);
+        ipBasedRateLimiter.setRate("192.168.1.1", 2);
+        assertEquals(2, ipBasedRateLimiter.getRate("192.168.1.1"));
+        assertEquals(5, ipBasedRateLimiter.getRate("192.168.1.2"));
+
+        // Evicts the limiter of the first address
+        assertTrue(ipBasedRateLimiter.acquire("192.168.1.2"));
+        assertTrue(ipBasedRateLimiter.acquire("192.168.1.3"));
+        assertTrue(ipBasedRateLimiter.acquire("192.168.1.1"));
+        assertTrue(ipBasedRateLimiter.acquire("192.168.1.1"));
+        assertFalse(ipBasedRateLimiter.acquire("192.168.1.1"));
+    }
+
+    @Test
+    public void testIPBasedRateLimiterBoundsPerIPRates() {
+        ManualNanoClock clock = new ManualNanoClock();
+        IPBasedRateLimiter ipBasedRateLimiter = new IPBasedRateLimiter(5, 2, 1, TimeUnit.SECONDS, clock);
+        ipBasedRateLimiter.setRate("192.168.1.1", 2);
+        clock.advance(10, TimeUnit.MILLISECONDS);
+        ipBasedRateLimiter.setRate("192.168.1.2", 2);
+        clock.advance(10, TimeUnit.MILLISECONDS);
+
+        // Full: the rate least recently set is forgotten to make room
+        ipBasedRateLimiter.setRate("192.168.1.3", 3);
+        assertEquals(5, ipBasedRateLimiter.getRate("192.168.1.1"));
+        assertEquals(2, ipBasedRateLimiter.getRate("192.168.1.2"));
+        assertEquals(3, ipBasedRateLimiter.getRate("192.168.1.3"));
+        clock.advance(10, TimeUnit.MILLISECONDS);
+        ipBasedRateLimiter.setRate("192.168.1.4", 4);
+        assertEquals(4, ipBasedRateLimiter.getRate("192.168.1.4"));
+        assertEquals(3, ipBasedRateLimiter.getRate("192.168.1.3"));
+
+        // Going back to the default rate takes effect on the limiter as well
+        ipBasedRateLimiter.setRate("192.168.1.4", 5);
+        assertEquals(5, ipBasedRateLimiter.getRate("192.168.1.4"));
+        for (int i = 0; i < 5; i++) {
+            assertTrue(ipBasedRateLimiter.acquire("192.168.1.4"));
+        }
+        assertFalse(ipBasedRateLimiter.acquire("192.168.1.4"));
+    }
+}
@@ -0,0 +1,60 @@
+package org.example;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ReservableRateLimiterTest {
+
+    private ManualNanoClock clock;
+
+    @BeforeEach
+    public void setUp() {
+        clock = new ManualNanoClock();
+    }
+
+    @Test
+    public void testTokenBucketPacesReservations() {
+        TokenBucketRateLimiter rateLimiter = new TokenBucketRateLimiter(2, 10, clock); // A token every 100ms
+        assertEquals(0, rateLimiter.reserve(2).nanosToWait());
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(100), rateLimiter.reserve(1).nanosToWait());
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(300), rateLimiter.reserve(2).nanosToWait());
+        assertFalse(rateLimiter.acquire()); // The bucket is in debt
+
+        clock.advance(300, TimeUnit.MILLISECONDS);
+        assertFalse(rateLimiter.acquire());
+        clock.advance(100, TimeUnit.MILLISECONDS);
+        assertTrue(rateLimiter.acquire());
+    }
+
+    @Test
+    public void testLeakyBucketPacesReservations() {
+        LeakyBucketRateLimiter rateLimiter = new LeakyBucketRateLimiter(1, 10, clock); // A leak every 100ms
+        Reservation first = rateLimiter.reserve(1);
+        Reservation second = rateLimiter.reserve(1);
+        Reservation third = rateLimiter.reserve(1);
+        assertEquals(0, first.nanosToWait());
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(100), second.nanosToWait());
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(200), third.nanosToWait());
+
+        clock.advance(150, TimeUnit.MILLISECONDS);
+        assertEquals(0, second.nanosToWait());
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(50), third.nanosToWait());
+    }
+
+    @Test
+    public void testCancel() {
+        TokenBucketRateLimiter rateLimiter = new TokenBucketRateLimiter(1, 10, clock);
+        Reservation due = rateLimiter.reserve(1);
+        Reservation pending = rateLimiter.reserve(1);
+        assertFalse(due.cancel()); // Already usable, so already used
+        assertTrue(pending.cancel());
+        assertFalse(pending.cancel());
+
+        // The cancelled permit no longer delays anyone
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(100), rateLimiter.reserve(1).nanosToWait());
+    }
+}
@@ -0,0 +1,75 @@
+package org.example;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SlidingWindowCounterSubWindowRateLimiterTest {
+
+    private ManualNanoClock clock;
+    private SlidingWindowCounterSubWindowRateLimiter rateLimiter;
+
+    @BeforeEach
+    public void setUp() {
+        clock = new ManualNanoClock();
+        // 10 permits per 10 second window, counted in 1 second sub-windows
+        rateLimiter = new SlidingWindowCounterSubWindowRateLimiter(10, 10, 1, clock);
+    }
+
+    @Test
+    public void testRunningTotalCoversTheWholeWindow() {
+        assertTrue(rateLimiter.acquire(4));
+        clock.advance(3, TimeUnit.SECONDS);
+        assertTrue(rateLimiter.acquire(6));
+        assertFalse(rateLimiter.acquire());
+
+        // The first sub-window is still part of the window until it ends
+        clock.advance(6_999, TimeUnit.MILLISECONDS);
+        assertFalse(rateLimiter.acquire());
+        clock.advance(1, TimeUnit.MILLISECONDS);
+        assertTrue(rateLimiter.acquire(4));
+        assertFalse(rateLimiter.acquire());
+
+        clock.advance(3, TimeUnit.SECONDS);
+        assertTrue(rateLimiter.acquire(6));
+        assertFalse(rateLimiter.acquire());
+    }
+
+    @Test
+    public void testSkippedSubWindowsExpire() {
+        assertTrue(rateLimiter.acquire(3));
+        clock.advance(2, TimeUnit.SECONDS);
+        assertTrue(rateLimiter.acquire(3));
+        clock.advance(2, TimeUnit.SECONDS);
+        assertTrue(rateLimiter.acquire(3));
+
+        // No call for 8 sub-windows, the ones at 0s and 2s expired on the way but not the one at 4s
+        clock.advance(8_500, TimeUnit.MILLISECONDS);
+        assertTrue(rateLimiter.acquire(7));
+        assertFalse(rateLimiter.acquire());
+
+        // Idle for more than a whole window, everything expired
+        clock.advance(25, TimeUnit.SECONDS);
+        assertTrue(rateLimiter.acquire(10));
+        assertFalse(rateLimiter.acquire());
+    }
+
+    @Test
+    public void testWaitsForTheNextSubWindow() {
+        clock.advance(500, TimeUnit.MILLISECONDS);
+        assertTrue(rateLimiter.acquire(10));
+        assertTrue(rateLimiter.tryAcquire(10, TimeUnit.SECONDS));
+        assertEquals(TimeUnit.SECONDS.toNanos(10), clock.nanoTime());
+    }
+
+    @Test
+    public void testRefund() {
+        assertTrue(rateLimiter.acquire(10));
+        rateLimiter.refund(3);
+        assertTrue(rateLimiter.acquire(3));
+        assertFalse(rateLimiter.acquire());
+    }
+}
@@ -0,0 +1,57 @@
+package org.example;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SlidingWindowLogRateLimiterTest {
+
+    private ManualNanoClock clock;
+    private SlidingWindowLogRateLimiter rateLimiter;
+
+    @BeforeEach
+    public void setUp() {
+        clock = new ManualNanoClock();
+        rateLimiter = new SlidingWindowLogRateLimiter(5, clock); // 5 permits per second
+    }
+
+    @Test
+    public void testBasicRateLimiting() {
+        for (int i = 0; i < 3; i++) {
+            assertTrue(rateLimiter.acquire());
+        }
+        clock.advance(500, TimeUnit.MILLISECONDS);
+        assertTrue(rateLimiter.acquire(2));
+        assertFalse(rateLimiter.acquire());
+
+        // Only the first three permits have left the window
+        clock.advance(500, TimeUnit.MILLISECONDS);
+        assertTrue(rateLimiter.acquire(3));
+        assertFalse(rateLimiter.acquire());
+    }
+
+    @Test
+    public void testChangeRate() {
+        for (int i = 0; i < 5; i++) {
+            assertTrue(rateLimiter.acquire());
+        }
+        rateLimiter.setRate(10);
+        assertTrue(rateLimiter.acquire(5));
+        assertFalse(rateLimiter.acquire());
+
+        rateLimiter.setRate(2);
+        assertFalse(rateLimiter.acquire());
+        assertEquals(2, rateLimiter.getRate());
+    }
+
+    @Test
+    public void testAcquireWithTimeout() {
+        assertTrue(rateLimiter.acquire(5));
+        assertFalse(rateLimiter.tryAcquire(100, TimeUnit.MILLISECONDS));
+        assertTrue(rateLimiter.tryAcquire(2, 2, TimeUnit.SECONDS));
+        assertEquals(TimeUnit.SECONDS.toNanos(1), clock.nanoTime());
+    }
+}
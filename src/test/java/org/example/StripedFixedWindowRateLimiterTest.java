@@ -0,0 +1,91 @@
+package org.example;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class StripedFixedWindowRateLimiterTest {
+
+    private ManualNanoClock clock;
+    private StripedFixedWindowRateLimiter rateLimiter;
+
+    @BeforeEach
+    public void setUp() {
+        clock = new ManualNanoClock();
+        rateLimiter = new StripedFixedWindowRateLimiter(10, 4, clock);
+    }
+
+    @Test
+    public void testBasicRateLimiting() {
+        assertEquals(10, acquireUntilDenied());
+
+        // Wait for the next window
+        clock.advance(1, TimeUnit.SECONDS);
+        assertEquals(10, acquireUntilDenied());
+    }
+
+    @Test
+    public void testBorrowsFromOtherStripes() {
+        // Every stripe has at most 3 permits, the rest come from the others
+        assertTrue(rateLimiter.acquire(7));
+        assertFalse(rateLimiter.acquire(4));
+        assertTrue(rateLimiter.acquire(3));
+        assertFalse(rateLimiter.acquire());
+        assertFalse(rateLimiter.acquire(11));
+    }
+
+    @Test
+    public void testRollsOverAfterLongIdle() {
+        assertEquals(10, acquireUntilDenied());
+        for (long days : new long[] {50, 100, 200, 400}) {
+            clock.advance(days, TimeUnit.DAYS);
+            assertEquals(10, acquireUntilDenied(), "after " + days + " days");
+        }
+    }
+
+    @Test
+    public void testRefund() {
+        assertEquals(10, acquireUntilDenied());
+        rateLimiter.refund(2);
+        assertEquals(2, acquireUntilDenied());
+    }
+
+    @Test
+    public void testConcurrentCallersNeverLosePermits() throws InterruptedException {
+        StripedFixedWindowRateLimiter rateLimiter = new StripedFixedWindowRateLimiter(1000, 8, clock);
+        for (int window = 0; window < 20; window++) {
+            AtomicInteger allowed = new AtomicInteger();
+            Thread[] threads = new Thread[8];
+            for (int i = 0; i < threads.length; i++) {
+                int permits = 1 + i % 3;
+                threads[i] = new Thread(() -> {
+                    while (rateLimiter.acquire(permits)) {
+                        allowed.addAndGet(permits);
+                    }
+                });
+                threads[i].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            // Permits handed back by a caller that could not get all it asked for are still there
+            while (rateLimiter.acquire()) {
+                allowed.incrementAndGet();
+            }
+            assertEquals(1000, allowed.get());
+            clock.advance(1, TimeUnit.SECONDS);
+        }
+    }
+
+    private int acquireUntilDenied() {
+        int allowed = 0;
+        while (rateLimiter.acquire()) {
+            allowed++;
+        }
+        return allowed;
+    }
+}
@@ -0,0 +1,112 @@
+package org.example;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SubnetRateLimiterTest {
+
+    private ManualNanoClock clock;
+    private SubnetRateLimiter rateLimiter;
+
+    @BeforeEach
+    public void setUp() {
+        clock = new ManualNanoClock();
+        // 2 per address, 5 per /24 or /64, 8 per /16 or /48
+        rateLimiter = new SubnetRateLimiter(new int[]{32, 24, 16}, new int[]{128, 64, 48},
+                new double[]{2, 5, 8}, 1_000, 1, clock);
+    }
+
+    @Test
+    public void testAddressLimit() {
+        assertTrue(rateLimiter.acquireIPv4(0x0A000001));
+        assertTrue(rateLimiter.acquireIPv4(0x0A000001));
+        assertFalse(rateLimiter.acquireIPv4(0x0A000001));
+        assertTrue(rateLimiter.acquire(new byte[]{10, 0, 0, 2}));
+
+        clock.advance(500, TimeUnit.MILLISECONDS);
+        assertTrue(rateLimiter.acquireIPv4(0x0A000001));
+        assertFalse(rateLimiter.acquireIPv4(0x0A000001));
+    }
+
+    @Test
+    public void testRotatingThroughSubnet() {
+        for (int i = 1; i <= 5; i++) {
+            assertTrue(rateLimiter.acquireIPv4(0x0A000000 | i));
+        }
+        assertFalse(rateLimiter.acquireIPv4(0x0A000006)); // The /24 is exhausted
+        assertTrue(rateLimiter.acquireIPv4(0x0A000106)); // Another /24 in the same /16
+        assertTrue(rateLimiter.acquireIPv4(0x0A000107));
+        assertTrue(rateLimiter.acquireIPv4(0x0A000207));
+        assertFalse(rateLimiter.acquireIPv4(0x0A000307)); // The /16 is exhausted
+        assertTrue(rateLimiter.acquireIPv4(0x0B000001));
+        assertEquals(18, rateLimiter.size());
+    }
+
+    @Test
+    public void testIPv6Subnets() {
+        byte[] address = new byte[16];
+        address[0] = 0x20;
+        address[1] = 0x01;
+        for (int i = 1; i <= 5; i++) {
+            address[15] = (byte) i;
+            assertTrue(rateLimiter.acquire(address));
+        }
+        address[15] = 6;
+        assertFalse(rateLimiter.acquire(address)); // The /64 is exhausted
+        address[7] = 1;
+        assertTrue(rateLimiter.acquire(address)); // Another /64 in the same /48
+        assertFalse(rateLimiter.acquire(address, 2)); // Over the address limit
+    }
+
+    @Test
+    public void testDeniedRequestsDoNotCount() {
+        assertTrue(rateLimiter.acquireIPv4(0x0A000001, 2));
+        for (int i = 0; i < 10; i++) {
+            assertFalse(rateLimiter.acquireIPv4(0x0A000001, 1));
+        }
+        assertTrue(rateLimiter.acquireIPv4(0x0A000002, 2));
+        assertTrue(rateLimiter.acquireIPv4(0x0A000003));
+    }
+
+    @Test
+    public void testPrefixesAtRestAreDropped() {
+        SubnetRateLimiter limiter = new SubnetRateLimiter(new int[]{32, 24, 16}, new int[]{128, 64, 48},
+                new double[]{1, 1_000, 1_000}, 100, 1, clock);
+        for (int i = 0; i < 10_000; i++) {
+            assertTrue(limiter.acquireIPv4(i << 8));
+            clock.advance(1, TimeUnit.SECONDS);
+        }
+        assertTrue(limiter.size() <= 200);
+    }
+
+    @Test
+    public void testSubnetsStayLimitedWhenFull() {
+        SubnetRateLimiter limiter = new SubnetRateLimiter(new int[]{32, 24, 16}, new int[]{128, 64, 48},
+                new double[]{1, 1_000, 100}, 100, 1, clock);
+        int allowed = 0;
+        for (int i = 0; i < 5_000; i++) {
+            if (limiter.acquireIPv4(0x0A000000 | i)) {
+                allowed++;
+            }
+        }
+        assertEquals(100, allowed); // The /16, however many addresses are live
+        assertTrue(limiter.size() <= 100);
+
+        clock.advance(1, TimeUnit.SECONDS);
+        assertTrue(limiter.acquireIPv4(0x0A00FFFF));
+        assertTrue(limiter.acquireIPv4(0x0B000001));
+    }
+
+    @Test
+    public void testSetRate() {
+        rateLimiter.setRate(0, 1);
+        assertEquals(1, rateLimiter.getRate(0));
+        assertTrue(rateLimiter.acquireIPv4(0x0A000001));
+        assertFalse(rateLimiter.acquireIPv4(0x0A000001));
+        assertThrows(IllegalArgumentException.class, () -> rateLimiter.setRate(1, 0));
+    }
+}